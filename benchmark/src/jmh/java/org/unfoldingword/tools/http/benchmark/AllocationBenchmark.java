@@ -0,0 +1,55 @@
+package org.unfoldingword.tools.http.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.unfoldingword.tools.http.BufferPool;
+import org.unfoldingword.tools.http.GetRequest;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+
+/**
+ * Compares the allocation rate of small downloads with and without a buffer pool.
+ * Run with the gc profiler and compare gc.alloc.rate.norm between the two modes.
+ */
+@State(Scope.Benchmark)
+public class AllocationBenchmark {
+    @Param({"true", "false"})
+    public boolean pooled;
+
+    @Param({"4096"})
+    public int size;
+
+    private LocalServer server;
+    private URL url;
+    private File destination;
+    private BufferPool pool;
+
+    @Setup
+    public void setUp() throws IOException {
+        server = new LocalServer();
+        url = server.url("/bytes/" + size);
+        destination = File.createTempFile("allocation", ".bin");
+        // a pool that may not hold any bytes allocates a new buffer every time
+        pool = new BufferPool(pooled ? 512 * 1024 : 0, 8192);
+    }
+
+    @TearDown
+    public void tearDown() {
+        server.stop();
+        destination.delete();
+    }
+
+    @Benchmark
+    public File download() throws IOException {
+        GetRequest request = new GetRequest(url);
+        request.setBufferPool(pool);
+        request.download(destination);
+        return destination;
+    }
+}
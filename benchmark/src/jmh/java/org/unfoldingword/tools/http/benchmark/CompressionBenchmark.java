@@ -0,0 +1,72 @@
+package org.unfoldingword.tools.http.benchmark;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.unfoldingword.tools.http.GetRequest;
+
+import java.io.IOException;
+import java.net.URL;
+
+/**
+ * Compares plain and gzip responses of compressible json.
+ * The responses, wireBytes and decodedBytes counters total the bytes of every response
+ * so the bytes transferred for each response are reported next to the time taken.
+ */
+@State(Scope.Benchmark)
+public class CompressionBenchmark {
+    @Param({"false", "true"})
+    public boolean compression;
+
+    @Param({"65536", "1048576"})
+    public int size;
+
+    private LocalServer server;
+    private URL url;
+
+    /**
+     * Totals the bytes of the responses.
+     * Divide wireBytes by responses for the bytes transferred by each one.
+     */
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    @State(Scope.Thread)
+    public static class Transfer {
+        public long responses;
+        public long wireBytes;
+        public long decodedBytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            responses = 0;
+            wireBytes = 0;
+            decodedBytes = 0;
+        }
+    }
+
+    @Setup
+    public void setUp() throws IOException {
+        server = new LocalServer();
+        url = server.url("/text/" + size);
+    }
+
+    @TearDown
+    public void tearDown() {
+        server.stop();
+    }
+
+    @Benchmark
+    public String read(Transfer transfer) throws IOException {
+        GetRequest request = new GetRequest(url);
+        request.setCompression(compression);
+        String response = request.read();
+        transfer.responses ++;
+        transfer.wireBytes += request.getBytesReceived();
+        transfer.decodedBytes += request.getBytesDecoded();
+        return response;
+    }
+}
@@ -0,0 +1,45 @@
+package org.unfoldingword.tools.http.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.unfoldingword.tools.http.GetRequest;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+
+/**
+ * Measures {@link org.unfoldingword.tools.http.Request#download(File)} throughput
+ */
+@State(Scope.Benchmark)
+public class DownloadBenchmark {
+    @Param({"65536", "8388608", "67108864"})
+    public int size;
+
+    private LocalServer server;
+    private URL url;
+    private File destination;
+
+    @Setup
+    public void setUp() throws IOException {
+        server = new LocalServer();
+        url = server.url("/bytes/" + size);
+        destination = File.createTempFile("download", ".bin");
+    }
+
+    @TearDown
+    public void tearDown() {
+        server.stop();
+        destination.delete();
+    }
+
+    @Benchmark
+    public long download() throws IOException {
+        new GetRequest(url).download(destination);
+        return destination.length();
+    }
+}
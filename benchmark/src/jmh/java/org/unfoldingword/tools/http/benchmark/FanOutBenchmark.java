@@ -0,0 +1,58 @@
+package org.unfoldingword.tools.http.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.unfoldingword.tools.http.GetRequest;
+import org.unfoldingword.tools.http.RequestExecutor;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
+
+/**
+ * Measures issuing many small requests at once through a {@link RequestExecutor}
+ */
+@State(Scope.Benchmark)
+public class FanOutBenchmark {
+    @Param({"16", "128"})
+    public int requests;
+
+    @Param({"4", "16"})
+    public int threads;
+
+    private LocalServer server;
+    private URL url;
+    private RequestExecutor executor;
+
+    @Setup
+    public void setUp() throws IOException {
+        server = new LocalServer();
+        url = server.url("/bytes/4096");
+        executor = new RequestExecutor(threads, threads);
+    }
+
+    @TearDown
+    public void tearDown() {
+        executor.shutdown();
+        server.stop();
+    }
+
+    @Benchmark
+    public int fanOut() throws Exception {
+        List<Future<String>> futures = new ArrayList<>();
+        for(int i = 0; i < requests; i ++) {
+            futures.add(executor.read(new GetRequest(url), null));
+        }
+        int length = 0;
+        for(Future<String> future : futures) {
+            length += future.get().length();
+        }
+        return length;
+    }
+}
@@ -0,0 +1,137 @@
+package org.unfoldingword.tools.http.benchmark;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * An in-process http server the benchmarks run against.
+ *
+ * GET /bytes/{size} responds with a body of the given size.
+ * GET /text/{size} responds with json of roughly the given size, gzipped when the request accepts it.
+ * POST or PUT /sink reads and discards the request body.
+ */
+public class LocalServer {
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final Map<Integer, byte[]> bodies = new ConcurrentHashMap<>();
+    private final Map<Integer, byte[]> texts = new ConcurrentHashMap<>();
+    private final Map<Integer, byte[]> gzippedTexts = new ConcurrentHashMap<>();
+
+    public LocalServer() throws IOException {
+        // otherwise delayed acks on small writes dominate the measurements
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 128);
+        executor = Executors.newFixedThreadPool(16);
+        server.setExecutor(executor);
+        server.createContext("/bytes/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                String path = exchange.getRequestURI().getPath();
+                int size = Integer.parseInt(path.substring("/bytes/".length()));
+                byte[] body = getBody(size);
+                exchange.getResponseHeaders().set("Content-Type", "application/octet-stream");
+                exchange.sendResponseHeaders(200, body.length == 0 ? -1 : body.length);
+                OutputStream out = exchange.getResponseBody();
+                out.write(body);
+                out.close();
+            }
+        });
+        server.createContext("/text/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                String path = exchange.getRequestURI().getPath();
+                int size = Integer.parseInt(path.substring("/text/".length()));
+                String accept = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+                byte[] body;
+                if(accept != null && accept.contains("gzip")) {
+                    body = getGzippedText(size);
+                    exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+                } else {
+                    body = getText(size);
+                }
+                exchange.getResponseHeaders().set("Content-Type", "application/json");
+                exchange.sendResponseHeaders(200, body.length == 0 ? -1 : body.length);
+                OutputStream out = exchange.getResponseBody();
+                out.write(body);
+                out.close();
+            }
+        });
+        server.createContext("/sink", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                InputStream in = exchange.getRequestBody();
+                byte[] buffer = new byte[8192];
+                while (in.read(buffer) != -1) {
+                    // discard
+                }
+                in.close();
+                byte[] body = "ok".getBytes("UTF-8");
+                exchange.sendResponseHeaders(200, body.length);
+                OutputStream out = exchange.getResponseBody();
+                out.write(body);
+                out.close();
+            }
+        });
+        server.start();
+    }
+
+    private byte[] getBody(int size) {
+        byte[] body = bodies.get(size);
+        if(body == null) {
+            body = new byte[size];
+            Arrays.fill(body, (byte) 'a');
+            bodies.put(size, body);
+        }
+        return body;
+    }
+
+    private byte[] getText(int size) throws IOException {
+        byte[] text = texts.get(size);
+        if(text == null) {
+            StringBuilder sb = new StringBuilder();
+            for(int i = 0; sb.length() < size; i ++) {
+                sb.append("{\"slug\":\"gen\",\"chapter\":").append(i).append(",\"title\":\"Genesis\"}\n");
+            }
+            text = sb.toString().getBytes("UTF-8");
+            texts.put(size, text);
+        }
+        return text;
+    }
+
+    private byte[] getGzippedText(int size) throws IOException {
+        byte[] gzipped = gzippedTexts.get(size);
+        if(gzipped == null) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            GZIPOutputStream out = new GZIPOutputStream(bytes);
+            out.write(getText(size));
+            out.close();
+            gzipped = bytes.toByteArray();
+            gzippedTexts.put(size, gzipped);
+        }
+        return gzipped;
+    }
+
+    public URL url(String path) throws MalformedURLException {
+        return new URL("http://127.0.0.1:" + server.getAddress().getPort() + path);
+    }
+
+    public void stop() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+}
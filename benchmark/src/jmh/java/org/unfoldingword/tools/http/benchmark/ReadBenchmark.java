@@ -0,0 +1,65 @@
+package org.unfoldingword.tools.http.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.unfoldingword.tools.http.GetRequest;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+/**
+ * Measures {@link org.unfoldingword.tools.http.Request#read()} at various body sizes
+ * against the byte-at-a-time loop it replaced
+ */
+@State(Scope.Benchmark)
+public class ReadBenchmark {
+    @Param({"1024", "65536", "1048576", "8388608"})
+    public int size;
+
+    private LocalServer server;
+    private URL url;
+
+    @Setup
+    public void setUp() throws IOException {
+        server = new LocalServer();
+        url = server.url("/bytes/" + size);
+    }
+
+    @TearDown
+    public void tearDown() {
+        server.stop();
+    }
+
+    @Benchmark
+    public String read() throws IOException {
+        return new GetRequest(url).read();
+    }
+
+    /**
+     * The read loop as it was before responses were copied in chunks
+     */
+    @Benchmark
+    public String legacyRead() throws IOException {
+        HttpURLConnection connection = (HttpURLConnection)url.openConnection();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        BufferedInputStream in = new BufferedInputStream(connection.getInputStream());
+        try {
+            int n;
+            while ((n = in.read()) != -1) {
+                out.write((byte) n);
+            }
+        } finally {
+            in.close();
+            out.close();
+            connection.disconnect();
+        }
+        return out.toString("UTF-8");
+    }
+}
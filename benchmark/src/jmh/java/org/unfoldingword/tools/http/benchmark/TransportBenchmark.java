@@ -0,0 +1,74 @@
+package org.unfoldingword.tools.http.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.unfoldingword.tools.http.GetRequest;
+import org.unfoldingword.tools.http.NioTransport;
+import org.unfoldingword.tools.http.RequestExecutor;
+import org.unfoldingword.tools.http.Transport;
+import org.unfoldingword.tools.http.UrlConnectionTransport;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
+
+/**
+ * Compares the {@link UrlConnectionTransport} with the {@link NioTransport}
+ * for single requests and for many requests at once
+ */
+@State(Scope.Benchmark)
+public class TransportBenchmark {
+    @Param({"urlconnection", "nio"})
+    public String transport;
+
+    @Param({"4096", "1048576"})
+    public int size;
+
+    private LocalServer server;
+    private URL url;
+    private Transport engine;
+    private RequestExecutor executor;
+
+    @Setup
+    public void setUp() throws IOException {
+        server = new LocalServer();
+        url = server.url("/bytes/" + size);
+        engine = transport.equals("nio") ? new NioTransport(2) : new UrlConnectionTransport();
+        executor = new RequestExecutor(16, 16);
+    }
+
+    @TearDown
+    public void tearDown() {
+        executor.shutdown();
+        if(engine instanceof NioTransport) ((NioTransport)engine).shutdown();
+        server.stop();
+    }
+
+    @Benchmark
+    public int read() throws IOException {
+        GetRequest request = new GetRequest(url);
+        request.setTransport(engine);
+        return request.read().length();
+    }
+
+    @Benchmark
+    public int fanOut() throws Exception {
+        List<Future<String>> futures = new ArrayList<>();
+        for(int i = 0; i < 64; i ++) {
+            GetRequest request = new GetRequest(url);
+            request.setTransport(engine);
+            futures.add(executor.read(request, null));
+        }
+        int length = 0;
+        for(Future<String> future : futures) {
+            length += future.get().length();
+        }
+        return length;
+    }
+}
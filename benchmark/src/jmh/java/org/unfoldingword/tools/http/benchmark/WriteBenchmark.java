@@ -0,0 +1,54 @@
+package org.unfoldingword.tools.http.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.unfoldingword.tools.http.PostRequest;
+import org.unfoldingword.tools.http.PutRequest;
+import org.unfoldingword.tools.http.RequestBody;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.Arrays;
+
+/**
+ * Measures writing POST and PUT bodies
+ */
+@State(Scope.Benchmark)
+public class WriteBenchmark {
+    @Param({"1024", "65536", "1048576"})
+    public int size;
+
+    private LocalServer server;
+    private URL url;
+    private String text;
+    private byte[] bytes;
+
+    @Setup
+    public void setUp() throws IOException {
+        server = new LocalServer();
+        url = server.url("/sink");
+        char[] chars = new char[size];
+        Arrays.fill(chars, 'a');
+        text = new String(chars);
+        bytes = text.getBytes("UTF-8");
+    }
+
+    @TearDown
+    public void tearDown() {
+        server.stop();
+    }
+
+    @Benchmark
+    public String postString() throws IOException {
+        return new PostRequest(url, text).read();
+    }
+
+    @Benchmark
+    public String putBytes() throws IOException {
+        return new PutRequest(url, RequestBody.create(bytes)).read();
+    }
+}
@@ -0,0 +1,385 @@
+package org.unfoldingword.tools.http;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Extracts zip, tar and gzip compressed tar archives from a stream as they are read.
+ * The format is detected from the first bytes of the stream.
+ * Entries that would be written outside of the target directory are rejected.
+ * Files that already exist are only replaced once the whole archive has been read
+ * so a failed extraction removes what it created and leaves existing files as they were.
+ */
+public class ArchiveExtractor {
+    private static final int BLOCK_SIZE = 512;
+    private static final int BUFFER_SIZE = 8192;
+    private static final int MAX_HEADER_SIZE = 64 * 1024; // the largest long name or pax header accepted
+
+    private final BufferPool bufferPool;
+
+    public ArchiveExtractor() {
+        this(BufferPool.getDefault());
+    }
+
+    /**
+     * @param bufferPool the pool that copy buffers are borrowed from
+     */
+    public ArchiveExtractor(BufferPool bufferPool) {
+        this.bufferPool = bufferPool;
+    }
+
+    /**
+     * Extracts an archive into a directory.
+     * The stream is read to the end, including anything after the last entry such as the zip central directory,
+     * before existing files are replaced. The stream is not closed.
+     * @param in the archive stream
+     * @param directory the directory that will receive the archive entries
+     * @return the extracted files
+     * @throws IOException if the archive cannot be read or an entry cannot be written
+     */
+    public List<File> extract(InputStream in, File directory) throws IOException {
+        Changes created = new Changes();
+        List<File> files = new ArrayList<>();
+        byte[] buffer = bufferPool.acquire(BUFFER_SIZE);
+        try {
+            created.mkdirs(directory);
+            File root = directory.getCanonicalFile();
+            InputStream archive = new BufferedInputStream(in, BUFFER_SIZE);
+            byte[] magic = peek(archive, BLOCK_SIZE);
+            if(isZip(magic)) {
+                extractZip(new ZipInputStream(archive), root, buffer, created, files);
+            } else if(isGzip(magic)) {
+                archive = new BufferedInputStream(new GZIPInputStream(archive, BUFFER_SIZE), BUFFER_SIZE);
+                if(!isTar(peek(archive, BLOCK_SIZE))) {
+                    throw new IOException("The compressed stream is not a tar archive");
+                }
+                extractTar(archive, root, buffer, created, files);
+            } else if(isTar(magic)) {
+                extractTar(archive, root, buffer, created, files);
+            } else {
+                throw new IOException("Unrecognized archive format");
+            }
+            while(in.read(buffer) != -1) {
+                // discard
+            }
+            created.commit();
+        } catch (IOException e) {
+            created.rollback();
+            throw e;
+        } finally {
+            bufferPool.release(buffer);
+        }
+        return files;
+    }
+
+    /**
+     * Extracts the entries of a zip archive
+     */
+    private void extractZip(ZipInputStream zip, File root, byte[] buffer, Changes created, List<File> files) throws IOException {
+        ZipEntry entry;
+        while((entry = zip.getNextEntry()) != null) {
+            if(entry.isDirectory()) {
+                File dir = resolve(root, entry.getName(), true);
+                created.mkdirs(dir);
+            } else {
+                File file = resolve(root, entry.getName(), false);
+                writeEntry(zip, -1, file, buffer, created);
+                files.add(file);
+            }
+            zip.closeEntry();
+        }
+    }
+
+    /**
+     * Extracts the entries of a tar archive.
+     * Regular files and directories are extracted, links and special files are skipped.
+     * GNU long names and pax path headers are supported.
+     */
+    private void extractTar(InputStream in, File root, byte[] buffer, Changes created, List<File> files) throws IOException {
+        byte[] header = new byte[BLOCK_SIZE];
+        String nextName = null;
+        while(true) {
+            if(!readBlock(in, header) || isZeroBlock(header)) break;
+            String name = nextName != null ? nextName : readTarName(header);
+            nextName = null;
+            long size = parseTarNumber(header, 124, 12);
+            if(size < 0) throw new IOException("Invalid tar header");
+            long padding = (BLOCK_SIZE - size % BLOCK_SIZE) % BLOCK_SIZE;
+            char type = (char)header[156];
+
+            if(type == 'L' || type == 'x') {
+                // the name of the next entry
+                byte[] data = readBytes(in, size);
+                nextName = type == 'L' ? readString(data, 0, data.length) : readPaxPath(data);
+            } else if(type == '5') {
+                created.mkdirs(resolve(root, name, true));
+            } else if(type == '0' || type == '\0' || type == '7') {
+                File file = resolve(root, name, false);
+                writeEntry(in, size, file, buffer, created);
+                files.add(file);
+            } else {
+                skipFully(in, size);
+            }
+            skipFully(in, padding);
+        }
+    }
+
+    /**
+     * Writes an archive entry to a file
+     * @param in the archive stream positioned at the entry data
+     * @param size the size of the entry or -1 to read until the end of the stream
+     * @param file the destination file
+     */
+    private void writeEntry(InputStream in, long size, File file, byte[] buffer, Changes created) throws IOException {
+        created.mkdirs(file.getParentFile());
+        OutputStream out = new FileOutputStream(created.open(file));
+        try {
+            long remaining = size;
+            while(size < 0 || remaining > 0) {
+                int length = size < 0 ? buffer.length : (int)Math.min(buffer.length, remaining);
+                int n = in.read(buffer, 0, length);
+                if(n == -1) {
+                    if(size < 0) break;
+                    throw new EOFException("Unexpected end of archive in " + file.getName());
+                }
+                out.write(buffer, 0, n);
+                remaining -= n;
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Resolves an entry name within the target directory
+     * @param root the canonical target directory
+     * @param name the entry name
+     * @param directory true if the entry is a directory
+     * @return the entry file
+     * @throws IOException if the entry is outside of the target directory
+     */
+    private static File resolve(File root, String name, boolean directory) throws IOException {
+        File file = new File(root, name).getCanonicalFile();
+        if(directory && file.equals(root)) return file;
+        if(!file.getPath().startsWith(root.getPath() + File.separator)) {
+            throw new IOException("The archive entry " + name + " is outside of the target directory");
+        }
+        return file;
+    }
+
+    /**
+     * Reads the start of a stream without consuming it
+     */
+    private static byte[] peek(InputStream in, int length) throws IOException {
+        in.mark(length);
+        byte[] bytes = new byte[length];
+        int total = 0;
+        int n;
+        while(total < length && (n = in.read(bytes, total, length - total)) != -1) {
+            total += n;
+        }
+        in.reset();
+        return Arrays.copyOf(bytes, total);
+    }
+
+    private static boolean isZip(byte[] magic) {
+        return magic.length >= 4 && magic[0] == 'P' && magic[1] == 'K'
+                && ((magic[2] == 3 && magic[3] == 4) || (magic[2] == 5 && magic[3] == 6));
+    }
+
+    private static boolean isGzip(byte[] magic) {
+        return magic.length >= 2 && (magic[0] & 0xff) == 0x1f && (magic[1] & 0xff) == 0x8b;
+    }
+
+    private static boolean isTar(byte[] magic) {
+        return magic.length >= 262 && readString(magic, 257, 5).equals("ustar");
+    }
+
+    /**
+     * Reads a whole tar block
+     * @return false if the stream ended before the block
+     */
+    private static boolean readBlock(InputStream in, byte[] block) throws IOException {
+        int total = 0;
+        while(total < block.length) {
+            int n = in.read(block, total, block.length - total);
+            if(n == -1) {
+                if(total == 0) return false;
+                throw new EOFException("Truncated tar header");
+            }
+            total += n;
+        }
+        return true;
+    }
+
+    private static boolean isZeroBlock(byte[] block) {
+        for(byte b : block) {
+            if(b != 0) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Reads the entry name including the ustar prefix
+     */
+    private static String readTarName(byte[] header) {
+        String name = readString(header, 0, 100);
+        String prefix = readString(header, 345, 155);
+        return prefix.isEmpty() ? name : prefix + "/" + name;
+    }
+
+    /**
+     * Reads a number field which is either octal or base-256 for large values
+     */
+    private static long parseTarNumber(byte[] header, int offset, int length) throws IOException {
+        if((header[offset] & 0x80) != 0) {
+            long value = header[offset] & 0x7f;
+            for(int i = offset + 1; i < offset + length; i ++) {
+                value = (value << 8) | (header[i] & 0xff);
+            }
+            return value;
+        }
+        String octal = readString(header, offset, length).trim();
+        if(octal.isEmpty()) return 0;
+        try {
+            return Long.parseLong(octal, 8);
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid tar header");
+        }
+    }
+
+    /**
+     * Reads the path from pax extended header records in the form "length key=value\n"
+     */
+    private static String readPaxPath(byte[] data) throws IOException {
+        String records = new String(data, "UTF-8");
+        for(String record : records.split("\n")) {
+            int space = record.indexOf(' ');
+            if(space > 0 && record.startsWith("path=", space + 1)) {
+                return record.substring(space + 1 + "path=".length());
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Reads a NUL terminated string
+     */
+    private static String readString(byte[] bytes, int offset, int length) {
+        int end = offset;
+        while(end < offset + length && end < bytes.length && bytes[end] != 0) end ++;
+        try {
+            return new String(bytes, offset, end - offset, "UTF-8");
+        } catch (IOException e) {
+            // UTF-8 is always supported
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static byte[] readBytes(InputStream in, long size) throws IOException {
+        if(size > MAX_HEADER_SIZE) throw new IOException("The tar header is too large");
+        byte[] data = new byte[(int)size];
+        int total = 0;
+        while(total < data.length) {
+            int n = in.read(data, total, data.length - total);
+            if(n == -1) throw new EOFException("Unexpected end of archive");
+            total += n;
+        }
+        return data;
+    }
+
+    private static void skipFully(InputStream in, long count) throws IOException {
+        while(count > 0) {
+            long n = in.skip(count);
+            if(n <= 0) {
+                if(in.read() == -1) throw new EOFException("Unexpected end of archive");
+                n = 1;
+            }
+            count -= n;
+        }
+    }
+
+    /**
+     * Tracks what an extraction writes so a failed extraction can be undone.
+     * Files and directories that did not exist are created in place.
+     * Existing files are written to a temporary file next to them and only replaced on commit.
+     */
+    private static class Changes {
+        private final List<File> created = new ArrayList<>();
+        private final Set<File> owned = new HashSet<>();
+        private final Map<File, File> replacements = new LinkedHashMap<>();
+
+        /**
+         * Creates a directory and its parents, remembering which ones did not exist before
+         */
+        void mkdirs(File dir) throws IOException {
+            if(dir == null || dir.isDirectory()) return;
+            mkdirs(dir.getParentFile());
+            if(!dir.mkdir() && !dir.isDirectory()) {
+                throw new IOException("Could not create " + dir);
+            }
+            created.add(dir);
+            owned.add(dir);
+        }
+
+        /**
+         * Returns where the data of an entry should be written
+         * @param file the file the entry will end up in
+         * @return the file itself if the extraction owns it or a temporary file if it existed before
+         */
+        File open(File file) throws IOException {
+            if(owned.contains(file)) return file;
+            File staged = replacements.get(file);
+            if(staged != null) return staged;
+            if(!file.exists()) {
+                created.add(file);
+                owned.add(file);
+                return file;
+            }
+            staged = File.createTempFile(".extract", ".tmp", file.getParentFile());
+            replacements.put(file, staged);
+            return staged;
+        }
+
+        /**
+         * Moves the new content of existing files into place
+         */
+        void commit() throws IOException {
+            for(Map.Entry<File, File> replacement : replacements.entrySet()) {
+                File file = replacement.getKey();
+                File staged = replacement.getValue();
+                if(!staged.renameTo(file) && !(file.delete() && staged.renameTo(file))) {
+                    throw new IOException("Could not replace " + file);
+                }
+            }
+            replacements.clear();
+        }
+
+        /**
+         * Removes what the extraction wrote starting with the deepest entries
+         */
+        void rollback() {
+            for(File staged : replacements.values()) {
+                staged.delete();
+            }
+            for(int i = created.size() - 1; i >= 0; i --) {
+                created.get(i).delete();
+            }
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package org.unfoldingword.tools.http;
+
+import java.io.InterruptedIOException;
+
+/**
+ * Limits throughput with a token bucket.
+ * Tokens are added at the configured rate and every byte transferred consumes one.
+ * Transfers that run out of tokens wait until the bucket has refilled.
+ * A limiter may be shared by several requests to cap their combined throughput.
+ */
+public class BandwidthLimiter {
+    private static final long MIN_BURST = 8192;
+
+    private long rate;
+    private double tokens;
+    private long lastRefill = System.nanoTime();
+
+    /**
+     * Creates a new limiter
+     * @param bytesPerSecond the maximum throughput or 0 for no limit
+     */
+    public BandwidthLimiter(long bytesPerSecond) {
+        setRate(bytesPerSecond);
+    }
+
+    /**
+     * Changes the maximum throughput
+     * @param bytesPerSecond the maximum throughput or 0 for no limit
+     */
+    public synchronized void setRate(long bytesPerSecond) {
+        this.rate = Math.max(0, bytesPerSecond);
+        this.tokens = Math.min(tokens, getBurst());
+    }
+
+    /**
+     * Returns the maximum throughput
+     * @return the rate in bytes per second or 0 if there is no limit
+     */
+    public synchronized long getRate() {
+        return rate;
+    }
+
+    /**
+     * Takes tokens for a transfer, waiting until enough are available.
+     * Large chunks borrow against future tokens so they never wait forever.
+     * @param bytes the number of bytes about to be transferred
+     * @throws InterruptedIOException if the thread was interrupted while waiting
+     */
+    public void acquire(int bytes) throws InterruptedIOException {
+        long waitNanos;
+        synchronized (this) {
+            if(rate <= 0) return;
+            long now = System.nanoTime();
+            tokens = Math.min(getBurst(), tokens + (now - lastRefill) * rate / 1e9);
+            lastRefill = now;
+            tokens -= bytes;
+            if(tokens >= 0) return;
+            waitNanos = (long)(-tokens * 1e9 / rate);
+        }
+        try {
+            Thread.sleep(waitNanos / 1000000, (int)(waitNanos % 1000000));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for bandwidth");
+        }
+    }
+
+    /**
+     * Returns how many bytes may be sent at once after an idle period
+     */
+    private long getBurst() {
+        return Math.max(MIN_BURST, rate / 4);
+    }
+}
@@ -0,0 +1,148 @@
+package org.unfoldingword.tools.http;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Recycles the byte arrays used to transfer request and response bodies.
+ * Buffers are grouped into size classes and requests are served from the smallest class that fits.
+ * The pool never holds more than a fixed number of bytes, buffers released beyond that are left to the garbage collector.
+ * A pool may be shared by any number of threads.
+ */
+public class BufferPool {
+    private static final int[] DEFAULT_SIZES = {4096, 8192, 65536};
+    private static final long DEFAULT_MAX_POOLED = 512 * 1024;
+    private static volatile BufferPool defaultPool = new BufferPool(DEFAULT_MAX_POOLED, DEFAULT_SIZES);
+
+    private final int[] sizes;
+    private final List<ArrayDeque<byte[]>> classes;
+    private final long maxPooled;
+    private long pooled = 0;
+    private long allocations = 0;
+    private long reuses = 0;
+
+    /**
+     * Creates a new buffer pool
+     * @param maxPooled the maximum number of bytes held by idle buffers
+     * @param sizes the buffer size classes
+     */
+    public BufferPool(long maxPooled, int... sizes) {
+        if(sizes.length == 0) throw new IllegalArgumentException("At least one buffer size is required");
+        this.sizes = Arrays.copyOf(sizes, sizes.length);
+        Arrays.sort(this.sizes);
+        if(this.sizes[0] <= 0) throw new IllegalArgumentException("Buffer sizes must be positive");
+        this.maxPooled = maxPooled;
+        this.classes = new ArrayList<>(this.sizes.length);
+        for(int i = 0; i < this.sizes.length; i ++) {
+            classes.add(new ArrayDeque<byte[]>());
+        }
+    }
+
+    /**
+     * Returns the pool used by requests that have not been given their own pool
+     * @return the default pool
+     */
+    public static BufferPool getDefault() {
+        return defaultPool;
+    }
+
+    /**
+     * Replaces the pool used by requests that have not been given their own pool
+     * @param pool the new default pool
+     */
+    public static void setDefault(BufferPool pool) {
+        if(pool == null) throw new IllegalArgumentException("The default pool cannot be null");
+        defaultPool = pool;
+    }
+
+    /**
+     * Borrows a buffer.
+     * The buffer may be larger than requested and may contain data from a previous use.
+     * Requests larger than the largest size class are allocated and never pooled.
+     * @param minSize the minimum size of the buffer
+     * @return a buffer that should be given back with {@link #release(byte[])}
+     */
+    public byte[] acquire(int minSize) {
+        int index = indexOf(minSize);
+        if(index >= 0) {
+            synchronized (this) {
+                byte[] buffer = classes.get(index).pollFirst();
+                if(buffer != null) {
+                    pooled -= buffer.length;
+                    reuses ++;
+                    return buffer;
+                }
+                allocations ++;
+            }
+            return new byte[sizes[index]];
+        }
+        synchronized (this) {
+            allocations ++;
+        }
+        return new byte[minSize];
+    }
+
+    /**
+     * Gives a buffer back to the pool.
+     * The buffer must not be used after it has been released.
+     * @param buffer the buffer or null
+     */
+    public void release(byte[] buffer) {
+        if(buffer == null) return;
+        int index = Arrays.binarySearch(sizes, buffer.length);
+        if(index < 0) return;
+        synchronized (this) {
+            if(pooled + buffer.length > maxPooled) return;
+            classes.get(index).offerFirst(buffer);
+            pooled += buffer.length;
+        }
+    }
+
+    /**
+     * Returns the number of bytes held by idle buffers
+     * @return the pooled bytes
+     */
+    public synchronized long getPooledBytes() {
+        return pooled;
+    }
+
+    /**
+     * Returns the number of buffers that had to be allocated
+     * @return the number of allocations
+     */
+    public synchronized long getAllocationCount() {
+        return allocations;
+    }
+
+    /**
+     * Returns the number of buffers that were served from the pool
+     * @return the number of reuses
+     */
+    public synchronized long getReuseCount() {
+        return reuses;
+    }
+
+    /**
+     * Drops all idle buffers
+     */
+    public synchronized void clear() {
+        for(ArrayDeque<byte[]> queue : classes) {
+            queue.clear();
+        }
+        pooled = 0;
+    }
+
+    /**
+     * Finds the smallest size class that can hold the buffer
+     * @param minSize the minimum size of the buffer
+     * @return the index of the size class or -1 if the buffer is larger than every class
+     */
+    private int indexOf(int minSize) {
+        for(int i = 0; i < sizes.length; i ++) {
+            if(sizes[i] >= minSize) return i;
+        }
+        return -1;
+    }
+}
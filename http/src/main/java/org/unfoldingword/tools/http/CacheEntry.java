@@ -0,0 +1,57 @@
+package org.unfoldingword.tools.http;
+
+/**
+ * The validators and size of a cached response
+ */
+public class CacheEntry {
+    private final String etag;
+    private final String lastModified;
+    private final String contentType;
+    private final long length;
+
+    /**
+     * Creates a new cache entry
+     * @param etag the ETag of the response
+     * @param lastModified the Last-Modified date of the response
+     * @param contentType the content type of the response
+     * @param length the size of the body or -1 if unknown
+     */
+    public CacheEntry(String etag, String lastModified, String contentType, long length) {
+        this.etag = etag;
+        this.lastModified = lastModified;
+        this.contentType = contentType;
+        this.length = length;
+    }
+
+    /**
+     * Returns the ETag of the response
+     * @return the ETag or null
+     */
+    public String getETag() {
+        return etag;
+    }
+
+    /**
+     * Returns the Last-Modified date of the response
+     * @return the date or null
+     */
+    public String getLastModified() {
+        return lastModified;
+    }
+
+    /**
+     * Returns the content type of the response
+     * @return the content type or null
+     */
+    public String getContentType() {
+        return contentType;
+    }
+
+    /**
+     * Returns the size of the body
+     * @return the size or -1 if unknown
+     */
+    public long getLength() {
+        return length;
+    }
+}
@@ -0,0 +1,38 @@
+package org.unfoldingword.tools.http;
+
+import java.io.IOException;
+
+/**
+ * Thrown when downloaded content does not match its expected digest
+ */
+public class ChecksumException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    private final String algorithm;
+    private final String expected;
+    private final String actual;
+
+    /**
+     * @param algorithm the digest algorithm
+     * @param expected the expected digest
+     * @param actual the digest of the downloaded content in hex
+     */
+    public ChecksumException(String algorithm, String expected, String actual) {
+        super(algorithm + " mismatch: expected " + expected + " but was " + actual);
+        this.algorithm = algorithm;
+        this.expected = expected;
+        this.actual = actual;
+    }
+
+    public String getAlgorithm() {
+        return algorithm;
+    }
+
+    public String getExpected() {
+        return expected;
+    }
+
+    public String getActual() {
+        return actual;
+    }
+}
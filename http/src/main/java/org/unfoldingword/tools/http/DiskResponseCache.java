@@ -0,0 +1,359 @@
+package org.unfoldingword.tools.http;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * A response cache stored on disk.
+ * The least recently used responses are evicted once the cache grows beyond its size limit.
+ * Small responses are also kept in memory so hot entries can be served without touching the disk.
+ */
+public class DiskResponseCache extends ResponseCache {
+    private static final String BODY_EXTENSION = ".body";
+    private static final String META_EXTENSION = ".meta";
+    private static final String TEMP_EXTENSION = ".tmp";
+
+    private final File directory;
+    private final long maxSize;
+    private final long maxMemorySize;
+    private final long maxMemoryEntrySize;
+    private long size = 0;
+    private long memorySize = 0;
+    // ordered from least to most recently used
+    private final LinkedHashMap<String, Long> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<String, MemoryEntry> memoryEntries = new LinkedHashMap<>(16, 0.75f, true);
+    private int tempCount = 0;
+
+    /**
+     * Opens a disk cache
+     * @param directory the directory where responses will be stored
+     * @param maxSize the maximum number of bytes stored on disk
+     * @param maxMemorySize the maximum number of bytes kept in memory
+     */
+    public DiskResponseCache(File directory, long maxSize, long maxMemorySize) {
+        this.directory = directory;
+        this.maxSize = maxSize;
+        this.maxMemorySize = maxMemorySize;
+        this.maxMemoryEntrySize = maxMemorySize / 8;
+        directory.mkdirs();
+        load();
+    }
+
+    /**
+     * Rebuilds the index from the files on disk
+     */
+    private synchronized void load() {
+        File[] files = directory.listFiles();
+        if(files == null) return;
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                long diff = a.lastModified() - b.lastModified();
+                return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+            }
+        });
+        for(File file : files) {
+            String name = file.getName();
+            if(name.endsWith(TEMP_EXTENSION)) {
+                // left behind by an interrupted write
+                file.delete();
+            } else if(name.endsWith(BODY_EXTENSION)) {
+                String hash = name.substring(0, name.length() - BODY_EXTENSION.length());
+                if(new File(directory, hash + META_EXTENSION).exists()) {
+                    entries.put(hash, file.length());
+                    size += file.length();
+                } else {
+                    file.delete();
+                }
+            }
+        }
+        trim();
+    }
+
+    @Override
+    public synchronized CacheEntry get(String key) throws IOException {
+        String hash = hash(key);
+        MemoryEntry memoryEntry = memoryEntries.get(hash);
+        if(memoryEntry != null) {
+            entries.get(hash);
+            return memoryEntry.entry;
+        }
+        if(!entries.containsKey(hash)) return null;
+
+        File meta = new File(directory, hash + META_EXTENSION);
+        Properties properties = new Properties();
+        FileInputStream in = null;
+        try {
+            in = new FileInputStream(meta);
+            properties.load(in);
+        } catch (IOException e) {
+            removeHash(hash);
+            return null;
+        } finally {
+            if(in != null) in.close();
+        }
+        new File(directory, hash + BODY_EXTENSION).setLastModified(System.currentTimeMillis());
+        return new CacheEntry(properties.getProperty("etag"),
+                properties.getProperty("last-modified"),
+                properties.getProperty("content-type"),
+                Long.parseLong(properties.getProperty("length", "-1")));
+    }
+
+    @Override
+    public synchronized InputStream openBody(String key) throws IOException {
+        String hash = hash(key);
+        MemoryEntry memoryEntry = memoryEntries.get(hash);
+        if(memoryEntry != null) {
+            return new ByteArrayInputStream(memoryEntry.body);
+        }
+        Long length = entries.get(hash);
+        if(length == null) return null;
+
+        File body = new File(directory, hash + BODY_EXTENSION);
+        if(!body.exists()) {
+            removeHash(hash);
+            return null;
+        }
+        if(length > maxMemoryEntrySize) {
+            return new FileInputStream(body);
+        }
+
+        // promote small entries into memory
+        byte[] bytes = new byte[length.intValue()];
+        FileInputStream in = new FileInputStream(body);
+        try {
+            int offset = 0;
+            int n;
+            while(offset < bytes.length && (n = in.read(bytes, offset, bytes.length - offset)) != -1) {
+                offset += n;
+            }
+            if(offset < bytes.length) {
+                removeHash(hash);
+                return null;
+            }
+        } finally {
+            in.close();
+        }
+        CacheEntry entry = get(key);
+        if(entry != null) {
+            putInMemory(hash, entry, bytes);
+        }
+        return new ByteArrayInputStream(bytes);
+    }
+
+    @Override
+    public synchronized Editor put(String key, CacheEntry entry) throws IOException {
+        String hash = hash(key);
+        File temp = new File(directory, hash + "." + (tempCount ++) + TEMP_EXTENSION);
+        return new DiskEditor(hash, entry, temp);
+    }
+
+    @Override
+    public synchronized void remove(String key) throws IOException {
+        removeHash(hash(key));
+    }
+
+    /**
+     * Returns the number of bytes stored on disk
+     * @return the cache size
+     */
+    public synchronized long getSize() {
+        return size;
+    }
+
+    /**
+     * Returns the number of bytes kept in memory
+     * @return the memory size
+     */
+    public synchronized long getMemorySize() {
+        return memorySize;
+    }
+
+    /**
+     * Moves a completed body into place and records it in the index
+     */
+    private synchronized void commit(String hash, CacheEntry entry, File temp, byte[] bytes) throws IOException {
+        removeHash(hash);
+
+        File meta = new File(directory, hash + META_EXTENSION);
+        Properties properties = new Properties();
+        if(entry.getETag() != null) properties.setProperty("etag", entry.getETag());
+        if(entry.getLastModified() != null) properties.setProperty("last-modified", entry.getLastModified());
+        if(entry.getContentType() != null) properties.setProperty("content-type", entry.getContentType());
+        properties.setProperty("length", Long.toString(temp.length()));
+        FileOutputStream out = new FileOutputStream(meta);
+        try {
+            properties.store(out, null);
+        } finally {
+            out.close();
+        }
+
+        File body = new File(directory, hash + BODY_EXTENSION);
+        if(!temp.renameTo(body)) {
+            temp.delete();
+            meta.delete();
+            throw new IOException("Could not store the cached response");
+        }
+        entries.put(hash, body.length());
+        size += body.length();
+        if(bytes != null) {
+            putInMemory(hash, new CacheEntry(entry.getETag(), entry.getLastModified(), entry.getContentType(), bytes.length), bytes);
+        }
+        trim();
+    }
+
+    /**
+     * Keeps a small response in memory
+     */
+    private void putInMemory(String hash, CacheEntry entry, byte[] bytes) {
+        MemoryEntry previous = memoryEntries.put(hash, new MemoryEntry(entry, bytes));
+        if(previous != null) memorySize -= previous.body.length;
+        memorySize += bytes.length;
+        Iterator<Map.Entry<String, MemoryEntry>> iterator = memoryEntries.entrySet().iterator();
+        while(memorySize > maxMemorySize && iterator.hasNext()) {
+            memorySize -= iterator.next().getValue().body.length;
+            iterator.remove();
+        }
+    }
+
+    /**
+     * Evicts the least recently used responses until the cache fits within its size limit
+     */
+    private void trim() {
+        List<String> evicted = new ArrayList<>();
+        Iterator<Map.Entry<String, Long>> iterator = entries.entrySet().iterator();
+        long remaining = size;
+        while(remaining > maxSize && iterator.hasNext()) {
+            Map.Entry<String, Long> entry = iterator.next();
+            remaining -= entry.getValue();
+            evicted.add(entry.getKey());
+        }
+        for(String hash : evicted) {
+            removeHash(hash);
+        }
+    }
+
+    /**
+     * Removes a response from memory and disk
+     */
+    private void removeHash(String hash) {
+        Long length = entries.remove(hash);
+        if(length != null) size -= length;
+        MemoryEntry memoryEntry = memoryEntries.remove(hash);
+        if(memoryEntry != null) memorySize -= memoryEntry.body.length;
+        new File(directory, hash + BODY_EXTENSION).delete();
+        new File(directory, hash + META_EXTENSION).delete();
+    }
+
+    /**
+     * Converts a key into a safe file name
+     */
+    private static String hash(String key) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            byte[] bytes = digest.digest(key.getBytes("UTF-8"));
+            StringBuilder sb = new StringBuilder();
+            for(byte b : bytes) {
+                sb.append(String.format("%02x", b & 0xff));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static class MemoryEntry {
+        private final CacheEntry entry;
+        private final byte[] body;
+
+        MemoryEntry(CacheEntry entry, byte[] body) {
+            this.entry = entry;
+            this.body = body;
+        }
+    }
+
+    /**
+     * Writes a body to a temporary file and keeps a copy in memory if it is small enough
+     */
+    private class DiskEditor implements Editor {
+        private final String hash;
+        private final CacheEntry entry;
+        private final File temp;
+        private final OutputStream out;
+        private ByteArrayOutputStream memoryCopy = new ByteArrayOutputStream();
+        private boolean done = false;
+
+        DiskEditor(String hash, CacheEntry entry, File temp) throws IOException {
+            this.hash = hash;
+            this.entry = entry;
+            this.temp = temp;
+            final FileOutputStream file = new FileOutputStream(temp);
+            this.out = new OutputStream() {
+                @Override
+                public void write(int b) throws IOException {
+                    write(new byte[]{(byte) b}, 0, 1);
+                }
+
+                @Override
+                public void write(byte[] buffer, int offset, int length) throws IOException {
+                    file.write(buffer, offset, length);
+                    if(memoryCopy != null) {
+                        if(memoryCopy.size() + length > maxMemoryEntrySize) {
+                            memoryCopy = null;
+                        } else {
+                            memoryCopy.write(buffer, offset, length);
+                        }
+                    }
+                }
+
+                @Override
+                public void close() throws IOException {
+                    file.close();
+                }
+            };
+        }
+
+        @Override
+        public OutputStream getOutputStream() {
+            return out;
+        }
+
+        @Override
+        public void commit() throws IOException {
+            if(done) return;
+            done = true;
+            out.close();
+            DiskResponseCache.this.commit(hash, entry, temp, memoryCopy != null ? memoryCopy.toByteArray() : null);
+        }
+
+        @Override
+        public void abort() {
+            if(done) return;
+            done = true;
+            try {
+                out.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            temp.delete();
+        }
+    }
+}
@@ -0,0 +1,192 @@
+package org.unfoldingword.tools.http;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+
+/**
+ * Controls how connections are kept open and reused between requests.
+ * {@link HttpURLConnection} keeps idle connections in a pool but a connection only goes back to the pool
+ * once its response, including an error response, has been read to the end and closed.
+ * Requests use the policy to drain what is left of a response before releasing the connection
+ * and only disconnect when the connection cannot be reused.
+ *
+ * The idle connection limit and keep-alive duration are used by the {@link NioTransport}.
+ * The platform pool is only configured through the JVM-wide http.keepAlive, http.maxConnections
+ * and http.keepAliveDuration system properties, so they are left alone unless the app calls
+ * {@link #applySystemProperties()}. Those properties affect every {@link HttpURLConnection} in the process,
+ * not just these requests, and the platform reads them once when its pool is first used
+ * so changing them after a connection has been opened has no effect.
+ */
+public class KeepAlivePolicy {
+    private static final int DRAIN_BUFFER_SIZE = 4096;
+    private static volatile KeepAlivePolicy defaultPolicy = new KeepAlivePolicy();
+
+    private volatile boolean enabled = true;
+    private volatile int maxIdleConnections = 5;
+    private volatile long keepAliveMillis = 5 * 60 * 1000;
+    private volatile long maxDrainBytes = 64 * 1024;
+
+    /**
+     * Returns the policy used by all requests
+     * @return the default policy
+     */
+    public static KeepAlivePolicy getDefault() {
+        return defaultPolicy;
+    }
+
+    /**
+     * Replaces the policy used by all requests
+     * @param policy the new default policy
+     */
+    public static void setDefault(KeepAlivePolicy policy) {
+        if(policy == null) throw new IllegalArgumentException("The default policy cannot be null");
+        defaultPolicy = policy;
+    }
+
+    /**
+     * Enables or disables connection reuse.
+     * When disabled requests ask the server to close the connection and disconnect once they are done.
+     * @param enabled true if connections may be reused
+     */
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /**
+     * Checks if connections may be reused
+     * @return true if keep-alive is enabled
+     */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Sets how many idle connections are kept open for each host
+     * @param maxIdleConnections the maximum number of idle connections per host
+     */
+    public void setMaxIdleConnections(int maxIdleConnections) {
+        if(maxIdleConnections < 1) throw new IllegalArgumentException("At least one idle connection must be allowed");
+        this.maxIdleConnections = maxIdleConnections;
+    }
+
+    /**
+     * Returns how many idle connections are kept open for each host
+     * @return the maximum number of idle connections per host
+     */
+    public int getMaxIdleConnections() {
+        return maxIdleConnections;
+    }
+
+    /**
+     * Sets how long an idle connection is kept open.
+     * The platform pool on Android honors this once {@link #applySystemProperties()} is called.
+     * Desktop JVMs use the server's Keep-Alive header or their own default instead.
+     * @param keepAliveMillis the idle time in milliseconds
+     */
+    public void setKeepAliveDuration(long keepAliveMillis) {
+        if(keepAliveMillis < 0) throw new IllegalArgumentException("The keep-alive duration cannot be negative");
+        this.keepAliveMillis = keepAliveMillis;
+    }
+
+    /**
+     * Returns how long an idle connection is kept open
+     * @return the idle time in milliseconds
+     */
+    public long getKeepAliveDuration() {
+        return keepAliveMillis;
+    }
+
+    /**
+     * Sets how much of an unread response will be drained so its connection can be reused.
+     * Connections with more than this left to read are disconnected instead.
+     * @param maxDrainBytes the number of bytes
+     */
+    public void setMaxDrainBytes(long maxDrainBytes) {
+        if(maxDrainBytes < 0) throw new IllegalArgumentException("The drain limit cannot be negative");
+        this.maxDrainBytes = maxDrainBytes;
+    }
+
+    /**
+     * Returns how much of an unread response will be drained
+     * @return the number of bytes
+     */
+    public long getMaxDrainBytes() {
+        return maxDrainBytes;
+    }
+
+    /**
+     * Configures the platform connection pool by setting the http.keepAlive, http.maxConnections
+     * and http.keepAliveDuration system properties.
+     * This changes every {@link HttpURLConnection} in the process and must be called before
+     * the first connection is opened because the platform only reads the properties once.
+     */
+    public void applySystemProperties() {
+        System.setProperty("http.keepAlive", Boolean.toString(enabled));
+        System.setProperty("http.maxConnections", Integer.toString(maxIdleConnections));
+        System.setProperty("http.keepAliveDuration", Long.toString(keepAliveMillis));
+    }
+
+    /**
+     * Prepares a connection before it is sent
+     * @param connection the connection
+     */
+    void prepare(HttpURLConnection connection) {
+        if(!enabled) connection.setRequestProperty("Connection", "close");
+    }
+
+    /**
+     * Releases a connection once the caller is done with it.
+     * Whatever is left of the response is read and closed so the connection can go back to the pool.
+     * @param connection the connection
+     * @param in the open response stream or null to drain the connection's own stream
+     */
+    void release(HttpURLConnection connection, InputStream in) {
+        boolean reusable = enabled;
+        try {
+            if(in == null && enabled) {
+                if(connection.getResponseCode() >= 400) {
+                    in = connection.getErrorStream();
+                } else {
+                    in = connection.getInputStream();
+                }
+            }
+            if(in != null && enabled) {
+                reusable = drain(in);
+            }
+        } catch (IOException e) {
+            reusable = false;
+        } finally {
+            if(in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    reusable = false;
+                }
+            }
+            if(!reusable) connection.disconnect();
+        }
+    }
+
+    /**
+     * Reads a stream to the end unless there is more left than the drain limit
+     * @param in the stream
+     * @return true if the end of the stream was reached
+     * @throws IOException
+     */
+    private boolean drain(InputStream in) throws IOException {
+        BufferPool pool = BufferPool.getDefault();
+        byte[] buffer = pool.acquire(DRAIN_BUFFER_SIZE);
+        try {
+            long remaining = maxDrainBytes;
+            while(true) {
+                int n = in.read(buffer, 0, (int)Math.min(buffer.length, remaining + 1));
+                if(n == -1) return true;
+                remaining -= n;
+                if(remaining < 0) return false;
+            }
+        } finally {
+            pool.release(buffer);
+        }
+    }
+}
@@ -0,0 +1,233 @@
+package org.unfoldingword.tools.http;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Collects request metrics in memory grouped by host.
+ * Durations are kept in histograms so slow endpoints can be found without storing every request.
+ * A single aggregator can be shared by many requests.
+ */
+public class MetricsAggregator implements RequestMetricsListener {
+    private final Map<String, HostMetrics> hosts = new LinkedHashMap<>();
+
+    @Override
+    public void onRequestComplete(RequestMetrics metrics) {
+        HostMetrics host;
+        synchronized (hosts) {
+            host = hosts.get(metrics.getHost());
+            if(host == null) {
+                host = new HostMetrics(metrics.getHost());
+                hosts.put(metrics.getHost(), host);
+            }
+        }
+        host.record(metrics);
+    }
+
+    /**
+     * Returns the metrics of every host that has been seen
+     * @return the host metrics
+     */
+    public List<HostMetrics> getHosts() {
+        synchronized (hosts) {
+            return new ArrayList<>(hosts.values());
+        }
+    }
+
+    /**
+     * Returns the metrics of a single host
+     * @param host the host and port e.g. "example.com:443"
+     * @return the host metrics or null if no requests were sent to the host
+     */
+    public HostMetrics getHost(String host) {
+        synchronized (hosts) {
+            return hosts.get(host);
+        }
+    }
+
+    /**
+     * Discards all collected metrics
+     */
+    public void reset() {
+        synchronized (hosts) {
+            hosts.clear();
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        for(HostMetrics host : getHosts()) {
+            builder.append(host).append("\n");
+        }
+        return builder.toString();
+    }
+
+    /**
+     * The metrics of all the requests sent to a single host
+     */
+    public static class HostMetrics {
+        private final String host;
+        private long requests = 0;
+        private long failures = 0;
+        private long retries = 0;
+        private long cacheHits = 0;
+        private long bytesSent = 0;
+        private long bytesReceived = 0;
+        private final Histogram connect = new Histogram();
+        private final Histogram timeToFirstByte = new Histogram();
+        private final Histogram transfer = new Histogram();
+        private final Histogram total = new Histogram();
+
+        HostMetrics(String host) {
+            this.host = host;
+        }
+
+        synchronized void record(RequestMetrics metrics) {
+            requests ++;
+            if(metrics.getError() != null) failures ++;
+            retries += Math.max(0, metrics.getAttempts() - 1);
+            if(metrics.getCacheStatus() == RequestMetrics.CacheStatus.HIT) cacheHits ++;
+            bytesSent += metrics.getRequestBytes();
+            bytesReceived += metrics.getResponseBytes();
+            connect.record(metrics.getConnectMillis());
+            timeToFirstByte.record(metrics.getTimeToFirstByteMillis());
+            transfer.record(metrics.getTransferMillis());
+            total.record(metrics.getTotalMillis());
+        }
+
+        public String getHost() {
+            return host;
+        }
+
+        public synchronized long getRequestCount() {
+            return requests;
+        }
+
+        public synchronized long getFailureCount() {
+            return failures;
+        }
+
+        /**
+         * Returns the number of additional attempts made by all requests
+         * @return the number of retries
+         */
+        public synchronized long getRetryCount() {
+            return retries;
+        }
+
+        public synchronized long getCacheHitCount() {
+            return cacheHits;
+        }
+
+        public synchronized long getBytesSent() {
+            return bytesSent;
+        }
+
+        public synchronized long getBytesReceived() {
+            return bytesReceived;
+        }
+
+        public Histogram getConnectTimes() {
+            return connect;
+        }
+
+        public Histogram getTimeToFirstByteTimes() {
+            return timeToFirstByte;
+        }
+
+        public Histogram getTransferTimes() {
+            return transfer;
+        }
+
+        public Histogram getTotalTimes() {
+            return total;
+        }
+
+        @Override
+        public synchronized String toString() {
+            return host + " requests=" + requests
+                    + " failures=" + failures
+                    + " retries=" + retries
+                    + " cacheHits=" + cacheHits
+                    + " sent=" + bytesSent
+                    + " received=" + bytesReceived
+                    + " connect[" + connect + "]"
+                    + " ttfb[" + timeToFirstByte + "]"
+                    + " transfer[" + transfer + "]"
+                    + " total[" + total + "]";
+        }
+    }
+
+    /**
+     * Counts durations in exponentially sized buckets.
+     * Bucket 0 holds durations under 1 ms and bucket n holds durations from 2^(n-1) up to 2^n ms,
+     * so percentiles are accurate to within a factor of two using a fixed amount of memory.
+     */
+    public static class Histogram {
+        private static final int BUCKETS = 32;
+
+        private final long[] buckets = new long[BUCKETS];
+        private long count = 0;
+        private long sum = 0;
+        private long max = 0;
+
+        /**
+         * Adds a duration to the histogram
+         * @param millis the duration or a negative value if the phase did not occur
+         */
+        synchronized void record(long millis) {
+            if(millis < 0) return;
+            int bucket = millis == 0 ? 0 : 64 - Long.numberOfLeadingZeros(millis);
+            buckets[Math.min(bucket, BUCKETS - 1)] ++;
+            count ++;
+            sum += millis;
+            max = Math.max(max, millis);
+        }
+
+        public synchronized long getCount() {
+            return count;
+        }
+
+        /**
+         * Returns the average duration
+         * @return the mean in milliseconds or 0 if nothing was recorded
+         */
+        public synchronized long getMean() {
+            return count == 0 ? 0 : sum / count;
+        }
+
+        public synchronized long getMax() {
+            return max;
+        }
+
+        /**
+         * Estimates the duration below which the given fraction of durations fall
+         * @param percentile a fraction between 0 and 1 e.g. 0.95
+         * @return the upper bound of the bucket holding the percentile in milliseconds
+         */
+        public synchronized long getPercentile(double percentile) {
+            if(count == 0) return 0;
+            long target = (long)Math.ceil(Math.max(0, Math.min(1, percentile)) * count);
+            long seen = 0;
+            for(int i = 0; i < BUCKETS; i ++) {
+                seen += buckets[i];
+                if(seen >= target && seen > 0) {
+                    return Math.min(max, i == 0 ? 0 : (1L << i) - 1);
+                }
+            }
+            return max;
+        }
+
+        @Override
+        public synchronized String toString() {
+            return "count=" + count
+                    + " mean=" + getMean() + "ms"
+                    + " p50=" + getPercentile(0.5) + "ms"
+                    + " p95=" + getPercentile(0.95) + "ms"
+                    + " max=" + max + "ms";
+        }
+    }
+}
@@ -0,0 +1,280 @@
+package org.unfoldingword.tools.http;
+
+import java.io.File;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * A multipart/form-data body made of fields, files and streams.
+ * Parts are streamed one after the other so files are never held in memory.
+ * When the size of every part is known the total length is computed up front
+ * so the body can be sent with a fixed length.
+ */
+public class MultipartBody extends RequestBody {
+    private static final String CRLF = "\r\n";
+    private static final long PART_PROGRESS_BYTES = 64 * 1024;
+    private static final String BOUNDARY_CHARS = "0123456789abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ";
+
+    private final String boundary;
+    private final List<Part> parts = new ArrayList<>();
+    private OnPartProgressListener partProgressListener = null;
+
+    /**
+     * Creates an empty body with a random boundary
+     */
+    public MultipartBody() {
+        this(createBoundary());
+    }
+
+    /**
+     * Creates an empty body
+     * @param boundary the boundary between parts which must not appear in any of them
+     */
+    public MultipartBody(String boundary) {
+        if(boundary == null || boundary.isEmpty() || boundary.length() > 70) {
+            throw new IllegalArgumentException("The boundary must be between 1 and 70 characters");
+        }
+        this.boundary = boundary;
+    }
+
+    /**
+     * Generates a boundary that is very unlikely to appear in the content
+     * @return a new boundary
+     */
+    private static String createBoundary() {
+        Random random = new Random();
+        StringBuilder boundary = new StringBuilder("----MultipartBoundary");
+        for(int i = 0; i < 32; i ++) {
+            boundary.append(BOUNDARY_CHARS.charAt(random.nextInt(BOUNDARY_CHARS.length())));
+        }
+        return boundary.toString();
+    }
+
+    /**
+     * Returns the boundary between parts
+     * @return the boundary
+     */
+    public String getBoundary() {
+        return boundary;
+    }
+
+    /**
+     * Returns the content type to send with this body
+     * @return the multipart content type including the boundary
+     */
+    public String getContentType() {
+        return "multipart/form-data; boundary=" + boundary;
+    }
+
+    /**
+     * Adds a text field encoded as UTF-8
+     * @param name the field name
+     * @param value the field value
+     */
+    public void addField(String name, String value) {
+        addPart(name, null, null, RequestBody.create(value));
+    }
+
+    /**
+     * Adds a file which is read as the body is sent
+     * @param name the field name
+     * @param file the file to upload
+     * @param contentType the content type of the file or null for application/octet-stream
+     */
+    public void addFile(String name, File file, String contentType) {
+        addPart(name, file.getName(), contentType, RequestBody.create(file));
+    }
+
+    /**
+     * Adds a stream which is consumed as the body is sent.
+     * A body with a stream part cannot be sent again.
+     * @param name the field name
+     * @param filename the file name reported to the server
+     * @param contentType the content type of the stream or null for application/octet-stream
+     * @param in the stream to upload
+     * @param length the number of bytes in the stream or -1 if unknown
+     */
+    public void addStream(String name, String filename, String contentType, InputStream in, long length) {
+        addPart(name, filename, contentType, RequestBody.create(in, length));
+    }
+
+    /**
+     * Adds a part
+     * @param name the field name
+     * @param filename the file name reported to the server or null if the part is not a file
+     * @param contentType the content type of the part or null
+     * @param body the content of the part
+     */
+    public void addPart(String name, String filename, String contentType, RequestBody body) {
+        if(name == null) throw new IllegalArgumentException("The part name cannot be null");
+        StringBuilder header = new StringBuilder();
+        header.append("--").append(boundary).append(CRLF);
+        header.append("Content-Disposition: form-data; name=\"").append(escape(name)).append('"');
+        if(filename != null) {
+            header.append("; filename=\"").append(escape(filename)).append('"');
+            if(contentType == null) contentType = "application/octet-stream";
+        }
+        header.append(CRLF);
+        if(contentType != null) header.append("Content-Type: ").append(contentType).append(CRLF);
+        header.append(CRLF);
+        parts.add(new Part(name, encode(header.toString()), body));
+    }
+
+    /**
+     * Returns the number of parts
+     * @return the number of parts
+     */
+    public int getPartCount() {
+        return parts.size();
+    }
+
+    /**
+     * Sets the listener to be notified as each part is sent
+     * @param listener a listener that will receive part progress events
+     */
+    public void setPartProgressListener(OnPartProgressListener listener) {
+        this.partProgressListener = listener;
+    }
+
+    @Override
+    public long contentLength() {
+        long length = encode("--" + boundary + "--" + CRLF).length;
+        for(Part part : parts) {
+            long partLength = part.body.contentLength();
+            if(partLength < 0) return -1;
+            length += part.header.length + partLength + CRLF.length();
+        }
+        return length;
+    }
+
+    @Override
+    public boolean isRepeatable() {
+        for(Part part : parts) {
+            if(!part.body.isRepeatable()) return false;
+        }
+        return true;
+    }
+
+    @Override
+    public void writeTo(OutputStream out) throws IOException {
+        writeTo(out, BufferPool.getDefault(), BUFFER_SIZE);
+    }
+
+    @Override
+    void writeTo(OutputStream out, BufferPool pool, int bufferSize) throws IOException {
+        byte[] lineBreak = encode(CRLF);
+        for(int i = 0; i < parts.size(); i ++) {
+            Part part = parts.get(i);
+            out.write(part.header);
+            PartOutputStream partOut = new PartOutputStream(out, i, part);
+            part.body.writeTo(partOut, pool, bufferSize);
+            partOut.finish();
+            out.write(lineBreak);
+        }
+        out.write(encode("--" + boundary + "--" + CRLF));
+    }
+
+    /**
+     * Escapes quotes and line breaks in a header parameter the way browsers do
+     * @param value the parameter value
+     * @return the escaped value
+     */
+    private static String escape(String value) {
+        return value.replace("\"", "%22").replace("\r", "%0D").replace("\n", "%0A");
+    }
+
+    /**
+     * Encodes header text as UTF-8
+     * @param text the text
+     * @return the encoded bytes
+     */
+    private static byte[] encode(String text) {
+        try {
+            return text.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            // UTF-8 is always supported
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static class Part {
+        private final String name;
+        private final byte[] header;
+        private final RequestBody body;
+
+        Part(String name, byte[] header, RequestBody body) {
+            this.name = name;
+            this.header = header;
+            this.body = body;
+        }
+    }
+
+    /**
+     * Counts the content of a part as it is written and reports its progress
+     */
+    private class PartOutputStream extends FilterOutputStream {
+        private final int index;
+        private final Part part;
+        private final long length;
+        private long bytesWritten = 0;
+        private long lastUpdate = 0;
+
+        PartOutputStream(OutputStream out, int index, Part part) {
+            super(out);
+            this.index = index;
+            this.part = part;
+            this.length = part.body.contentLength();
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte)b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int len) throws IOException {
+            out.write(buffer, offset, len);
+            bytesWritten += len;
+            if(bytesWritten - lastUpdate >= PART_PROGRESS_BYTES) {
+                lastUpdate = bytesWritten;
+                publish();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            // the part bodies must not close the connection stream
+            flush();
+        }
+
+        /**
+         * Reports the end of the part
+         */
+        void finish() {
+            publish();
+        }
+
+        private void publish() {
+            if(partProgressListener != null) {
+                partProgressListener.onPartProgress(index, part.name, length, bytesWritten);
+            }
+        }
+    }
+
+    public interface OnPartProgressListener {
+        /**
+         * Receives the progress of a part
+         * @param index the position of the part starting at 0
+         * @param name the field name of the part
+         * @param max the size of the part or -1 if unknown
+         * @param progress the number of bytes of the part that have been sent
+         */
+        void onPartProgress(int index, String name, long max, long progress);
+    }
+}
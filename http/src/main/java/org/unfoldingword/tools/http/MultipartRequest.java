@@ -0,0 +1,82 @@
+package org.unfoldingword.tools.http;
+
+import java.io.File;
+import java.io.InputStream;
+import java.net.URL;
+
+/**
+ * Implements a multipart/form-data post request.
+ * Fields and files are streamed so an upload uses the same memory whatever the size of its files.
+ * Total progress is reported to the upload progress listener and the progress of each part
+ * to the part progress listener.
+ */
+public class MultipartRequest extends PostRequest {
+    private final MultipartBody body;
+
+    /**
+     * Creates a new multipart request without any parts
+     * @param url the url receiving the request
+     */
+    public MultipartRequest(URL url) {
+        this(url, new MultipartBody());
+    }
+
+    /**
+     * Creates a new multipart request
+     * @param url the url receiving the request
+     * @param body the multipart body
+     */
+    public MultipartRequest(URL url, MultipartBody body) {
+        super(url, body);
+        this.body = body;
+        setContentType(body.getContentType());
+    }
+
+    /**
+     * Adds a text field
+     * @param name the field name
+     * @param value the field value
+     */
+    public void addField(String name, String value) {
+        body.addField(name, value);
+    }
+
+    /**
+     * Adds a file
+     * @param name the field name
+     * @param file the file to upload
+     * @param contentType the content type of the file or null for application/octet-stream
+     */
+    public void addFile(String name, File file, String contentType) {
+        body.addFile(name, file, contentType);
+    }
+
+    /**
+     * Adds a stream.
+     * A request with a stream part cannot be retried.
+     * @param name the field name
+     * @param filename the file name reported to the server
+     * @param contentType the content type of the stream or null for application/octet-stream
+     * @param in the stream to upload
+     * @param length the number of bytes in the stream or -1 if unknown
+     */
+    public void addStream(String name, String filename, String contentType, InputStream in, long length) {
+        body.addStream(name, filename, contentType, in, length);
+    }
+
+    /**
+     * Sets the listener to be notified as each part is sent
+     * @param listener a listener that will receive part progress events
+     */
+    public void setPartProgressListener(MultipartBody.OnPartProgressListener listener) {
+        body.setPartProgressListener(listener);
+    }
+
+    /**
+     * Returns the body of this request
+     * @return the multipart body
+     */
+    public MultipartBody getBody() {
+        return body;
+    }
+}
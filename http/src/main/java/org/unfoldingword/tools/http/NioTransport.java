@@ -0,0 +1,1255 @@
+package org.unfoldingword.tools.http;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A transport that performs the socket I/O of every http request on a few selector threads
+ * instead of a blocked thread per connection.
+ * Sockets are non-blocking and multiplexed, connections are kept alive according to the {@link KeepAlivePolicy}
+ * and incoming data is buffered up to a limit before reading from the socket is paused.
+ * Requests still wait for their own response, so callers such as a {@link RequestExecutor} keep their threads.
+ * Only plain http/1.1 is spoken without a proxy, https urls are handed to the platform transport.
+ */
+public class NioTransport extends Transport {
+    private static final int READ_SIZE = 8192;
+    private static final int HIGH_WATER = 64 * 1024;
+    private static final int MAX_LINE_LENGTH = 64 * 1024;
+    private static final int MAX_REDIRECTS = 20;
+    private static final byte[] CRLF = {'\r', '\n'};
+    private static final byte[] HEX_DIGITS = {'0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'a', 'b', 'c', 'd', 'e', 'f'};
+
+    private final Loop[] loops;
+    private final AtomicInteger nextLoop = new AtomicInteger();
+    private final Map<String, ArrayDeque<Channel>> idle = new HashMap<>();
+    private final Transport fallback = new UrlConnectionTransport();
+    private final BufferPool bufferPool = BufferPool.getDefault();
+    private final AtomicLong socketCount = new AtomicLong();
+    private volatile boolean shutdown = false;
+
+    /**
+     * Creates a transport with a single selector thread
+     * @throws IOException if the selector could not be opened
+     */
+    public NioTransport() throws IOException {
+        this(1);
+    }
+
+    /**
+     * Creates a transport
+     * @param threads the number of selector threads sharing the connections
+     * @throws IOException if the selectors could not be opened
+     */
+    public NioTransport(int threads) throws IOException {
+        if(threads < 1) throw new IllegalArgumentException("At least one thread is required");
+        loops = new Loop[threads];
+        for(int i = 0; i < threads; i ++) {
+            loops[i] = new Loop(Selector.open());
+            Thread thread = new Thread(loops[i], "nio-transport-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    @Override
+    public HttpURLConnection open(URL url) throws IOException {
+        if(!url.getProtocol().equals("http")) return fallback.open(url);
+        if(shutdown) throw new IOException("The transport has been shut down");
+        return new NioConnection(url);
+    }
+
+    /**
+     * Returns the number of sockets that have been opened.
+     * This grows slower than the number of requests when connections are reused.
+     * @return the number of sockets
+     */
+    public long getSocketCount() {
+        return socketCount.get();
+    }
+
+    /**
+     * Returns the number of idle connections waiting to be reused
+     * @return the number of idle connections
+     */
+    public int getIdleCount() {
+        int count = 0;
+        synchronized (idle) {
+            for(ArrayDeque<Channel> channels : idle.values()) {
+                count += channels.size();
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Closes every connection and stops the selector threads.
+     * Requests in progress fail.
+     */
+    public void shutdown() {
+        shutdown = true;
+        synchronized (idle) {
+            for(ArrayDeque<Channel> channels : idle.values()) {
+                for(Channel channel : channels) {
+                    channel.close();
+                }
+            }
+            idle.clear();
+        }
+        for(Loop loop : loops) {
+            loop.selector.wakeup();
+        }
+    }
+
+    /**
+     * Returns an idle connection to the host or opens a new one
+     * @param host the host name
+     * @param port the port
+     * @param timeout the connect timeout in milliseconds or 0 to wait indefinitely
+     * @return a connected channel
+     * @throws IOException
+     */
+    private Channel acquire(String host, int port, int timeout) throws IOException {
+        String address = host + ":" + port;
+        long keepAlive = KeepAlivePolicy.getDefault().getKeepAliveDuration();
+        synchronized (idle) {
+            ArrayDeque<Channel> channels = idle.get(address);
+            while(channels != null && !channels.isEmpty()) {
+                Channel channel = channels.pollFirst();
+                if(channel.resume(keepAlive)) return channel;
+                channel.close();
+            }
+        }
+
+        if(host.startsWith("[") && host.endsWith("]")) host = host.substring(1, host.length() - 1);
+        InetSocketAddress socketAddress = new InetSocketAddress(host, port);
+        if(socketAddress.isUnresolved()) throw new UnknownHostException(host);
+        SocketChannel socket = SocketChannel.open();
+        Channel channel = new Channel(address, socket, loops[(nextLoop.getAndIncrement() & Integer.MAX_VALUE) % loops.length]);
+        try {
+            socket.configureBlocking(false);
+            socket.socket().setTcpNoDelay(true);
+            socketCount.incrementAndGet();
+            channel.connect(socketAddress, timeout);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        return channel;
+    }
+
+    /**
+     * Puts a connection whose response has been read back in the pool
+     * @param channel the channel
+     */
+    private void recycle(Channel channel) {
+        KeepAlivePolicy policy = KeepAlivePolicy.getDefault();
+        if(shutdown || !policy.isEnabled() || !channel.suspend()) {
+            channel.close();
+            return;
+        }
+        synchronized (idle) {
+            ArrayDeque<Channel> channels = idle.get(channel.address);
+            if(channels == null) {
+                channels = new ArrayDeque<>();
+                idle.put(channel.address, channels);
+            }
+            channels.offerFirst(channel);
+            while(channels.size() > policy.getMaxIdleConnections()) {
+                channels.pollLast().close();
+            }
+        }
+    }
+
+    /**
+     * Calculates when a blocking operation gives up
+     * @param timeout the timeout in milliseconds or 0 to wait indefinitely
+     * @return the deadline or 0 for none
+     */
+    private static long deadline(int timeout) {
+        return timeout > 0 ? System.currentTimeMillis() + timeout : 0;
+    }
+
+    /**
+     * A selector thread that moves data between the sockets and their channels
+     */
+    private class Loop implements Runnable {
+        private final Selector selector;
+        private final ConcurrentLinkedQueue<Task> tasks = new ConcurrentLinkedQueue<>();
+
+        Loop(Selector selector) {
+            this.selector = selector;
+        }
+
+        /**
+         * Runs a task on the selector thread
+         * @param task the task
+         */
+        void execute(Task task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            while(!shutdown) {
+                try {
+                    selector.select();
+                } catch (IOException e) {
+                    break;
+                }
+                // a bug in one channel must not stop the thread every other channel depends on
+                Task task;
+                while((task = tasks.poll()) != null) {
+                    try {
+                        task.runnable.run();
+                    } catch (RuntimeException e) {
+                        task.channel.fail(new IOException(e));
+                    }
+                }
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while(keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    Channel channel = (Channel)key.attachment();
+                    try {
+                        channel.onReady(key);
+                    } catch (RuntimeException e) {
+                        channel.fail(new IOException(e));
+                    }
+                }
+            }
+            for(SelectionKey key : selector.keys()) {
+                ((Channel)key.attachment()).close();
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Work for the selector thread on behalf of a channel
+     */
+    private static class Task {
+        private final Channel channel;
+        private final Runnable runnable;
+
+        Task(Channel channel, Runnable runnable) {
+            this.channel = channel;
+            this.runnable = runnable;
+        }
+    }
+
+    /**
+     * A non-blocking socket.
+     * The selector thread connects, writes queued data and reads incoming data into buffers
+     * while the threads using the channel wait on it.
+     */
+    private class Channel {
+        private final String address;
+        private final SocketChannel socket;
+        private final Loop loop;
+        private SelectionKey key = null;
+        private final ArrayDeque<ByteBuffer> outbound = new ArrayDeque<>();
+        private final ArrayDeque<ByteBuffer> inbound = new ArrayDeque<>();
+        private int outboundBytes = 0;
+        private int inboundBytes = 0;
+        private boolean connected = false;
+        private boolean eof = false;
+        private boolean closed = false;
+        private boolean reused = false;
+        private IOException error = null;
+        private long idleSince = 0;
+        private final Task update = new Task(this, new Runnable() {
+            @Override
+            public void run() {
+                updateInterest();
+            }
+        });
+
+        Channel(String address, SocketChannel socket, Loop loop) {
+            this.address = address;
+            this.socket = socket;
+            this.loop = loop;
+        }
+
+        /**
+         * Connects the socket and waits until it is connected
+         * @param socketAddress the address to connect to
+         * @param timeout the connect timeout in milliseconds
+         * @throws IOException
+         */
+        void connect(InetSocketAddress socketAddress, int timeout) throws IOException {
+            if(socket.connect(socketAddress)) {
+                synchronized (this) {
+                    connected = true;
+                }
+            }
+            loop.execute(new Task(this, new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        key = socket.register(loop.selector, interestOps(), Channel.this);
+                    } catch (ClosedChannelException e) {
+                        fail(e);
+                    }
+                }
+            }));
+            long deadline = deadline(timeout);
+            synchronized (this) {
+                while(!connected) {
+                    ensureOpen();
+                    await(deadline, "connect timed out");
+                }
+            }
+        }
+
+        /**
+         * Writes data to the socket.
+         * Whatever the socket does not accept right away is queued for the selector thread
+         * and the caller waits while too much data is queued.
+         * @param b the data
+         * @param off the offset of the data
+         * @param len the number of bytes
+         * @param timeout the write timeout in milliseconds
+         * @throws IOException
+         */
+        void write(byte[] b, int off, int len, int timeout) throws IOException {
+            long deadline = deadline(timeout);
+            boolean queued = false;
+            synchronized (this) {
+                while(len > 0) {
+                    ensureOpen();
+                    if(outbound.isEmpty()) {
+                        int n = socket.write(ByteBuffer.wrap(b, off, len));
+                        off += n;
+                        len -= n;
+                        if(len == 0) break;
+                    }
+                    if(outboundBytes >= HIGH_WATER) {
+                        // the selector thread must be watching for writes before waiting for the queue to drain
+                        if(queued) {
+                            queued = false;
+                            loop.execute(update);
+                        }
+                        await(deadline, "write timed out");
+                        continue;
+                    }
+                    int chunk = Math.min(len, HIGH_WATER - outboundBytes);
+                    byte[] buffer = bufferPool.acquire(chunk);
+                    System.arraycopy(b, off, buffer, 0, chunk);
+                    outbound.addLast(ByteBuffer.wrap(buffer, 0, chunk));
+                    outboundBytes += chunk;
+                    off += chunk;
+                    len -= chunk;
+                    queued = true;
+                }
+            }
+            if(queued) loop.execute(update);
+        }
+
+        /**
+         * Reads data the selector thread has received
+         * @param b the buffer receiving the data
+         * @param off the offset in the buffer
+         * @param len the maximum number of bytes
+         * @param timeout the read timeout in milliseconds
+         * @return the number of bytes read or -1 at the end of the stream
+         * @throws IOException
+         */
+        int read(byte[] b, int off, int len, int timeout) throws IOException {
+            if(len == 0) return 0;
+            long deadline = deadline(timeout);
+            int n;
+            boolean resume;
+            synchronized (this) {
+                while(inbound.isEmpty()) {
+                    ensureOpen();
+                    if(eof) return -1;
+                    await(deadline, "Read timed out");
+                }
+                ByteBuffer buffer = inbound.peekFirst();
+                n = Math.min(len, buffer.remaining());
+                buffer.get(b, off, n);
+                if(!buffer.hasRemaining()) {
+                    inbound.pollFirst();
+                    bufferPool.release(buffer.array());
+                }
+                resume = inboundBytes >= HIGH_WATER && inboundBytes - n < HIGH_WATER;
+                inboundBytes -= n;
+            }
+            // reading was paused while the buffers were full
+            if(resume) loop.execute(update);
+            return n;
+        }
+
+        /**
+         * Marks the channel as idle
+         * @return true if the channel can be reused
+         */
+        synchronized boolean suspend() {
+            if(closed || eof || error != null || inboundBytes > 0 || outboundBytes > 0) return false;
+            idleSince = System.currentTimeMillis();
+            return true;
+        }
+
+        /**
+         * Takes the channel out of the idle pool
+         * @param keepAlive how long the channel may have been idle in milliseconds
+         * @return true if the channel can still be used
+         */
+        synchronized boolean resume(long keepAlive) {
+            if(closed || eof || error != null || inboundBytes > 0) return false;
+            if(System.currentTimeMillis() - idleSince > keepAlive) return false;
+            reused = true;
+            return true;
+        }
+
+        /**
+         * Checks if the channel was taken from the idle pool
+         * @return true if the channel has been used before
+         */
+        synchronized boolean isReused() {
+            return reused;
+        }
+
+        /**
+         * Closes the socket and wakes any thread waiting on the channel
+         */
+        void close() {
+            synchronized (this) {
+                if(closed) return;
+                closed = true;
+                for(ByteBuffer buffer : inbound) {
+                    bufferPool.release(buffer.array());
+                }
+                inbound.clear();
+                inboundBytes = 0;
+                notifyAll();
+            }
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // the socket is discarded anyway
+            }
+            // the selector finishes closing the socket once it deregisters it
+            loop.selector.wakeup();
+        }
+
+        /**
+         * Handles a socket that is ready on the selector thread
+         * @param key the selection key
+         */
+        void onReady(SelectionKey key) {
+            try {
+                if(key.isConnectable()) {
+                    if(socket.finishConnect()) {
+                        synchronized (this) {
+                            connected = true;
+                            notifyAll();
+                        }
+                    }
+                }
+                if(key.isWritable()) flushOutbound();
+                if(key.isReadable()) fillInbound();
+                updateInterest();
+            } catch (IOException e) {
+                fail(e);
+            } catch (CancelledKeyException e) {
+                close();
+            }
+        }
+
+        /**
+         * Writes queued data until the socket stops accepting it
+         * @throws IOException
+         */
+        private void flushOutbound() throws IOException {
+            while(true) {
+                ByteBuffer buffer;
+                synchronized (this) {
+                    buffer = outbound.peekFirst();
+                }
+                if(buffer == null) return;
+                int n = socket.write(buffer);
+                synchronized (this) {
+                    outboundBytes -= n;
+                    if(!buffer.hasRemaining()) {
+                        outbound.pollFirst();
+                        bufferPool.release(buffer.array());
+                    }
+                    notifyAll();
+                }
+                if(buffer.hasRemaining()) return;
+            }
+        }
+
+        /**
+         * Reads whatever the socket has received
+         * @throws IOException
+         */
+        private void fillInbound() throws IOException {
+            byte[] array = bufferPool.acquire(READ_SIZE);
+            ByteBuffer buffer = ByteBuffer.wrap(array);
+            int n = socket.read(buffer);
+            synchronized (this) {
+                if(n > 0 && !closed) {
+                    buffer.flip();
+                    inbound.addLast(buffer);
+                    inboundBytes += n;
+                } else {
+                    if(n == -1) eof = true;
+                    bufferPool.release(array);
+                }
+                notifyAll();
+            }
+        }
+
+        /**
+         * Chooses the events the selector waits for
+         * @return the interest set
+         */
+        private synchronized int interestOps() {
+            if(!connected) return SelectionKey.OP_CONNECT;
+            int ops = 0;
+            if(outboundBytes > 0) ops |= SelectionKey.OP_WRITE;
+            if(!eof && inboundBytes < HIGH_WATER) ops |= SelectionKey.OP_READ;
+            return ops;
+        }
+
+        /**
+         * Updates the events the selector waits for on the selector thread
+         */
+        private void updateInterest() {
+            if(key == null) return;
+            try {
+                if(key.isValid()) key.interestOps(interestOps());
+            } catch (CancelledKeyException e) {
+                // the channel was closed
+            }
+        }
+
+        /**
+         * Records an error from the selector thread and closes the channel
+         * @param e the error
+         */
+        private void fail(IOException e) {
+            synchronized (this) {
+                if(error == null && !closed) error = e;
+            }
+            close();
+        }
+
+        /**
+         * Throws if the channel can no longer be used
+         * @throws IOException
+         */
+        private void ensureOpen() throws IOException {
+            if(error != null) throw error;
+            if(closed) throw new SocketException("Socket closed");
+        }
+
+        /**
+         * Waits to be notified by the selector thread
+         * @param deadline when to give up or 0 to wait indefinitely
+         * @param message the message of the timeout exception
+         * @throws IOException
+         */
+        private void await(long deadline, String message) throws IOException {
+            long wait = 0;
+            if(deadline > 0) {
+                wait = deadline - System.currentTimeMillis();
+                if(wait <= 0) throw new SocketTimeoutException(message);
+            }
+            try {
+                wait(wait);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+        }
+    }
+
+    /**
+     * An http/1.1 exchange over a pooled channel
+     */
+    private class NioConnection extends HttpURLConnection {
+        private final Map<String, List<String>> requestHeaders = new LinkedHashMap<>();
+        private volatile Channel channel = null;
+        private ByteArrayOutputStream bufferedBody = null;
+        private OutputStream streamingBody = null;
+        private boolean requestSent = false;
+        private boolean responseRead = false;
+        private IOException failure = null;
+        private String statusLine = null;
+        private final List<String[]> responseFields = new ArrayList<>();
+        private InputStream body = null;
+
+        NioConnection(URL url) {
+            super(url);
+        }
+
+        @Override
+        public void setRequestProperty(String key, String value) {
+            if(connected) throw new IllegalStateException("Already connected");
+            if(key == null) throw new NullPointerException("key is null");
+            List<String> values = new ArrayList<>();
+            values.add(value);
+            requestHeaders.remove(findKey(requestHeaders, key));
+            requestHeaders.put(key, values);
+        }
+
+        @Override
+        public void addRequestProperty(String key, String value) {
+            if(connected) throw new IllegalStateException("Already connected");
+            if(key == null) throw new NullPointerException("key is null");
+            String existing = findKey(requestHeaders, key);
+            if(existing == null) {
+                setRequestProperty(key, value);
+            } else {
+                requestHeaders.get(existing).add(value);
+            }
+        }
+
+        @Override
+        public String getRequestProperty(String key) {
+            List<String> values = requestHeaders.get(findKey(requestHeaders, key));
+            if(values == null || values.isEmpty()) return null;
+            return values.get(values.size() - 1);
+        }
+
+        @Override
+        public Map<String, List<String>> getRequestProperties() {
+            if(connected) throw new IllegalStateException("Already connected");
+            return Collections.unmodifiableMap(new LinkedHashMap<>(requestHeaders));
+        }
+
+        @Override
+        public void connect() throws IOException {
+            if(connected) return;
+            int port = url.getPort() == -1 ? url.getDefaultPort() : url.getPort();
+            channel = acquire(url.getHost(), port, getConnectTimeout());
+            connected = true;
+        }
+
+        @Override
+        public void disconnect() {
+            Channel active = channel;
+            channel = null;
+            if(active != null) active.close();
+        }
+
+        @Override
+        public boolean usingProxy() {
+            return false;
+        }
+
+        @Override
+        public OutputStream getOutputStream() throws IOException {
+            if(!doOutput) throw new ProtocolException("cannot write to a URLConnection if doOutput=false - call setDoOutput(true)");
+            if(responseRead) throw new ProtocolException("Cannot write output after reading input.");
+            if(streamingBody != null) return streamingBody;
+            if(bufferedBody != null) return bufferedBody;
+            if(method.equals("GET")) method = "POST";
+            connect();
+            if(fixedContentLength >= 0) {
+                writeHead("Content-Length: " + fixedContentLength);
+                streamingBody = new FixedLengthOutputStream(fixedContentLength);
+                return streamingBody;
+            } else if(chunkLength > 0) {
+                writeHead("Transfer-Encoding: chunked");
+                streamingBody = new ChunkedOutputStream();
+                return streamingBody;
+            }
+            bufferedBody = new ByteArrayOutputStream();
+            return bufferedBody;
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            if(!doInput) throw new ProtocolException("Cannot read from URLConnection if doInput=false (call setDoInput(true))");
+            readResponse();
+            if(responseCode == HTTP_NOT_FOUND || responseCode == HTTP_GONE) {
+                throw new FileNotFoundException(url.toString());
+            } else if(responseCode >= 400) {
+                throw new IOException("Server returned HTTP response code: " + responseCode + " for URL: " + url);
+            }
+            return body;
+        }
+
+        @Override
+        public InputStream getErrorStream() {
+            if(responseRead && failure == null && responseCode >= 400) return body;
+            return null;
+        }
+
+        @Override
+        public int getResponseCode() throws IOException {
+            readResponse();
+            return responseCode;
+        }
+
+        @Override
+        public String getResponseMessage() throws IOException {
+            readResponse();
+            return responseMessage;
+        }
+
+        @Override
+        public String getHeaderField(String name) {
+            if(!loadResponse()) return null;
+            String value = null;
+            for(String[] field : responseFields) {
+                if(field[0].equalsIgnoreCase(name)) value = field[1];
+            }
+            return value;
+        }
+
+        @Override
+        public String getHeaderField(int n) {
+            if(!loadResponse()) return null;
+            if(n == 0) return statusLine;
+            if(n < 1 || n > responseFields.size()) return null;
+            return responseFields.get(n - 1)[1];
+        }
+
+        @Override
+        public String getHeaderFieldKey(int n) {
+            if(!loadResponse()) return null;
+            if(n < 1 || n > responseFields.size()) return null;
+            return responseFields.get(n - 1)[0];
+        }
+
+        @Override
+        public Map<String, List<String>> getHeaderFields() {
+            Map<String, List<String>> fields = new LinkedHashMap<>();
+            if(!loadResponse()) return fields;
+            fields.put(null, Collections.singletonList(statusLine));
+            for(String[] field : responseFields) {
+                String key = findKey(fields, field[0]);
+                if(key == null) {
+                    key = field[0];
+                    fields.put(key, new ArrayList<String>());
+                }
+                fields.get(key).add(field[1]);
+            }
+            for(Map.Entry<String, List<String>> entry : fields.entrySet()) {
+                entry.setValue(Collections.unmodifiableList(entry.getValue()));
+            }
+            return Collections.unmodifiableMap(fields);
+        }
+
+        /**
+         * Reads the response for the header getters which cannot throw
+         * @return true if the response is available
+         */
+        private boolean loadResponse() {
+            try {
+                readResponse();
+                return true;
+            } catch (IOException e) {
+                return false;
+            }
+        }
+
+        /**
+         * Sends the request if it has not been sent yet and reads the response head,
+         * following redirects of GET and HEAD requests
+         * @throws IOException
+         */
+        private void readResponse() throws IOException {
+            if(responseRead) {
+                if(failure != null) throw failure;
+                return;
+            }
+            try {
+                for(int redirects = 0; ; redirects ++) {
+                    exchange();
+                    String location = getLocation();
+                    if(location == null || redirects >= MAX_REDIRECTS) break;
+                    URL target = new URL(url, location);
+                    if(!target.getProtocol().equals(url.getProtocol())) break;
+                    if(!isSameServer(url, target)) {
+                        // credentials were only meant for the server they were given to
+                        requestHeaders.remove(findKey(requestHeaders, "Authorization"));
+                        requestHeaders.remove(findKey(requestHeaders, "Cookie"));
+                    }
+                    discard(body);
+                    url = target;
+                    connected = false;
+                    requestSent = false;
+                }
+                responseRead = true;
+            } catch (IOException e) {
+                failure = e;
+                responseRead = true;
+                disconnect();
+                throw e;
+            }
+        }
+
+        /**
+         * Sends the request and reads the response head.
+         * A connection from the pool may have been closed by the server in the meantime
+         * so the request is sent again on a new connection if nothing was received.
+         * @throws IOException
+         */
+        private void exchange() throws IOException {
+            connect();
+            boolean replayable = channel.isReused() && streamingBody == null;
+            try {
+                sendRequest();
+                readHead();
+            } catch (SocketTimeoutException e) {
+                throw e;
+            } catch (IOException e) {
+                if(!replayable || statusLine != null) throw e;
+                disconnect();
+                connected = false;
+                requestSent = false;
+                connect();
+                sendRequest();
+                readHead();
+            }
+        }
+
+        /**
+         * Checks if the response is a redirect that should be followed
+         * @return the redirect location or null
+         */
+        private String getLocation() {
+            if(!getInstanceFollowRedirects()) return null;
+            if(!method.equals("GET") && !method.equals("HEAD")) return null;
+            if(responseCode != HTTP_MOVED_PERM && responseCode != HTTP_MOVED_TEMP && responseCode != HTTP_SEE_OTHER
+                    && responseCode != 307 && responseCode != 308) return null;
+            return getHeaderFieldValue("Location");
+        }
+
+        /**
+         * Sends the request head and any buffered body
+         * @throws IOException
+         */
+        private void sendRequest() throws IOException {
+            if(streamingBody != null) {
+                // finish the body in case the caller did not close the stream
+                streamingBody.close();
+                return;
+            }
+            if(requestSent) return;
+            byte[] data = bufferedBody != null ? bufferedBody.toByteArray() : null;
+            writeHead(data != null ? "Content-Length: " + data.length : null);
+            if(data != null && data.length > 0) requireChannel().write(data, 0, data.length, getReadTimeout());
+        }
+
+        /**
+         * Writes the request line and headers
+         * @param framing the header that describes the length of the body or null if there is no body
+         * @throws IOException
+         */
+        private void writeHead(String framing) throws IOException {
+            StringBuilder head = new StringBuilder();
+            String path = url.getFile();
+            head.append(method).append(' ').append(path.isEmpty() ? "/" : path).append(" HTTP/1.1\r\n");
+            if(findKey(requestHeaders, "Host") == null) {
+                head.append("Host: ").append(url.getHost());
+                if(url.getPort() != -1 && url.getPort() != url.getDefaultPort()) head.append(':').append(url.getPort());
+                head.append("\r\n");
+            }
+            for(Map.Entry<String, List<String>> header : requestHeaders.entrySet()) {
+                for(String value : header.getValue()) {
+                    if(value == null) continue;
+                    head.append(header.getKey()).append(": ").append(value).append("\r\n");
+                }
+            }
+            if(framing != null) head.append(framing).append("\r\n");
+            head.append("\r\n");
+            byte[] data = head.toString().getBytes("ISO-8859-1");
+            requireChannel().write(data, 0, data.length, getReadTimeout());
+            requestSent = true;
+        }
+
+        /**
+         * Reads the status line and headers, skipping interim responses
+         * @throws IOException
+         */
+        private void readHead() throws IOException {
+            Channel source = requireChannel();
+            statusLine = null;
+            while(true) {
+                String line = readLine(source);
+                if(line == null) throw new SocketException("Unexpected end of file from server");
+                if(!line.startsWith("HTTP/")) throw new ProtocolException("Invalid Http response");
+                statusLine = line;
+                String[] status = line.split(" ", 3);
+                try {
+                    responseCode = Integer.parseInt(status[1].trim());
+                } catch (RuntimeException e) {
+                    throw new ProtocolException("Invalid status line " + line);
+                }
+                responseMessage = status.length > 2 ? status[2] : "";
+                responseFields.clear();
+                while((line = readLine(source)) != null && !line.isEmpty()) {
+                    int colon = line.indexOf(':');
+                    if(colon > 0) {
+                        responseFields.add(new String[]{line.substring(0, colon).trim(), line.substring(colon + 1).trim()});
+                    }
+                }
+                if(line == null) throw new SocketException("Unexpected end of file from server");
+                if(responseCode >= 100 && responseCode < 200 && responseCode != 101) continue;
+                break;
+            }
+
+            boolean keepAlive = isKeepAlive();
+            String transferEncoding = getHeaderFieldValue("Transfer-Encoding");
+            String contentLength = getHeaderFieldValue("Content-Length");
+            if(method.equals("HEAD") || responseCode == HTTP_NO_CONTENT || responseCode == HTTP_NOT_MODIFIED) {
+                body = new FixedLengthInputStream(source, 0, keepAlive);
+            } else if(transferEncoding != null && transferEncoding.toLowerCase(Locale.US).contains("chunked")) {
+                body = new ChunkedInputStream(source, keepAlive);
+            } else if(contentLength != null) {
+                try {
+                    body = new FixedLengthInputStream(source, Long.parseLong(contentLength.trim()), keepAlive);
+                } catch (NumberFormatException e) {
+                    throw new ProtocolException("Invalid Content-Length " + contentLength);
+                }
+            } else {
+                // the body ends when the server closes the connection
+                body = new FixedLengthInputStream(source, -1, false);
+            }
+        }
+
+        /**
+         * Checks if the connection may be reused after the response
+         * @return true if the connection is persistent
+         */
+        private boolean isKeepAlive() {
+            String requested = getRequestProperty("Connection");
+            if(requested != null && requested.equalsIgnoreCase("close")) return false;
+            String connection = getHeaderFieldValue("Connection");
+            if(statusLine.startsWith("HTTP/1.0")) return connection != null && connection.equalsIgnoreCase("keep-alive");
+            return connection == null || !connection.equalsIgnoreCase("close");
+        }
+
+        /**
+         * Looks up a response header without reading the response
+         * @param name the header name
+         * @return the last value of the header or null
+         */
+        private String getHeaderFieldValue(String name) {
+            String value = null;
+            for(String[] field : responseFields) {
+                if(field[0].equalsIgnoreCase(name)) value = field[1];
+            }
+            return value;
+        }
+
+        /**
+         * Returns the channel of the exchange
+         * @return the channel
+         * @throws SocketException if the connection has been disconnected
+         */
+        private Channel requireChannel() throws SocketException {
+            Channel active = channel;
+            if(active == null) throw new SocketException("Socket closed");
+            return active;
+        }
+
+        /**
+         * Reads a line terminated by a line feed
+         * @param source the channel
+         * @return the line without the line ending or null at the end of the stream
+         * @throws IOException
+         */
+        private String readLine(Channel source) throws IOException {
+            ByteArrayOutputStream line = new ByteArrayOutputStream(128);
+            byte[] b = new byte[1];
+            while(true) {
+                int n = source.read(b, 0, 1, getReadTimeout());
+                if(n == -1) {
+                    if(line.size() == 0) return null;
+                    break;
+                }
+                if(b[0] == '\n') break;
+                line.write(b[0]);
+                if(line.size() > MAX_LINE_LENGTH) throw new ProtocolException("The response line is too long");
+            }
+            String value = line.toString("ISO-8859-1");
+            if(value.endsWith("\r")) value = value.substring(0, value.length() - 1);
+            return value;
+        }
+
+        /**
+         * Reads the rest of a redirect body so its connection can be reused
+         * @param in the body
+         */
+        private void discard(InputStream in) {
+            try {
+                byte[] buffer = new byte[READ_SIZE];
+                long remaining = HIGH_WATER;
+                int n;
+                while(remaining > 0 && (n = in.read(buffer)) != -1) {
+                    remaining -= n;
+                }
+            } catch (IOException e) {
+                // the connection is discarded when the body is closed
+            }
+            try {
+                in.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        /**
+         * A response body that gives its channel back once it has been read
+         */
+        private abstract class BodyInputStream extends InputStream {
+            final Channel source;
+            private final boolean keepAlive;
+            boolean done = false;
+
+            BodyInputStream(Channel source, boolean keepAlive) {
+                this.source = source;
+                this.keepAlive = keepAlive;
+            }
+
+            @Override
+            public int read() throws IOException {
+                byte[] b = new byte[1];
+                int n = read(b, 0, 1);
+                return n == -1 ? -1 : b[0] & 0xff;
+            }
+
+            /**
+             * Releases the channel once the whole body has been read
+             */
+            void complete() {
+                if(done) return;
+                done = true;
+                if(channel == source) channel = null;
+                if(keepAlive) {
+                    recycle(source);
+                } else {
+                    source.close();
+                }
+            }
+
+            /**
+             * Closes the channel if the body has not been read to the end
+             */
+            @Override
+            public void close() throws IOException {
+                if(done) return;
+                done = true;
+                if(channel == source) channel = null;
+                source.close();
+            }
+        }
+
+        /**
+         * A body with a known length or one that ends when the connection is closed
+         */
+        private class FixedLengthInputStream extends BodyInputStream {
+            private long remaining;
+
+            /**
+             * @param remaining the length of the body or -1 if it ends when the connection is closed
+             */
+            FixedLengthInputStream(Channel source, long remaining, boolean keepAlive) {
+                super(source, keepAlive);
+                this.remaining = remaining;
+                if(remaining == 0) complete();
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if(done) return -1;
+                int max = remaining < 0 ? len : (int)Math.min(len, remaining);
+                int n = source.read(b, off, max, getReadTimeout());
+                if(n == -1) {
+                    if(remaining > 0) throw new IOException("Premature EOF");
+                    complete();
+                    return -1;
+                }
+                if(remaining > 0) {
+                    remaining -= n;
+                    if(remaining == 0) complete();
+                }
+                return n;
+            }
+        }
+
+        /**
+         * A body sent with chunked transfer encoding
+         */
+        private class ChunkedInputStream extends BodyInputStream {
+            private long chunkRemaining = 0;
+            private boolean first = true;
+
+            ChunkedInputStream(Channel source, boolean keepAlive) {
+                super(source, keepAlive);
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if(done) return -1;
+                if(chunkRemaining == 0) {
+                    if(!first) readLine(source);
+                    first = false;
+                    String size = readLine(source);
+                    if(size == null) throw new IOException("Premature EOF");
+                    int extension = size.indexOf(';');
+                    if(extension >= 0) size = size.substring(0, extension);
+                    try {
+                        chunkRemaining = Long.parseLong(size.trim(), 16);
+                    } catch (NumberFormatException e) {
+                        throw new ProtocolException("Invalid chunk size " + size);
+                    }
+                    if(chunkRemaining == 0) {
+                        // skip the trailers
+                        String line;
+                        while((line = readLine(source)) != null && !line.isEmpty()) {
+                            // discard
+                        }
+                        complete();
+                        return -1;
+                    }
+                }
+                int n = source.read(b, off, (int)Math.min(len, chunkRemaining), getReadTimeout());
+                if(n == -1) throw new IOException("Premature EOF");
+                chunkRemaining -= n;
+                return n;
+            }
+        }
+
+        /**
+         * Streams a body of a known length
+         */
+        private class FixedLengthOutputStream extends OutputStream {
+            private long remaining;
+            private boolean closed = false;
+
+            FixedLengthOutputStream(long length) {
+                this.remaining = length;
+            }
+
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[]{(byte)b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                if(closed) throw new IOException("Stream is closed");
+                if(len > remaining) throw new IOException("too many bytes written");
+                requireChannel().write(b, off, len, getReadTimeout());
+                remaining -= len;
+            }
+
+            @Override
+            public void close() throws IOException {
+                if(closed) return;
+                closed = true;
+                if(remaining > 0) throw new IOException("insufficient data written");
+            }
+        }
+
+        /**
+         * Streams a body of an unknown length in chunks
+         */
+        private class ChunkedOutputStream extends OutputStream {
+            // up to eight hex digits followed by a line break
+            private final byte[] sizeLine = new byte[10];
+            private boolean closed = false;
+
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[]{(byte)b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                if(closed) throw new IOException("Stream is closed");
+                if(len == 0) return;
+                // the caller's data is written as is instead of being copied into a framed chunk
+                int start = sizeLine.length - 2;
+                int size = len;
+                do {
+                    sizeLine[-- start] = HEX_DIGITS[size & 0xf];
+                    size >>>= 4;
+                } while(size != 0);
+                sizeLine[sizeLine.length - 2] = '\r';
+                sizeLine[sizeLine.length - 1] = '\n';
+                Channel target = requireChannel();
+                target.write(sizeLine, start, sizeLine.length - start, getReadTimeout());
+                target.write(b, off, len, getReadTimeout());
+                target.write(CRLF, 0, CRLF.length, getReadTimeout());
+            }
+
+            @Override
+            public void close() throws IOException {
+                if(closed) return;
+                closed = true;
+                byte[] end = "0\r\n\r\n".getBytes("ISO-8859-1");
+                requireChannel().write(end, 0, end.length, getReadTimeout());
+            }
+        }
+    }
+
+    /**
+     * Checks if two urls point at the same host and port
+     * @param a the first url
+     * @param b the second url
+     * @return true if both urls are served by the same server
+     */
+    private static boolean isSameServer(URL a, URL b) {
+        int portA = a.getPort() != -1 ? a.getPort() : a.getDefaultPort();
+        int portB = b.getPort() != -1 ? b.getPort() : b.getDefaultPort();
+        return a.getHost().equalsIgnoreCase(b.getHost()) && portA == portB;
+    }
+
+    /**
+     * Looks up a header name ignoring case
+     * @param headers the headers
+     * @param name the name
+     * @return the name as it appears in the headers or null
+     */
+    private static String findKey(Map<String, List<String>> headers, String name) {
+        if(name == null) return null;
+        for(String key : headers.keySet()) {
+            if(name.equalsIgnoreCase(key)) return key;
+        }
+        return null;
+    }
+}
@@ -0,0 +1,586 @@
+package org.unfoldingword.tools.http;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+
+/**
+ * A durable outbox for requests that must reach the server eventually.
+ * Requests are appended to a log on disk so they survive the process being killed,
+ * and only the position of each pending request is kept in memory.
+ * Small bodies are stored in the log, larger bodies are spooled to files next to it.
+ *
+ * Call {@link #replay(int)} once the device is online to send the pending requests in order.
+ * Requests that were sent or rejected by the server are marked as done and the log is compacted as it fills up.
+ * Requests that failed because the server could not be reached stay in the queue for the next replay.
+ */
+public class OfflineQueue {
+    private static final String LOG_NAME = "queue.log";
+    private static final byte ADD = 1;
+    private static final byte DONE = 2;
+    private static final byte BODY_NONE = 0;
+    private static final byte BODY_INLINE = 1;
+    private static final byte BODY_SPOOLED = 2;
+    private static final byte BODY_REFERENCED = 3;
+    private static final int INLINE_LIMIT = 4096;
+    private static final int COMPACT_THRESHOLD = 64;
+    private static final int SENT = 0;
+    private static final int REJECTED = 1;
+    private static final int UNAVAILABLE = 2;
+
+    private final File log;
+    private final File bodies;
+    private final TreeMap<Long, Long> pending = new TreeMap<>();
+    private final Object replayLock = new Object();
+    private long nextId = 1;
+    private long doneRecords = 0;
+    private FileOutputStream logOut;
+    private OnReplayListener replayListener = null;
+
+    /**
+     * Opens a queue, recovering any requests left in it by a previous process
+     * @param directory the directory holding the queue
+     * @throws IOException if the queue cannot be read
+     */
+    public OfflineQueue(File directory) throws IOException {
+        directory.mkdirs();
+        this.log = new File(directory, LOG_NAME);
+        this.bodies = new File(directory, "bodies");
+        bodies.mkdirs();
+        load();
+        logOut = new FileOutputStream(log, true);
+    }
+
+    /**
+     * Sets the listener to be notified as requests are replayed
+     * @param listener a listener that will receive replay events
+     */
+    public void setReplayListener(OnReplayListener listener) {
+        this.replayListener = listener;
+    }
+
+    /**
+     * Adds a request to the queue.
+     * The body is written to the queue immediately so the caller does not need to keep it.
+     * @param method the request method e.g. POST, PUT or DELETE
+     * @param url the url that will receive the request
+     * @param headers the request headers including any authorization. May be null
+     * @param body the request body or null
+     * @return the id of the queued request
+     * @throws IOException if the request could not be stored
+     */
+    public synchronized long add(String method, URL url, Map<String, String> headers, RequestBody body) throws IOException {
+        long id = nextId ++;
+        byte bodyType = BODY_NONE;
+        byte[] inline = null;
+        File spooled = null;
+        if(body != null) {
+            long length = body.contentLength();
+            if(length >= 0 && length <= INLINE_LIMIT) {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream((int)length);
+                body.writeTo(bytes);
+                inline = bytes.toByteArray();
+                bodyType = BODY_INLINE;
+            } else {
+                spooled = new File(bodies, id + ".body");
+                OutputStream out = new FileOutputStream(spooled);
+                try {
+                    body.writeTo(out);
+                } catch (IOException e) {
+                    out.close();
+                    spooled.delete();
+                    throw e;
+                }
+                out.close();
+                bodyType = BODY_SPOOLED;
+            }
+        }
+        append(ADD, createEntry(id, method, url, headers, bodyType, inline, spooled));
+        return id;
+    }
+
+    /**
+     * Adds a request whose body is read from a file when the request is sent.
+     * The file is not copied so it must not be changed or removed until the request has been sent.
+     * @param method the request method e.g. POST or PUT
+     * @param url the url that will receive the request
+     * @param headers the request headers including any authorization. May be null
+     * @param bodyFile the file holding the request body
+     * @return the id of the queued request
+     * @throws IOException if the request could not be stored
+     */
+    public synchronized long add(String method, URL url, Map<String, String> headers, File bodyFile) throws IOException {
+        long id = nextId ++;
+        append(ADD, createEntry(id, method, url, headers, BODY_REFERENCED, null, bodyFile.getAbsoluteFile()));
+        return id;
+    }
+
+    /**
+     * Returns the number of requests waiting to be sent
+     * @return the number of pending requests
+     */
+    public synchronized int size() {
+        return pending.size();
+    }
+
+    /**
+     * Returns the ids of the requests waiting to be sent in the order they were added
+     * @return the pending ids
+     */
+    public synchronized List<Long> getPendingIds() {
+        return new ArrayList<>(pending.keySet());
+    }
+
+    /**
+     * Sends the pending requests in the order they were added.
+     * Up to the given number of requests are sent at the same time,
+     * so with more than one a later request may reach the server before an earlier one.
+     * Replay stops starting new requests once the server cannot be reached or responds with a temporary error.
+     * @param maxConcurrent the maximum number of requests in flight
+     * @return the number of requests that were sent successfully
+     * @throws IOException if the queue could not be read
+     */
+    public int replay(int maxConcurrent) throws IOException {
+        synchronized (replayLock) {
+            maxConcurrent = Math.max(1, maxConcurrent);
+            final AtomicBoolean unavailable = new AtomicBoolean(false);
+            final AtomicInteger sent = new AtomicInteger(0);
+            final Semaphore slots = new Semaphore(maxConcurrent);
+            ExecutorService pool = Executors.newFixedThreadPool(maxConcurrent);
+            try {
+                for(long id : getPendingIds()) {
+                    if(unavailable.get()) break;
+                    slots.acquire();
+                    final Entry entry = unavailable.get() ? null : read(id);
+                    if(entry == null) {
+                        slots.release();
+                        continue;
+                    }
+                    pool.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            try {
+                                int result = send(entry);
+                                if(result == SENT) {
+                                    sent.incrementAndGet();
+                                } else if(result == UNAVAILABLE) {
+                                    unavailable.set(true);
+                                }
+                            } finally {
+                                slots.release();
+                            }
+                        }
+                    });
+                }
+                pool.shutdown();
+                pool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while replaying the queue");
+            } finally {
+                pool.shutdownNow();
+            }
+            return sent.get();
+        }
+    }
+
+    /**
+     * Sends a single request
+     * @param entry the queued request
+     * @return {@link #SENT}, {@link #REJECTED} or {@link #UNAVAILABLE} if the request should be attempted again later
+     */
+    private int send(Entry entry) {
+        if(entry.bodyType == BODY_REFERENCED && !entry.bodyFile.exists()) {
+            IOException e = new IOException("The body file " + entry.bodyFile + " no longer exists");
+            complete(entry);
+            if(replayListener != null) replayListener.onFailed(entry, -1, e);
+            return REJECTED;
+        }
+        Request request = entry.toRequest();
+        try {
+            request.read();
+        } catch (IOException e) {
+            int code = request.getResponseCode();
+            if(code >= 400 && code < 500 && code != 408 && code != 429) {
+                // the server will never accept this request
+                complete(entry);
+                if(replayListener != null) replayListener.onFailed(entry, code, e);
+                return REJECTED;
+            }
+            return UNAVAILABLE;
+        }
+        complete(entry);
+        if(replayListener != null) replayListener.onSent(entry, request.getResponseCode());
+        return SENT;
+    }
+
+    /**
+     * Marks a request as done and removes its spooled body
+     * @param entry the queued request
+     */
+    private void complete(Entry entry) {
+        try {
+            synchronized (this) {
+                if(pending.containsKey(entry.id)) {
+                    append(DONE, longBytes(entry.id));
+                }
+            }
+        } catch (IOException e) {
+            // the request will be sent again after a restart
+            e.printStackTrace();
+        }
+        if(entry.bodyType == BODY_SPOOLED) entry.bodyFile.delete();
+    }
+
+    /**
+     * Rewrites the log so it only contains pending requests
+     * @throws IOException
+     */
+    public synchronized void compact() throws IOException {
+        logOut.close();
+        File temp = new File(log.getPath() + ".tmp");
+        TreeMap<Long, Long> offsets = new TreeMap<>();
+        RandomAccessFile in = new RandomAccessFile(log, "r");
+        FileOutputStream file = new FileOutputStream(temp);
+        DataOutputStream out = new DataOutputStream(file);
+        try {
+            long position = 0;
+            for(Map.Entry<Long, Long> entry : pending.entrySet()) {
+                in.seek(entry.getValue());
+                int length = in.readInt();
+                byte[] record = new byte[length + 12];
+                in.seek(entry.getValue());
+                in.readFully(record);
+                out.write(record);
+                offsets.put(entry.getKey(), position);
+                position += record.length;
+            }
+            out.flush();
+            file.getFD().sync();
+        } finally {
+            in.close();
+            out.close();
+        }
+        if(!temp.renameTo(log)) {
+            temp.delete();
+            logOut = new FileOutputStream(log, true);
+            throw new IOException("Could not replace " + log);
+        }
+        pending.clear();
+        pending.putAll(offsets);
+        doneRecords = 0;
+        logOut = new FileOutputStream(log, true);
+    }
+
+    /**
+     * Closes the log
+     * @throws IOException
+     */
+    public synchronized void close() throws IOException {
+        logOut.close();
+    }
+
+    /**
+     * Reads the log into the index of pending requests.
+     * A record that was only partially written when the process died is discarded.
+     */
+    private void load() throws IOException {
+        if(log.exists()) {
+            long valid = 0;
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(log)));
+            try {
+                while(true) {
+                    byte[] payload = readRecord(in);
+                    if(payload == null) break;
+                    DataInputStream record = new DataInputStream(new ByteArrayInputStream(payload));
+                    byte type = record.readByte();
+                    long id = record.readLong();
+                    if(type == ADD) {
+                        pending.put(id, valid);
+                    } else if(type == DONE) {
+                        pending.remove(id);
+                        doneRecords ++;
+                    }
+                    nextId = Math.max(nextId, id + 1);
+                    valid += payload.length + 12;
+                }
+            } finally {
+                in.close();
+            }
+            if(valid < log.length()) {
+                RandomAccessFile file = new RandomAccessFile(log, "rw");
+                try {
+                    file.setLength(valid);
+                } finally {
+                    file.close();
+                }
+            }
+        }
+        // remove bodies that were spooled for requests that never made it into the log or are done
+        File[] files = bodies.listFiles();
+        if(files != null) {
+            for(File file : files) {
+                String name = file.getName();
+                try {
+                    long id = Long.parseLong(name.substring(0, name.indexOf('.')));
+                    if(!pending.containsKey(id)) file.delete();
+                } catch (RuntimeException e) {
+                    file.delete();
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads a record in the form length, payload, crc
+     * @return the payload or null if the log ends here
+     */
+    private static byte[] readRecord(DataInputStream in) throws IOException {
+        try {
+            int length = in.readInt();
+            if(length <= 0 || length > 64 * 1024 * 1024) return null;
+            byte[] payload = new byte[length];
+            in.readFully(payload);
+            long crc = in.readLong();
+            return crc == checksum(payload) ? payload : null;
+        } catch (EOFException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Appends a record to the log and syncs it to disk
+     */
+    private void append(byte type, byte[] data) throws IOException {
+        byte[] payload = new byte[data.length + 1];
+        payload[0] = type;
+        System.arraycopy(data, 0, payload, 1, data.length);
+        long offset = log.length();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(payload.length + 12);
+        DataOutputStream record = new DataOutputStream(bytes);
+        record.writeInt(payload.length);
+        record.write(payload);
+        record.writeLong(checksum(payload));
+        logOut.write(bytes.toByteArray());
+        logOut.flush();
+        logOut.getFD().sync();
+
+        long id = readLong(data);
+        if(type == ADD) {
+            pending.put(id, offset);
+        } else {
+            pending.remove(id);
+            doneRecords ++;
+            if(doneRecords >= COMPACT_THRESHOLD && doneRecords > pending.size()) {
+                compact();
+            }
+        }
+    }
+
+    /**
+     * Reads a pending request from the log
+     * @param id the request id
+     * @return the request or null if it is no longer pending
+     */
+    private synchronized Entry read(long id) throws IOException {
+        Long offset = pending.get(id);
+        if(offset == null) return null;
+        RandomAccessFile in = new RandomAccessFile(log, "r");
+        try {
+            in.seek(offset);
+            byte[] payload = new byte[in.readInt()];
+            in.readFully(payload);
+            DataInputStream record = new DataInputStream(new ByteArrayInputStream(payload));
+            record.readByte();
+            return readEntry(record);
+        } finally {
+            in.close();
+        }
+    }
+
+    private static byte[] createEntry(long id, String method, URL url, Map<String, String> headers,
+                                      byte bodyType, byte[] inline, File bodyFile) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeLong(id);
+        out.writeUTF(method.toUpperCase(Locale.US));
+        out.writeUTF(url.toString());
+        out.writeInt(headers == null ? 0 : headers.size());
+        if(headers != null) {
+            for(Map.Entry<String, String> header : headers.entrySet()) {
+                out.writeUTF(header.getKey());
+                out.writeUTF(header.getValue());
+            }
+        }
+        out.writeByte(bodyType);
+        if(bodyType == BODY_INLINE) {
+            out.writeInt(inline.length);
+            out.write(inline);
+        } else if(bodyType != BODY_NONE) {
+            out.writeUTF(bodyFile.getPath());
+        }
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    private static Entry readEntry(DataInputStream in) throws IOException {
+        long id = in.readLong();
+        String method = in.readUTF();
+        URL url = new URL(in.readUTF());
+        int count = in.readInt();
+        Map<String, String> headers = new LinkedHashMap<>();
+        for(int i = 0; i < count; i ++) {
+            headers.put(in.readUTF(), in.readUTF());
+        }
+        byte bodyType = in.readByte();
+        byte[] inline = null;
+        File bodyFile = null;
+        if(bodyType == BODY_INLINE) {
+            inline = new byte[in.readInt()];
+            in.readFully(inline);
+        } else if(bodyType != BODY_NONE) {
+            bodyFile = new File(in.readUTF());
+        }
+        return new Entry(id, method, url, headers, bodyType, inline, bodyFile);
+    }
+
+    private static long checksum(byte[] payload) {
+        CRC32 crc = new CRC32();
+        crc.update(payload, 0, payload.length);
+        return crc.getValue();
+    }
+
+    private static byte[] longBytes(long value) {
+        byte[] bytes = new byte[8];
+        for(int i = 7; i >= 0; i --) {
+            bytes[i] = (byte)value;
+            value >>>= 8;
+        }
+        return bytes;
+    }
+
+    private static long readLong(byte[] bytes) {
+        long value = 0;
+        for(int i = 0; i < 8; i ++) {
+            value = (value << 8) | (bytes[i] & 0xff);
+        }
+        return value;
+    }
+
+    /**
+     * A request waiting in the queue
+     */
+    public static class Entry {
+        private final long id;
+        private final String method;
+        private final URL url;
+        private final Map<String, String> headers;
+        private final byte bodyType;
+        private final byte[] inline;
+        private final File bodyFile;
+
+        private Entry(long id, String method, URL url, Map<String, String> headers, byte bodyType, byte[] inline, File bodyFile) {
+            this.id = id;
+            this.method = method;
+            this.url = url;
+            this.headers = Collections.unmodifiableMap(headers);
+            this.bodyType = bodyType;
+            this.inline = inline;
+            this.bodyFile = bodyFile;
+        }
+
+        public long getId() {
+            return id;
+        }
+
+        public String getMethod() {
+            return method;
+        }
+
+        public URL getUrl() {
+            return url;
+        }
+
+        public Map<String, String> getHeaders() {
+            return headers;
+        }
+
+        /**
+         * Creates the request to send
+         * @return a new request
+         */
+        private Request toRequest() {
+            RequestBody body = null;
+            if(bodyType == BODY_INLINE) {
+                body = RequestBody.create(inline);
+            } else if(bodyType != BODY_NONE) {
+                body = RequestBody.create(bodyFile);
+            }
+            Request request = new QueuedRequest(url, method, body);
+            for(Map.Entry<String, String> header : headers.entrySet()) {
+                request.setHeader(header.getKey(), header.getValue());
+            }
+            return request;
+        }
+    }
+
+    /**
+     * A request replayed from the queue
+     */
+    private static class QueuedRequest extends Request {
+        private final RequestBody body;
+
+        QueuedRequest(URL url, String method, RequestBody body) {
+            super(url, method);
+            this.body = body;
+        }
+
+        @Override
+        protected void onConnected(HttpURLConnection conn) throws IOException {
+            if(body != null) writeData(conn, body);
+        }
+    }
+
+    public interface OnReplayListener {
+        /**
+         * Receives a request that was delivered
+         * @param entry the queued request
+         * @param responseCode the response code
+         */
+        void onSent(Entry entry, int responseCode);
+
+        /**
+         * Receives a request that was rejected and removed from the queue
+         * @param entry the queued request
+         * @param responseCode the response code or -1 if the request could not be sent
+         * @param e the error
+         */
+        void onFailed(Entry entry, int responseCode, IOException e);
+    }
+}
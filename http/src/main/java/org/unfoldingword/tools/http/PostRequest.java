@@ -8,7 +8,7 @@ import java.net.URL;
  * Implements a post request
  */
 public class PostRequest extends Request {
-    private final String data;
+    private final RequestBody body;
 
     /**
      * Creates a new post request
@@ -16,12 +16,26 @@ public class PostRequest extends Request {
      * @param data the post data
      */
     public PostRequest(URL url, String data) {
+        this(url, RequestBody.create(data));
+    }
+
+    /**
+     * Creates a new post request with a streamed body
+     * @param url the url receiving the post request
+     * @param body the post body
+     */
+    public PostRequest(URL url, RequestBody body) {
         super(url, "POST");
-        this.data = data;
+        this.body = body;
+    }
+
+    @Override
+    protected boolean isRepeatable() {
+        return body.isRepeatable();
     }
 
     @Override
     protected void onConnected(HttpURLConnection conn) throws IOException {
-        writeData(conn, data);
+        writeData(conn, body);
     }
 }
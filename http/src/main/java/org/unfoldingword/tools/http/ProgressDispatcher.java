@@ -0,0 +1,223 @@
+package org.unfoldingword.tools.http;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Decides when the progress of a transfer is published and delivers it to a listener.
+ * The first update is published straight away. After that an update is published once both the minimum interval
+ * has passed and the minimum number of bytes have been transferred since the previous update
+ * so fast transfers do not flood the listener while slow transfers still report regularly.
+ *
+ * When an executor is set updates are delivered on it instead of the thread doing the transfer.
+ * Updates are coalesced: while the listener is busy newer updates replace the one waiting to be delivered
+ * so a slow listener only ever sees the latest progress and never holds up the transfer.
+ *
+ * Listeners that implement {@link Request.OnRateProgressListener} also receive the transfer rate
+ * and an estimate of the time remaining.
+ */
+public class ProgressDispatcher {
+    private static final double RATE_SMOOTHING = 0.3;
+
+    private final Request.OnProgressListener listener;
+    private long minBytes = 0;
+    private long minMillis = 250;
+    private Executor executor = null;
+
+    private boolean started = false;
+    private boolean published = false;
+    private long lastTime = 0;
+    private long lastProgress = 0;
+    private long sampleTime = 0;
+    private long sampleProgress = 0;
+    private double rate = -1;
+
+    private Update pending = null;
+    private boolean delivering = false;
+    private final Runnable drain = new Runnable() {
+        @Override
+        public void run() {
+            drain();
+        }
+    };
+
+    /**
+     * Creates a new dispatcher
+     * @param listener the listener that will receive progress events. May be null.
+     */
+    public ProgressDispatcher(Request.OnProgressListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Sets how often progress is published.
+     * An update is sent once both thresholds have been reached since the last update.
+     * @param bytes the minimum number of bytes between updates
+     * @param millis the minimum number of milliseconds between updates
+     */
+    public void setInterval(long bytes, long millis) {
+        if(bytes < 0 || millis < 0) throw new IllegalArgumentException("The progress interval cannot be negative");
+        this.minBytes = bytes;
+        this.minMillis = millis;
+    }
+
+    /**
+     * Sets the executor that updates are delivered on such as one that posts to an Android Handler
+     * @param executor the executor or null to deliver on the thread doing the transfer
+     */
+    public void setExecutor(Executor executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Marks the start of a transfer so the rate of the first update can be measured
+     * @param progress the number of bytes already transferred such as when resuming a download
+     */
+    public synchronized void start(long progress) {
+        long now = System.nanoTime();
+        started = true;
+        published = false;
+        sampleTime = now;
+        sampleProgress = progress;
+        rate = -1;
+    }
+
+    /**
+     * Records the progress of the transfer and publishes it if the interval has been reached
+     * @param max the total number of bytes or -1 if unknown
+     * @param progress the number of bytes transferred
+     */
+    public void update(long max, long progress) {
+        if(listener == null) return;
+        Update update;
+        synchronized (this) {
+            long now = System.nanoTime();
+            if(published && (progress - lastProgress < minBytes || now - lastTime < minMillis * 1000000L)) return;
+            update = record(now, max, progress);
+        }
+        deliver(update);
+    }
+
+    /**
+     * Publishes the progress of the transfer regardless of the interval such as when the transfer completes
+     * @param max the total number of bytes or -1 if unknown
+     * @param progress the number of bytes transferred
+     */
+    public void publish(long max, long progress) {
+        if(listener == null) return;
+        Update update;
+        synchronized (this) {
+            update = record(System.nanoTime(), max, progress);
+        }
+        deliver(update);
+    }
+
+    /**
+     * Updates the rate estimate and captures the progress to be delivered
+     * @param now the current time in nanoseconds
+     * @param max the total number of bytes
+     * @param progress the number of bytes transferred
+     * @return the update
+     */
+    private Update record(long now, long max, long progress) {
+        if(!started) {
+            started = true;
+            sampleTime = now;
+            sampleProgress = progress;
+        }
+        long elapsed = now - sampleTime;
+        if(elapsed > 0 && progress > sampleProgress) {
+            double current = (progress - sampleProgress) * 1000000000.0 / elapsed;
+            rate = rate < 0 ? current : rate + RATE_SMOOTHING * (current - rate);
+            sampleTime = now;
+            sampleProgress = progress;
+        }
+        published = true;
+        lastTime = now;
+        lastProgress = progress;
+
+        long bytesPerSecond = rate < 0 ? -1 : (long)rate;
+        long eta = -1;
+        if(max > 0 && rate > 0) {
+            eta = (long)(Math.max(0, max - progress) * 1000 / rate);
+        }
+        return new Update(max, progress, bytesPerSecond, eta);
+    }
+
+    /**
+     * Queues an update and makes sure something is delivering the queue
+     * @param update the update
+     */
+    private void deliver(Update update) {
+        synchronized (this) {
+            pending = update;
+            if(delivering) return;
+            delivering = true;
+        }
+        Executor executor = this.executor;
+        if(executor != null) {
+            try {
+                executor.execute(drain);
+                return;
+            } catch (RejectedExecutionException e) {
+                // deliver on this thread instead
+            }
+        }
+        drain();
+    }
+
+    /**
+     * Delivers queued updates until there are none left
+     */
+    private void drain() {
+        while(true) {
+            Update update;
+            synchronized (this) {
+                update = pending;
+                pending = null;
+                if(update == null) {
+                    delivering = false;
+                    return;
+                }
+            }
+            boolean sent = false;
+            try {
+                update.sendTo(listener);
+                sent = true;
+            } finally {
+                if(!sent) {
+                    synchronized (this) {
+                        delivering = false;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * A snapshot of the progress
+     */
+    private static class Update {
+        private final long max;
+        private final long progress;
+        private final long bytesPerSecond;
+        private final long etaMillis;
+
+        Update(long max, long progress, long bytesPerSecond, long etaMillis) {
+            this.max = max;
+            this.progress = progress;
+            this.bytesPerSecond = bytesPerSecond;
+            this.etaMillis = etaMillis;
+        }
+
+        void sendTo(Request.OnProgressListener listener) {
+            if(listener instanceof Request.OnRateProgressListener && progress > 0) {
+                ((Request.OnRateProgressListener)listener).onProgress(max > 0 ? max : -1, progress, bytesPerSecond, etaMillis);
+            } else if(max <= 0 || progress <= 0) {
+                listener.onIndeterminate();
+            } else {
+                listener.onProgress(max, progress);
+            }
+        }
+    }
+}
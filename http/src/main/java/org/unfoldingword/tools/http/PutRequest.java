@@ -8,7 +8,7 @@ import java.net.URL;
  * Implements a put request
  */
 public class PutRequest extends Request {
-    private final String data;
+    private final RequestBody body;
 
     /**
      * Creates a new put request
@@ -16,12 +16,26 @@ public class PutRequest extends Request {
      * @param data the put data
      */
     public PutRequest(URL url, String data) {
+        this(url, RequestBody.create(data));
+    }
+
+    /**
+     * Creates a new put request with a streamed body
+     * @param url the url receiving the put request
+     * @param body the put body
+     */
+    public PutRequest(URL url, RequestBody body) {
         super(url, "PUT");
-        this.data = data;
+        this.body = body;
+    }
+
+    @Override
+    protected boolean isRepeatable() {
+        return body.isRepeatable();
     }
 
     @Override
     protected void onConnected(HttpURLConnection conn) throws IOException {
-        writeData(conn, data);
+        writeData(conn, body);
     }
 }
@@ -2,23 +2,43 @@ package org.unfoldingword.tools.http;
 
 import android.util.Base64;
 
-import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
-import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.HttpURLConnection;
 import java.net.URL;
-
-import javax.net.ssl.HttpsURLConnection;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Executor;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
 
 /**
  * Represents a network request
  */
 public abstract class Request {
+    private static final int BUFFER_SIZE = 8192;
+    private static final int MAX_PRESIZE = 1024 * 1024; // the most memory reserved up front for a response of known length
+    private static final int UPDATE_INTERVAL = 1048 * 50; // send an upload update each time some bytes have been transferred
+
     private final URL url;
     private final String requestMethod;
     private String auth = null;
@@ -27,6 +47,51 @@ public abstract class Request {
     private String responseMessage = null;
     private int ttl = 5000;
     private OnProgressListener progressListener = null;
+    private OnProgressListener uploadProgressListener = null;
+    private long progressUpdateBytes = 0;
+    private long progressUpdateMillis = 250;
+    private Executor progressExecutor = null;
+    private long uploadUpdateBytes = UPDATE_INTERVAL;
+    private long uploadUpdateMillis = 500;
+    private boolean compression = false;
+    private boolean encodedResponse = false;
+    private long bytesReceived = 0;
+    private long bytesDecoded = 0;
+    private boolean resumable = false;
+    private boolean incremental = false;
+    private boolean conditionalDownload = false;
+    private boolean unchanged = false;
+    private final Map<String, String> headers = new LinkedHashMap<>();
+    private final Map<String, String> callHeaders = new LinkedHashMap<>();
+    private Map<String, List<String>> responseHeaders = null;
+    private volatile HttpURLConnection activeConnection = null;
+    private volatile boolean cancelled = false;
+    private ResponseCache responseCache = null;
+    private String cacheKey = null;
+    private InputStream cachedBody = null;
+    private long cachedLength = -1;
+    private boolean cachedResponse = false;
+    private RetryPolicy retryPolicy = null;
+    private int attempts = 0;
+    private RequestMetricsListener metricsListener = null;
+    private long startedAt = 0;
+    private long connectedAt = 0;
+    private long sentAt = 0;
+    private long respondedAt = 0;
+    private long bytesSent = 0;
+    private int bufferSize = BUFFER_SIZE;
+    private BufferPool bufferPool = null;
+    private final Map<String, String> expectedDigests = new LinkedHashMap<>();
+    private final Map<String, String> serverDigests = new LinkedHashMap<>();
+    private final Map<String, String> digestResults = new LinkedHashMap<>();
+    private boolean verifyDigestHeaders = false;
+    private Priority priority = Priority.NORMAL;
+    private BandwidthLimiter bandwidthLimiter = null;
+    private TransferScheduler transferScheduler = null;
+    private TransferScheduler activeScheduler = null;
+    private Transport transport = null;
+    private long maxBodySize = 0;
+    private File spillDirectory = null;
 
     /**
      * Prepare a new network request
@@ -83,6 +148,46 @@ public abstract class Request {
         this.progressListener = listener;
     }
 
+    /**
+     * Sets how often download progress is published.
+     * An update is sent once both thresholds have been reached since the last update.
+     * @param bytes the minimum number of bytes between updates
+     * @param millis the minimum number of milliseconds between updates
+     */
+    public void setProgressInterval(long bytes, long millis) {
+        if(bytes < 0 || millis < 0) throw new IllegalArgumentException("The progress interval cannot be negative");
+        this.progressUpdateBytes = bytes;
+        this.progressUpdateMillis = millis;
+    }
+
+    /**
+     * Sets the executor that download and upload progress is delivered on.
+     * Updates are coalesced while the listener is busy so a slow listener never holds up the transfer.
+     * @param executor the executor or null to deliver progress on the thread doing the transfer
+     */
+    public void setProgressExecutor(Executor executor) {
+        this.progressExecutor = executor;
+    }
+
+    /**
+     * Sets the listener to receive progress updates while the request body is uploaded
+     * @param listener a listener that will receive upload progress events
+     */
+    public void setUploadProgressListener(OnProgressListener listener) {
+        this.uploadProgressListener = listener;
+    }
+
+    /**
+     * Sets how often upload progress is published.
+     * An update is sent once either threshold has been reached since the last update.
+     * @param bytes the number of bytes between updates
+     * @param millis the number of milliseconds between updates
+     */
+    public void setUploadProgressInterval(long bytes, long millis) {
+        this.uploadUpdateBytes = bytes;
+        this.uploadUpdateMillis = millis;
+    }
+
     /**
      * Sets the token used for authenticating the post request
      * Tokens take precedence over credentials
@@ -118,17 +223,244 @@ public abstract class Request {
         this.contentType = contentType;
     }
 
+    /**
+     * Sets a header that will be sent with the request
+     * @param name the header name
+     * @param value the header value or null to remove the header
+     */
+    public void setHeader(String name, String value) {
+        if(value == null) {
+            headers.remove(name);
+        } else {
+            headers.put(name, value);
+        }
+    }
+
+    /**
+     * Enables resumable downloads.
+     * When enabled {@link #download(File)} writes to a ".part" file next to the destination
+     * and keeps it if the download fails so the next attempt can continue where it left off.
+     * The destination is only replaced once the download is complete.
+     * @param resumable true if downloads should be resumable
+     */
+    public void setResumable(boolean resumable) {
+        this.resumable = resumable;
+    }
+
+    /**
+     * Enables incremental downloads.
+     * When enabled {@link #download(File)} records the validators of the response in a ".meta" file next to the destination.
+     * The next download asks the server whether the resource has changed and leaves the destination
+     * in place if it has not, see {@link #isUnchanged()}.
+     * @param incremental true if unchanged files should not be downloaded again
+     */
+    public void setIncremental(boolean incremental) {
+        this.incremental = incremental;
+    }
+
+    /**
+     * Checks if incremental downloads are enabled
+     * @return true if unchanged files are not downloaded again
+     */
+    public boolean isIncremental() {
+        return incremental;
+    }
+
+    /**
+     * Checks if the last incremental download found the destination to be current
+     * @return true if the server confirmed the resource has not changed
+     */
+    public boolean isUnchanged() {
+        return unchanged;
+    }
+
+    /**
+     * Sets the cache used to store responses.
+     * Cached GET responses are revalidated with the server and served from the cache if they have not changed.
+     * @param cache the response cache or null to disable caching
+     */
+    public void setResponseCache(ResponseCache cache) {
+        this.responseCache = cache;
+    }
+
+    /**
+     * Sets the policy used to retry failed requests
+     * @param policy the retry policy or null to disable retries
+     */
+    public void setRetryPolicy(RetryPolicy policy) {
+        this.retryPolicy = policy;
+    }
+
+    /**
+     * Sets the listener to receive the timing and size of each call.
+     * Metrics for {@link #openResponse()} are reported once the body is closed.
+     * @param listener a listener that will receive request metrics or null to disable metrics
+     */
+    public void setMetricsListener(RequestMetricsListener listener) {
+        this.metricsListener = listener;
+    }
+
+    /**
+     * Sets the size of the buffers used to transfer the request and response bodies
+     * @param bytes the buffer size
+     */
+    public void setBufferSize(int bytes) {
+        if(bytes <= 0) throw new IllegalArgumentException("The buffer size must be positive");
+        this.bufferSize = bytes;
+    }
+
+    /**
+     * Sets the pool that transfer buffers are borrowed from
+     * @param pool the buffer pool or null to use {@link BufferPool#getDefault()}
+     */
+    public void setBufferPool(BufferPool pool) {
+        this.bufferPool = pool;
+    }
+
+    /**
+     * Returns the pool that transfer buffers are borrowed from
+     * @return the buffer pool
+     */
+    private BufferPool getBufferPool() {
+        return bufferPool != null ? bufferPool : BufferPool.getDefault();
+    }
+
+    /**
+     * Computes a digest of downloaded files.
+     * The digest is calculated as the bytes are written so the file never has to be read again.
+     * @param algorithm the digest algorithm e.g. "SHA-256" or "MD5"
+     */
+    public void addDigest(String algorithm) {
+        addDigest(algorithm, null);
+    }
+
+    /**
+     * Computes a digest of downloaded files and verifies it.
+     * If the digest does not match the file is deleted and the download fails with a {@link ChecksumException}.
+     * @param algorithm the digest algorithm e.g. "SHA-256" or "MD5"
+     * @param expected the expected digest in hex or base64 or null to only compute the digest
+     */
+    public void addDigest(String algorithm, String expected) {
+        algorithm = algorithm.toUpperCase(Locale.US);
+        if(newDigest(algorithm) == null) {
+            throw new IllegalArgumentException("Unsupported digest algorithm " + algorithm);
+        }
+        expectedDigests.put(algorithm, expected);
+    }
+
+    /**
+     * Verifies downloaded files against the Content-MD5 and Digest response headers.
+     * Headers are only checked on complete responses that were not compressed.
+     * @param verify true if the digest headers should be verified
+     */
+    public void setVerifyDigestHeaders(boolean verify) {
+        this.verifyDigestHeaders = verify;
+    }
+
+    /**
+     * Returns a digest computed by the last download
+     * @param algorithm the digest algorithm
+     * @return the digest in lowercase hex or null if it was not computed
+     */
+    public String getDigest(String algorithm) {
+        return digestResults.get(algorithm.toUpperCase(Locale.US));
+    }
+
+    /**
+     * Sets the priority of the request.
+     * Low priority transfers yield bandwidth to other requests and
+     * {@link RequestExecutor} starts higher priority requests first.
+     * @param priority the request priority
+     */
+    public void setPriority(Priority priority) {
+        this.priority = priority;
+    }
+
+    /**
+     * Returns the priority of the request
+     * @return the request priority
+     */
+    public Priority getPriority() {
+        return priority;
+    }
+
+    /**
+     * Limits the throughput of this request.
+     * A limiter may be shared between requests to cap their combined throughput.
+     * @param limiter the bandwidth limiter or null for no limit
+     */
+    public void setBandwidthLimiter(BandwidthLimiter limiter) {
+        this.bandwidthLimiter = limiter;
+    }
+
+    /**
+     * Sets the scheduler that shares bandwidth between requests
+     * @param scheduler the scheduler or null to use {@link TransferScheduler#getDefault()}
+     */
+    public void setTransferScheduler(TransferScheduler scheduler) {
+        this.transferScheduler = scheduler;
+    }
+
+    /**
+     * Limits how much of a response may be held in memory.
+     * {@link #read()} fails with a {@link ResponseTooLargeException} as soon as the response is known to be larger,
+     * either from its Content-Length or while it is being received.
+     * {@link #readBody()} writes larger responses to a temporary file instead when a spill directory has been set.
+     * @param maxBytes the maximum size in bytes or 0 for no limit
+     */
+    public void setMaxBodySize(long maxBytes) {
+        if(maxBytes < 0) throw new IllegalArgumentException("The maximum body size cannot be negative");
+        this.maxBodySize = maxBytes;
+    }
+
+    /**
+     * Sets where {@link #readBody()} writes responses that are larger than the maximum body size
+     * @param directory the directory for temporary files or null to reject large responses
+     */
+    public void setSpillDirectory(File directory) {
+        this.spillDirectory = directory;
+    }
+
+    /**
+     * Sets the transport that opens the connections of this request.
+     * By default {@link Transport#getDefault()} is used.
+     * @param transport the transport or null to use the default transport
+     */
+    public void setTransport(Transport transport) {
+        this.transport = transport;
+    }
+
+    /**
+     * Enables compression negotiation.
+     * When enabled the request asks for gzip or deflate encoded responses.
+     * Compressed responses are always decoded transparently.
+     * @param compression true if compressed responses should be requested
+     */
+    public void setCompression(boolean compression) {
+        this.compression = compression;
+    }
+
     /**
      * Creates a new connection object
      * @return a connection object
      * @throws IOException
      */
     protected HttpURLConnection openConnection() throws IOException {
-        HttpURLConnection conn;
-        if(url.getProtocol().equals("https")) {
-            conn = (HttpsURLConnection)url.openConnection();
-        } else {
-            conn = (HttpURLConnection)url.openConnection();
+        responseCode = -1;
+        responseMessage = null;
+        responseHeaders = null;
+        bytesReceived = 0;
+        bytesDecoded = 0;
+        startedAt = System.nanoTime();
+        connectedAt = 0;
+        sentAt = 0;
+        respondedAt = 0;
+        bytesSent = 0;
+        HttpURLConnection conn = (transport != null ? transport : Transport.getDefault()).open(url);
+        activeConnection = conn;
+        if(cancelled) {
+            conn.disconnect();
+            throw new IOException("The request was cancelled");
         }
         if(this.auth != null) {
             conn.setRequestProperty("Authorization", this.auth);
@@ -136,22 +468,160 @@ public abstract class Request {
         if(contentType != null) {
             conn.setRequestProperty("Content-Type", contentType);
         }
+        if(compression) {
+            conn.setRequestProperty("Accept-Encoding", "gzip, deflate");
+        }
+        for(Map.Entry<String, String> header : headers.entrySet()) {
+            conn.setRequestProperty(header.getKey(), header.getValue());
+        }
+        for(Map.Entry<String, String> header : callHeaders.entrySet()) {
+            conn.setRequestProperty(header.getKey(), header.getValue());
+        }
+        KeepAlivePolicy.getDefault().prepare(conn);
         conn.setRequestMethod(requestMethod);
         conn.setConnectTimeout(ttl);
         conn.setReadTimeout(ttl);
 
+        closeCachedBody();
+        cacheKey = isCacheable() ? getCacheKey() : null;
+        Map<String, String> sentCallHeaders = new LinkedHashMap<>(callHeaders);
+        callHeaders.clear();
+        CacheEntry cached = null;
+        if(cacheKey != null) {
+            cached = responseCache.get(cacheKey);
+            if(cached != null) {
+                if(cached.getETag() != null) conn.setRequestProperty("If-None-Match", cached.getETag());
+                if(cached.getLastModified() != null) conn.setRequestProperty("If-Modified-Since", cached.getLastModified());
+                responseCache.recordRevalidation();
+            }
+        }
+
         try {
             onConnected(conn);
+            if(connectedAt == 0) {
+                // connect explicitly so the connection time can be told apart from the server's response time
+                conn.connect();
+                connectedAt = System.nanoTime();
+            }
+            if(sentAt == 0) sentAt = System.nanoTime();
         } catch (IOException e) {
             throw e;
         } finally {
             responseCode = conn.getResponseCode();
+            respondedAt = System.nanoTime();
             responseMessage = conn.getResponseMessage();
+            responseHeaders = conn.getHeaderFields();
+        }
+
+        if(cacheKey != null) {
+            if(responseCode == HttpURLConnection.HTTP_NOT_MODIFIED && cached != null) {
+                InputStream body = responseCache.openBody(cacheKey);
+                if(body == null) {
+                    // the entry was evicted while we were waiting so request it again
+                    release(conn, null);
+                    responseCache.remove(cacheKey);
+                    callHeaders.putAll(sentCallHeaders);
+                    return openConnection();
+                }
+                cachedBody = body;
+                cachedLength = cached.getLength();
+                cachedResponse = true;
+                responseCode = HttpURLConnection.HTTP_OK;
+                responseCache.recordHit(cachedLength);
+            } else if(responseCode == HttpURLConnection.HTTP_OK) {
+                responseCache.recordMiss();
+            }
         }
 
         return conn;
     }
 
+    /**
+     * Checks if the response to this request may be cached
+     * @return true if the response can be stored in or served from the cache
+     */
+    private boolean isCacheable() {
+        if(responseCache == null || !requestMethod.equals("GET")) return false;
+        // partial and caller controlled conditional requests bypass the cache
+        for(String name : new String[]{"Range", "If-None-Match", "If-Modified-Since"}) {
+            if(headers.containsKey(name) || callHeaders.containsKey(name)) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Identifies this request in the response cache.
+     * The auth is included so responses are never shared between users.
+     * @return the cache key
+     */
+    private String getCacheKey() {
+        return requestMethod + " " + url.toString() + (auth != null ? " " + auth : "");
+    }
+
+    /**
+     * Identifies requests that would produce the same response and can share a single fetch
+     * @return the coalescing key or null if the request should not be shared
+     */
+    String getCoalescingKey() {
+        if(!requestMethod.equals("GET") && !requestMethod.equals("HEAD")) return null;
+        StringBuilder key = new StringBuilder(requestMethod).append(" ").append(url);
+        Map<String, String> values = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        values.putAll(headers);
+        if(auth != null) values.put("Authorization", auth);
+        if(contentType != null) values.put("Content-Type", contentType);
+        for(Map.Entry<String, String> value : values.entrySet()) {
+            key.append("\n").append(value.getKey().toLowerCase(Locale.US)).append(": ").append(value.getValue());
+        }
+        key.append("\ncompression=").append(compression)
+                .append(" resumable=").append(resumable)
+                .append(" incremental=").append(incremental)
+                .append(" digests=").append(expectedDigests)
+                .append(" verify=").append(verifyDigestHeaders);
+        return key.toString();
+    }
+
+    /**
+     * Takes on the response of an identical request that was performed on our behalf
+     * @param other the request that was performed
+     */
+    void adoptResponse(Request other) {
+        responseCode = other.responseCode;
+        responseMessage = other.responseMessage;
+        responseHeaders = other.responseHeaders;
+        cachedResponse = other.cachedResponse;
+        unchanged = other.unchanged;
+        digestResults.clear();
+        digestResults.putAll(other.digestResults);
+        bytesReceived = 0;
+        bytesDecoded = 0;
+    }
+
+    /**
+     * Releases a cached body that was not consumed
+     */
+    private void closeCachedBody() {
+        if(cachedBody != null) {
+            try {
+                cachedBody.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            cachedBody = null;
+        }
+        cachedLength = -1;
+        cachedResponse = false;
+    }
+
+    /**
+     * Returns the size of the response body
+     * @param connection the open connection
+     * @return the size of the body or -1 if unknown
+     */
+    private long getResponseLength(HttpURLConnection connection) {
+        if(cachedResponse) return cachedLength;
+        return connection.getContentLength();
+    }
+
     /**
      * Submits data to the connection.
      * Such as in a POST or PUT request.
@@ -160,11 +630,36 @@ public abstract class Request {
      * @throws IOException
      */
     protected void writeData(HttpURLConnection connection, String data) throws IOException {
+        writeData(connection, RequestBody.create(data));
+    }
+
+    /**
+     * Streams a body to the connection.
+     * Such as in a POST or PUT request.
+     * Bodies of a known size are sent with a fixed length, otherwise they are sent in chunks,
+     * so the connection never has to buffer the whole body.
+     * @param connection the connection that will receive the data
+     * @param body the body to be sent
+     * @throws IOException
+     */
+    protected void writeData(HttpURLConnection connection, RequestBody body) throws IOException {
         connection.setDoOutput(true);
-        DataOutputStream dos = new DataOutputStream(connection.getOutputStream());
-        dos.writeBytes(data);
-        dos.flush();
-        dos.close();
+        long length = body.contentLength();
+        if(length >= 0 && length <= Integer.MAX_VALUE) {
+            connection.setFixedLengthStreamingMode((int)length);
+        } else {
+            connection.setChunkedStreamingMode(0);
+        }
+        OutputStream out = connection.getOutputStream();
+        if(connectedAt == 0) connectedAt = System.nanoTime();
+        out = new UploadProgressOutputStream(out, length);
+        try {
+            body.writeTo(out, getBufferPool(), bufferSize);
+            out.flush();
+        } finally {
+            out.close();
+        }
+        sentAt = System.nanoTime();
     }
 
     /**
@@ -172,139 +667,1433 @@ public abstract class Request {
      * @param destination the file where the response will be downloaded to
      * @throws IOException
      */
-    public final void download(File destination) throws IOException {
-        HttpURLConnection connection = openConnection();
+    public final void download(final File destination) throws IOException {
+        execute(new Attempt<Void>() {
+            @Override
+            public Void run() throws IOException {
+                downloadOnce(destination);
+                return null;
+            }
+        }, true);
+    }
 
-        int responseSize = connection.getContentLength();
+    /**
+     * Performs a single attempt to download the response to a file
+     * @param destination the file where the response will be downloaded to
+     * @throws IOException
+     */
+    private void downloadOnce(File destination) throws IOException {
+        unchanged = false;
+        conditionalDownload = false;
+        File validators = new File(destination.getPath() + ".meta");
+        if(incremental) {
+            addValidators(destination, validators);
+        }
 
-        destination.getParentFile().mkdirs();
-        FileOutputStream out = new FileOutputStream(destination);
+        if(resumable) {
+            downloadResumable(destination, true);
+        } else {
+            downloadComplete(destination);
+        }
 
-        int updateInterval = 1048 * 50; // send an update each time some bytes have been downloaded
-        int updateQueue = 0;
-        int bytesRead = 0;
+        if(incremental && !unchanged) {
+            saveValidators(destination, validators);
+        }
+    }
 
-        InputStream in = null;
-        try {
-            in = new BufferedInputStream(connection.getInputStream());
-            byte[] buffer = new byte[4096];
-            int n = 0;
-            while ((n = in.read(buffer)) != -1) {
-                bytesRead += n;
-                updateQueue += n;
-                out.write(buffer, 0, n);
+    /**
+     * Makes the download conditional on the resource having changed since the destination was downloaded.
+     * Nothing is sent if the destination was modified locally.
+     * @param destination the file where the response will be downloaded to
+     * @param validators the file holding the validators of the previous download
+     */
+    private void addValidators(File destination, File validators) {
+        if(!destination.exists() || !validators.exists()) return;
+        Properties state = loadProperties(validators);
+        if(!Long.toString(destination.length()).equals(state.getProperty("length"))) return;
+        String etag = state.getProperty("etag");
+        String lastModified = state.getProperty("last-modified");
+        if(etag != null) callHeaders.put("If-None-Match", etag);
+        if(lastModified != null) callHeaders.put("If-Modified-Since", lastModified);
+        conditionalDownload = etag != null || lastModified != null;
+    }
 
-                // send updates
-                if (updateQueue >= updateInterval) {
-                    updateQueue = 0;
-                    publishProgress(responseSize, bytesRead);
-                }
-            }
-            publishProgress(responseSize, bytesRead);
-        } catch (Exception e) {
-            if(in != null) in.close();
-            out.close();
-            connection.disconnect();
-            if(destination.exists()) destination.delete();
-            throw e;
+    /**
+     * Records the validators of a completed download
+     * @param destination the downloaded file
+     * @param validators the file holding the validators
+     * @throws IOException
+     */
+    private void saveValidators(File destination, File validators) throws IOException {
+        String etag = getResponseHeader("ETag");
+        String lastModified = getResponseHeader("Last-Modified");
+        if(etag == null && lastModified == null) {
+            // the resource cannot be revalidated
+            validators.delete();
+            return;
         }
+        Properties state = new Properties();
+        if(etag != null) state.setProperty("etag", etag);
+        if(lastModified != null) state.setProperty("last-modified", lastModified);
+        state.setProperty("length", Long.toString(destination.length()));
+        saveProperties(validators, state);
+    }
 
-        if(in != null) in.close();
-        out.close();
-        connection.disconnect();
+    /**
+     * Checks if the server confirmed that the destination of a conditional download is current.
+     * The connection is released if it is.
+     * @param connection the open connection
+     * @return true if the destination should be left as it is
+     */
+    private boolean checkUnchanged(HttpURLConnection connection) {
+        if(!conditionalDownload || responseCode != HttpURLConnection.HTTP_NOT_MODIFIED) return false;
+        release(connection, null);
+        unchanged = true;
+        return true;
     }
 
     /**
-     * Reads the response as a string
-     * @return the response string
+     * Downloads the entire response straight to the destination
+     * @param destination the file where the response will be downloaded to
      * @throws IOException
      */
-    public final String read() throws IOException {
+    private void downloadComplete(File destination) throws IOException {
         HttpURLConnection connection = openConnection();
+        if(checkUnchanged(connection)) return;
 
-        int responseSize = connection.getContentLength();
-        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        long responseSize = getResponseLength(connection);
 
-        int updateInterval = 1048 * 50; // send an update each time some bytes have been downloaded
-        int updateQueue = 0;
-        int bytesRead = 0;
-
-        BufferedInputStream in = null;
+        InputStream in;
         try {
-            in = new BufferedInputStream(connection.getInputStream());
-            int n = 0;
-            while ((n = in.read()) != -1) {
-                out.write((byte) n);
-
-                // send updates
-                if (updateQueue >= updateInterval) {
-                    updateQueue = 0;
-                    publishProgress(responseSize, bytesRead);
-                }
+            // error responses leave an existing destination untouched
+            in = openBody(connection);
+        } catch (IOException e) {
+            release(connection, null);
+            throw e;
+        }
 
-            }
-            publishProgress(responseSize, bytesRead);
+        destination.getParentFile().mkdirs();
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(destination);
+            Map<String, MessageDigest> digests = createDigests();
+            transfer(in, digest(out, digests.values()), responseSize);
+            verifyDigests(digests);
         } catch (Exception e) {
+            if(out != null) out.close();
+            abort(connection, in);
+            if(destination.exists()) destination.delete();
             throw e;
-        } finally {
-            if(in != null) in.close();
-            out.close();
-            connection.disconnect();
         }
 
-        return out.toString("UTF-8");
+        out.close();
+        release(connection, in);
     }
 
     /**
-     * Sends notifications to the progress listener
-     * @param totalBytes the total size of the payload
-     * @param bytesRead the number of bytes read
+     * Extracts a zip, tar or tar.gz response into a directory as it is downloaded.
+     * The archive itself is never written to disk.
+     * If the download or extraction fails the extracted files are removed.
+     * @param directory the directory where the archive will be extracted to
+     * @return the extracted files
+     * @throws IOException
      */
-    private void publishProgress(long totalBytes, long bytesRead) {
-        if(progressListener == null) return;
-        if(totalBytes <= 0 || bytesRead <= 0) {
-            progressListener.onIndeterminate();
-        } else {
-            progressListener.onProgress(totalBytes, bytesRead);
-        }
-
+    public final List<File> downloadAndExtract(final File directory) throws IOException {
+        return execute(new Attempt<List<File>>() {
+            @Override
+            public List<File> run() throws IOException {
+                return extractOnce(directory);
+            }
+        }, true);
     }
 
     /**
-     * Returns the response code for this request
-     * @return the request response code
+     * Performs a single attempt to extract the response into a directory
+     * @param directory the directory where the archive will be extracted to
+     * @return the extracted files
+     * @throws IOException
      */
-    public int getResponseCode() {
-        return responseCode;
-    }
+    private List<File> extractOnce(File directory) throws IOException {
+        HttpURLConnection connection = openConnection();
 
-    /**
-     * Returns the error message for this request
-     * @return an error message
-     */
-    public String getResponseMessage() {
-        return responseMessage;
+        long responseSize = getResponseLength(connection);
+        InputStream in = null;
+        try {
+            in = new ProgressInputStream(openBody(connection), responseSize);
+            // the extractor reads the rest of the response before keeping anything
+            List<File> files = new ArchiveExtractor(getBufferPool()).extract(in, directory);
+            release(connection, in);
+            return files;
+        } catch (Exception e) {
+            abort(connection, in);
+            throw e;
+        }
     }
 
     /**
-     * Allows subclasses to perform operations afer the connection has been opened.
-     * For example: writing data to the connection.
-     *
+     * Downloads the response to a ".part" file, continuing from any previous attempt.
+     * The partial file is only kept on failure if the server gave us a validator
+     * so we can make sure the next attempt continues the same resource.
+     * @param destination the file where the response will be downloaded to
+     * @param retryRange true if the download may start over when the saved range is rejected
      * @throws IOException
      */
-    protected abstract void onConnected(HttpURLConnection conn) throws IOException;
-
-    public interface OnProgressListener {
-        /**
-         * Receives progress events
-         * @param max the total number of items being processed
-         * @param progress the number of items that have been successfully processed
-         */
-        void onProgress(long max, long progress);
+    private void downloadResumable(File destination, boolean retryRange) throws IOException {
+        File part = new File(destination.getPath() + ".part");
+        File meta = new File(destination.getPath() + ".part.meta");
+        destination.getParentFile().mkdirs();
+
+        Properties state = loadProperties(meta);
+        String validator = state.getProperty("etag", state.getProperty("last-modified"));
+        long offset = 0;
+        if(part.exists() && validator != null) {
+            offset = part.length();
+        } else {
+            // we cannot safely continue without a validator
+            part.delete();
+            meta.delete();
+            state.clear();
+        }
+        if(offset > 0) {
+            callHeaders.put("Range", "bytes=" + offset + "-");
+            callHeaders.put("If-Range", validator);
+        }
+        // ranges apply to the encoded body so the response must not be compressed
+        callHeaders.put("Accept-Encoding", "identity");
+
+        HttpURLConnection connection = openConnection();
+
+        if(checkUnchanged(connection)) {
+            // the destination is current so the partial file is of no use
+            part.delete();
+            meta.delete();
+            return;
+        }
+
+        if(responseCode == 416 && offset > 0) {
+            release(connection, null);
+            if(Long.toString(offset).equals(state.getProperty("length"))) {
+                // the previous attempt already received everything
+                Map<String, MessageDigest> digests = createDigests();
+                try {
+                    updateDigests(digests.values(), part);
+                    verifyDigests(digests);
+                } catch (ChecksumException e) {
+                    part.delete();
+                    meta.delete();
+                    throw e;
+                }
+                createProgressDispatcher(progressListener).publish(offset, offset);
+                completeResumable(part, meta, destination);
+                return;
+            }
+            part.delete();
+            meta.delete();
+            if(retryRange) {
+                downloadResumable(destination, false);
+                return;
+            }
+            throw new IOException("The server rejected the range request");
+        }
+
+        boolean append = false;
+        if(responseCode == 206) {
+            String contentRange = getResponseHeader("Content-Range");
+            if(contentRange == null || !contentRange.trim().startsWith("bytes " + offset + "-")) {
+                release(connection, null);
+                part.delete();
+                meta.delete();
+                throw new IOException("Unexpected content range " + contentRange);
+            }
+            append = true;
+        } else if(responseCode < 300) {
+            // the server sent the entire resource so start over
+            offset = 0;
+            state.clear();
+            String etag = getResponseHeader("ETag");
+            String lastModified = getResponseHeader("Last-Modified");
+            if(etag != null) state.setProperty("etag", etag);
+            if(lastModified != null) state.setProperty("last-modified", lastModified);
+        }
+
+        long responseSize = getResponseLength(connection);
+        long totalBytes = responseSize >= 0 ? offset + responseSize : -1;
+        if(totalBytes >= 0 && responseCode < 300) {
+            state.setProperty("length", Long.toString(totalBytes));
+        }
+        boolean canResume = state.getProperty("etag") != null || state.getProperty("last-modified") != null;
+
+        InputStream in = null;
+        FileOutputStream out = null;
+        try {
+            in = openBody(connection);
+            Map<String, MessageDigest> digests = createDigests();
+            if(append) {
+                // the digests must include the bytes received by previous attempts
+                updateDigests(digests.values(), part);
+            }
+            out = new FileOutputStream(part, append);
+            if(canResume) {
+                state.setProperty("bytes", Long.toString(offset));
+                saveProperties(meta, state);
+            }
+            transfer(in, digest(out, digests.values()), totalBytes, offset);
+            out.close();
+            out = null;
+            if(totalBytes >= 0 && part.length() != totalBytes) {
+                throw new IOException("Expected " + totalBytes + " bytes but received " + part.length());
+            }
+            verifyDigests(digests);
+        } catch (IOException e) {
+            if(out != null) out.close();
+            abort(connection, in);
+            if(canResume && part.exists() && !(e instanceof ChecksumException)) {
+                state.setProperty("bytes", Long.toString(part.length()));
+                saveProperties(meta, state);
+            } else {
+                part.delete();
+                meta.delete();
+            }
+            throw e;
+        }
+
+        release(connection, in);
+        completeResumable(part, meta, destination);
+    }
+
+    /**
+     * Moves a completed ".part" file into place
+     * @param part the completed partial file
+     * @param meta the partial file metadata
+     * @param destination the file where the response will be downloaded to
+     * @throws IOException
+     */
+    private static void completeResumable(File part, File meta, File destination) throws IOException {
+        if(destination.exists() && !destination.delete()) {
+            throw new IOException("Could not replace " + destination);
+        }
+        if(!part.renameTo(destination)) {
+            throw new IOException("Could not move " + part + " to " + destination);
+        }
+        meta.delete();
+    }
+
+    /**
+     * Creates the digests to compute over a download.
+     * This includes the requested digests and any digests sent by the server that should be verified.
+     * @return the digests by algorithm
+     */
+    private Map<String, MessageDigest> createDigests() {
+        digestResults.clear();
+        serverDigests.clear();
+        if(verifyDigestHeaders && responseCode == HttpURLConnection.HTTP_OK && !cachedResponse && !encodedResponse) {
+            String contentMd5 = getResponseHeader("Content-MD5");
+            if(contentMd5 != null) serverDigests.put("MD5", contentMd5.trim());
+            String digestHeader = getResponseHeader("Digest");
+            if(digestHeader != null) {
+                // e.g. "SHA-256=X48E9qOokqqrvdts8nOJRJN3OWDUoyWxBf7kbu9DBPE=,MD5=..."
+                for(String value : digestHeader.split(",")) {
+                    int separator = value.indexOf('=');
+                    if(separator <= 0) continue;
+                    String algorithm = value.substring(0, separator).trim().toUpperCase(Locale.US);
+                    if(algorithm.equals("SHA")) algorithm = "SHA-1";
+                    serverDigests.put(algorithm, value.substring(separator + 1).trim());
+                }
+            }
+        }
+
+        Set<String> algorithms = new LinkedHashSet<>(expectedDigests.keySet());
+        algorithms.addAll(serverDigests.keySet());
+        Map<String, MessageDigest> digests = new LinkedHashMap<>();
+        for(String algorithm : algorithms) {
+            MessageDigest digest = newDigest(algorithm);
+            // unknown algorithms sent by the server are ignored
+            if(digest != null) digests.put(algorithm, digest);
+        }
+        return digests;
+    }
+
+    /**
+     * Creates a message digest
+     * @param algorithm the digest algorithm
+     * @return the digest or null if the algorithm is not supported
+     */
+    private static MessageDigest newDigest(String algorithm) {
+        try {
+            return MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Wraps a stream so the digests are updated as bytes are written
+     * @param out the stream to wrap
+     * @param digests the digests to update
+     * @return the wrapped stream
+     */
+    private static OutputStream digest(OutputStream out, Collection<MessageDigest> digests) {
+        if(digests.isEmpty()) return out;
+        return new DigestingOutputStream(out, digests);
+    }
+
+    /**
+     * Adds the contents of a file to the digests
+     * @param digests the digests to update
+     * @param file the file to read
+     * @throws IOException
+     */
+    private void updateDigests(Collection<MessageDigest> digests, File file) throws IOException {
+        if(digests.isEmpty()) return;
+        BufferPool pool = getBufferPool();
+        byte[] buffer = pool.acquire(bufferSize);
+        InputStream in = new FileInputStream(file);
+        try {
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                for(MessageDigest digest : digests) {
+                    digest.update(buffer, 0, n);
+                }
+            }
+        } finally {
+            in.close();
+            pool.release(buffer);
+        }
+    }
+
+    /**
+     * Completes the digests and compares them with the expected values
+     * @param digests the digests by algorithm
+     * @throws ChecksumException if a digest does not match
+     */
+    private void verifyDigests(Map<String, MessageDigest> digests) throws ChecksumException {
+        Map<String, byte[]> values = new LinkedHashMap<>();
+        for(Map.Entry<String, MessageDigest> entry : digests.entrySet()) {
+            byte[] value = entry.getValue().digest();
+            values.put(entry.getKey(), value);
+            digestResults.put(entry.getKey(), toHex(value));
+        }
+        for(Map.Entry<String, byte[]> entry : values.entrySet()) {
+            String algorithm = entry.getKey();
+            for(String expected : new String[]{expectedDigests.get(algorithm), serverDigests.get(algorithm)}) {
+                if(expected != null && !matchesDigest(entry.getValue(), expected)) {
+                    throw new ChecksumException(algorithm, expected, digestResults.get(algorithm));
+                }
+            }
+        }
+    }
+
+    /**
+     * Compares a digest with an expected value
+     * @param value the digest
+     * @param expected the expected digest in hex or base64
+     * @return true if the digest matches
+     */
+    private static boolean matchesDigest(byte[] value, String expected) {
+        expected = expected.trim();
+        return expected.equalsIgnoreCase(toHex(value))
+                || expected.equals(Base64.encodeToString(value, Base64.NO_WRAP));
+    }
+
+    /**
+     * Formats bytes as lowercase hex
+     * @param bytes the bytes to format
+     * @return the hex string
+     */
+    private static String toHex(byte[] bytes) {
+        char[] digits = "0123456789abcdef".toCharArray();
+        char[] hex = new char[bytes.length * 2];
+        for(int i = 0; i < bytes.length; i ++) {
+            hex[i * 2] = digits[(bytes[i] >> 4) & 0xf];
+            hex[i * 2 + 1] = digits[bytes[i] & 0xf];
+        }
+        return new String(hex);
+    }
+
+    /**
+     * Loads a properties file
+     * @param file the properties file
+     * @return the properties which will be empty if the file does not exist or cannot be read
+     */
+    private static Properties loadProperties(File file) {
+        Properties properties = new Properties();
+        if(!file.exists()) return properties;
+        FileInputStream in = null;
+        try {
+            in = new FileInputStream(file);
+            properties.load(in);
+        } catch (IOException e) {
+            e.printStackTrace();
+            properties.clear();
+        } finally {
+            if(in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+        return properties;
+    }
+
+    /**
+     * Saves a properties file
+     * @param file the properties file
+     * @param properties the properties to save
+     * @throws IOException
+     */
+    private static void saveProperties(File file, Properties properties) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            properties.store(out, null);
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Reads the response as a string
+     * @return the response string
+     * @throws IOException
+     */
+    public final String read() throws IOException {
+        return execute(new Attempt<String>() {
+            @Override
+            public String run() throws IOException {
+                return readOnce();
+            }
+        }, true);
+    }
+
+    /**
+     * Performs a single attempt to read the response as a string
+     * @return the response string
+     * @throws IOException
+     */
+    private String readOnce() throws IOException {
+        HttpURLConnection connection = openConnection();
+
+        long responseSize = getResponseLength(connection);
+
+        ByteArrayOutputStream out;
+        InputStream in = null;
+        try {
+            in = openBody(connection);
+            checkBodySize(responseSize);
+            // size the buffer up front so it rarely has to grow when the length is known
+            out = new ByteArrayOutputStream(initialCapacity(responseSize));
+            transfer(in, maxBodySize > 0 ? new BoundedOutputStream(out, maxBodySize) : out, responseSize);
+        } catch (Exception e) {
+            abort(connection, in);
+            throw e;
+        }
+        release(connection, in);
+
+        // decodes straight from the internal buffer without an intermediate byte array
+        return out.toString("UTF-8");
+    }
+
+    /**
+     * Reads the entire response and releases the connection before returning it.
+     * Responses up to the maximum body size are kept in memory.
+     * Larger responses are written to a temporary file in the spill directory or rejected if there is none.
+     * The caller must close the returned body, which deletes any temporary file.
+     * @return the buffered response body
+     * @throws IOException
+     */
+    public final ResponseBody readBody() throws IOException {
+        return execute(new Attempt<ResponseBody>() {
+            @Override
+            public ResponseBody run() throws IOException {
+                return readBodyOnce();
+            }
+        }, true);
+    }
+
+    /**
+     * Performs a single attempt to buffer the response
+     * @return the buffered response body
+     * @throws IOException
+     */
+    private ResponseBody readBodyOnce() throws IOException {
+        HttpURLConnection connection = openConnection();
+
+        long responseSize = getResponseLength(connection);
+
+        SpillOutputStream spill = null;
+        InputStream in = null;
+        try {
+            in = openBody(connection);
+            // reject an oversized response before any memory is reserved for it
+            if(spillDirectory == null) checkBodySize(responseSize);
+            spill = new SpillOutputStream(spillDirectory != null ? maxBodySize : 0, spillDirectory, initialCapacity(responseSize));
+            if(spillDirectory != null && maxBodySize > 0 && !encodedResponse && responseSize > maxBodySize) {
+                // there is no point in buffering what is known to end up on disk
+                spill.spill();
+            }
+            transfer(in, spillDirectory == null && maxBodySize > 0 ? new BoundedOutputStream(spill, maxBodySize) : spill, responseSize);
+            spill.close();
+        } catch (Exception e) {
+            if(spill != null) spill.discard();
+            abort(connection, in);
+            throw e;
+        }
+        release(connection, in);
+
+        final SpillOutputStream out = spill;
+        return new ResponseBody(connection.getContentType(), out.openInputStream(), out.size(), getBufferPool(), new Runnable() {
+            @Override
+            public void run() {
+                out.discard();
+            }
+        });
+    }
+
+    /**
+     * Returns how much memory to reserve for a response.
+     * Known lengths are reserved up front so the buffer rarely grows but never more than the presize limit
+     * or the maximum body size since the server's length cannot be trusted.
+     * @param responseSize the size of the response or -1 if unknown
+     * @return the initial buffer capacity
+     */
+    private int initialCapacity(long responseSize) {
+        if(responseSize <= 0) return BUFFER_SIZE;
+        long capacity = Math.min(responseSize, MAX_PRESIZE);
+        if(maxBodySize > 0) capacity = Math.min(capacity, maxBodySize);
+        return (int)capacity;
+    }
+
+    /**
+     * Rejects a response whose announced size is over the maximum body size.
+     * Compressed responses are only checked while they are decoded.
+     * @param responseSize the size of the response or -1 if unknown
+     * @throws ResponseTooLargeException
+     */
+    private void checkBodySize(long responseSize) throws ResponseTooLargeException {
+        if(maxBodySize > 0 && !encodedResponse && responseSize > maxBodySize) {
+            throw new ResponseTooLargeException(maxBodySize, responseSize);
+        }
+    }
+
+    /**
+     * Finishes with a connection whose response was handled.
+     * Whatever is left of the response is drained so the connection can be reused by the next request.
+     * @param connection the connection
+     * @param in the open response stream or null if the body was never opened
+     */
+    private void release(HttpURLConnection connection, InputStream in) {
+        detach(connection);
+        KeepAlivePolicy.getDefault().release(connection, in);
+    }
+
+    /**
+     * Finishes with a connection after a failure.
+     * If the body was never opened the response, such as an error response, is drained like in {@link #release(HttpURLConnection, InputStream)}.
+     * Otherwise the transfer broke off part way through and the connection is disconnected.
+     * @param connection the connection
+     * @param in the open response stream or null if the body was never opened
+     */
+    private void abort(HttpURLConnection connection, InputStream in) {
+        if(in == null) {
+            release(connection, null);
+            return;
+        }
+        detach(connection);
+        try {
+            in.close();
+        } catch (IOException e) {
+            // the connection is discarded anyway
+        }
+        connection.disconnect();
+    }
+
+    /**
+     * Stops tracking a connection once it has been handed back to the pool
+     * so cancelling the request later cannot close a connection that is being reused
+     * @param connection the connection
+     */
+    private void detach(HttpURLConnection connection) {
+        if(activeConnection == connection) activeConnection = null;
+    }
+
+    /**
+     * Opens the response stream and decodes it if the response is compressed
+     * @param connection the open connection
+     * @return the decoded response stream
+     * @throws IOException
+     */
+    private InputStream openBody(HttpURLConnection connection) throws IOException {
+        bytesReceived = 0;
+        bytesDecoded = 0;
+        encodedResponse = false;
+        if(cachedBody != null) {
+            // the server confirmed the cached response is still valid
+            InputStream body = cachedBody;
+            cachedBody = null;
+            release(connection, null);
+            return body;
+        }
+
+        InputStream in = new WireInputStream(connection.getInputStream());
+
+        String encoding = connection.getContentEncoding();
+        if(encoding != null && connection.getContentLength() != 0) {
+            encoding = encoding.trim().toLowerCase(Locale.US);
+            try {
+                if (encoding.equals("gzip") || encoding.equals("x-gzip")) {
+                    encodedResponse = true;
+                    in = new GZIPInputStream(in, BUFFER_SIZE);
+                } else if (encoding.equals("deflate")) {
+                    encodedResponse = true;
+                    in = new InflaterInputStream(in);
+                }
+            } catch (IOException e) {
+                in.close();
+                throw e;
+            }
+        }
+
+        if(cacheKey != null && responseCode == HttpURLConnection.HTTP_OK) {
+            String cacheControl = connection.getHeaderField("Cache-Control");
+            String etag = connection.getHeaderField("ETag");
+            String lastModified = connection.getHeaderField("Last-Modified");
+            boolean noStore = cacheControl != null && cacheControl.toLowerCase(Locale.US).contains("no-store");
+            if(!noStore && (etag != null || lastModified != null)) {
+                ResponseCache.Editor editor = responseCache.put(cacheKey,
+                        new CacheEntry(etag, lastModified, connection.getContentType(), -1));
+                if(editor != null) {
+                    in = new CacheInputStream(in, editor);
+                }
+            }
+        }
+        return in;
+    }
+
+    /**
+     * Opens the response as a stream without reading it into memory.
+     * The caller must close the returned body, which releases the connection so it can be reused.
+     * Progress is published as the body is consumed.
+     * @return the open response body
+     * @throws IOException
+     */
+    public final ResponseBody openResponse() throws IOException {
+        // only opening the response is retried, the caller is responsible for reading it
+        return execute(new Attempt<ResponseBody>() {
+            @Override
+            public ResponseBody run() throws IOException {
+                return openResponseOnce();
+            }
+        }, false);
+    }
+
+    /**
+     * Performs a single attempt to open the response
+     * @return the open response body
+     * @throws IOException
+     */
+    private ResponseBody openResponseOnce() throws IOException {
+        HttpURLConnection connection = openConnection();
+
+        InputStream in;
+        try {
+            in = openBody(connection);
+        } catch (IOException e) {
+            release(connection, null);
+            throw e;
+        }
+        long responseSize = getResponseLength(connection);
+        final HttpURLConnection openConnection = connection;
+        return new ResponseBody(connection, new ProgressInputStream(in, responseSize), responseSize, getBufferPool(), new Runnable() {
+            @Override
+            public void run() {
+                detach(openConnection);
+                finish(null);
+            }
+        });
+    }
+
+    /**
+     * Runs an operation, retrying it as allowed by the retry policy
+     * @param attempt the operation to run
+     * @param reportOnSuccess false if the metrics of a successful call are reported later
+     * @return the result of the operation
+     * @throws IOException the error of the last attempt
+     */
+    private <T> T execute(Attempt<T> attempt, boolean reportOnSuccess) throws IOException {
+        attempts = 0;
+        activeScheduler = transferScheduler != null ? transferScheduler : TransferScheduler.getDefault();
+        activeScheduler.begin(priority);
+        while(true) {
+            attempts ++;
+            long start = System.currentTimeMillis();
+            try {
+                T result = attempt.run();
+                if(retryPolicy != null) {
+                    retryPolicy.notifyAttempt(this, attempts, System.currentTimeMillis() - start, null, -1);
+                }
+                if(reportOnSuccess) finish(null);
+                return result;
+            } catch (IOException e) {
+                long duration = System.currentTimeMillis() - start;
+                long delay = -1;
+                if(retryPolicy != null && !cancelled && retryPolicy.shouldRetry(this, attempts, responseCode, e)) {
+                    delay = retryPolicy.getDelay(attempts, getResponseHeader("Retry-After"));
+                }
+                if(retryPolicy != null) {
+                    retryPolicy.notifyAttempt(this, attempts, duration, e, delay);
+                }
+                if(delay < 0) {
+                    finish(e);
+                    throw e;
+                }
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    InterruptedIOException interrupted = new InterruptedIOException("Interrupted while waiting to retry");
+                    finish(interrupted);
+                    throw interrupted;
+                }
+            } catch (RuntimeException e) {
+                finish(e);
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Completes a call
+     * @param error the error that failed the call or null if it succeeded
+     */
+    private void finish(Exception error) {
+        if(activeScheduler != null) {
+            activeScheduler.end(priority);
+            activeScheduler = null;
+        }
+        reportMetrics(error);
+    }
+
+    /**
+     * Waits until a chunk of a body may be transferred
+     * @param bytes the size of the chunk
+     * @throws InterruptedIOException if the thread was interrupted while waiting
+     */
+    private void throttle(int bytes) throws InterruptedIOException {
+        if(bandwidthLimiter != null) bandwidthLimiter.acquire(bytes);
+        TransferScheduler scheduler = activeScheduler;
+        if(scheduler != null) scheduler.throttle(priority, bytes);
+    }
+
+    /**
+     * Sends the metrics of the last attempt to the metrics listener
+     * @param error the error that failed the call or null if it succeeded
+     */
+    private void reportMetrics(Exception error) {
+        if(metricsListener == null) return;
+        long finishedAt = System.nanoTime();
+        RequestMetrics.CacheStatus cacheStatus = RequestMetrics.CacheStatus.NONE;
+        if(cacheKey != null) {
+            cacheStatus = cachedResponse ? RequestMetrics.CacheStatus.HIT : RequestMetrics.CacheStatus.MISS;
+        }
+        metricsListener.onRequestComplete(new RequestMetrics(url, requestMethod,
+                respondedAt > 0 ? responseCode : -1,
+                elapsedMillis(startedAt, connectedAt),
+                elapsedMillis(connectedAt, sentAt),
+                elapsedMillis(sentAt, respondedAt),
+                elapsedMillis(respondedAt, finishedAt),
+                elapsedMillis(startedAt, finishedAt),
+                bytesSent, bytesReceived, attempts, cacheStatus, error));
+    }
+
+    /**
+     * Measures the time between two events
+     * @param start when the first event occurred in nanoseconds
+     * @param end when the second event occurred in nanoseconds
+     * @return the elapsed milliseconds or -1 if either event did not occur
+     */
+    private static long elapsedMillis(long start, long end) {
+        if(start == 0 || end == 0) return -1;
+        return (end - start) / 1000000;
+    }
+
+    /**
+     * Copies the response body to the output in chunks while publishing progress
+     * @param in the response stream
+     * @param out the stream receiving the response
+     * @param totalBytes the total size of the payload or -1 if unknown
+     * @return the number of bytes copied
+     * @throws IOException
+     */
+    private long transfer(InputStream in, OutputStream out, long totalBytes) throws IOException {
+        return transfer(in, out, totalBytes, 0);
+    }
+
+    /**
+     * Copies the response body to the output in chunks while publishing progress
+     * @param in the response stream
+     * @param out the stream receiving the response
+     * @param totalBytes the total size of the payload or -1 if unknown
+     * @param initialBytes the number of bytes already transferred by a previous attempt
+     * @return the number of bytes copied
+     * @throws IOException
+     */
+    private long transfer(InputStream in, OutputStream out, long totalBytes, long initialBytes) throws IOException {
+        BufferPool pool = getBufferPool();
+        byte[] buffer = pool.acquire(bufferSize);
+        long bytesRead = 0;
+        ProgressDispatcher progress = createProgressDispatcher(progressListener);
+        progress.start(initialBytes + getTransferProgress());
+        try {
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                throttle(n);
+                out.write(buffer, 0, n);
+                bytesRead += n;
+                bytesDecoded += n;
+                progress.update(totalBytes, initialBytes + getTransferProgress());
+            }
+        } finally {
+            pool.release(buffer);
+        }
+        progress.publish(totalBytes, initialBytes + getTransferProgress());
+        return bytesRead;
+    }
+
+    /**
+     * Returns the progress of the current transfer.
+     * The content length of a compressed response is measured on the wire
+     * so progress is measured the same way.
+     * @return the number of bytes transferred
+     */
+    private long getTransferProgress() {
+        return encodedResponse ? bytesReceived : bytesDecoded;
+    }
+
+    /**
+     * Creates a dispatcher that publishes progress to a listener using the request's progress settings
+     * @param listener the listener to notify
+     * @return a new dispatcher
+     */
+    private ProgressDispatcher createProgressDispatcher(OnProgressListener listener) {
+        ProgressDispatcher dispatcher = new ProgressDispatcher(listener);
+        dispatcher.setInterval(progressUpdateBytes, progressUpdateMillis);
+        dispatcher.setExecutor(progressExecutor);
+        return dispatcher;
+    }
+
+    /**
+     * Cancels the request.
+     * If the request is in progress its connection is disconnected which causes
+     * the blocked call to fail with an {@link IOException}.
+     * A cancelled request cannot be executed again.
+     */
+    public void cancel() {
+        cancelled = true;
+        HttpURLConnection conn = activeConnection;
+        if(conn != null) {
+            conn.disconnect();
+        }
+    }
+
+    /**
+     * Checks if the request has been cancelled
+     * @return true if {@link #cancel()} has been called
+     */
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * Checks if sending this request more than once has the same effect as sending it once
+     * @return true if the request may be safely retried
+     */
+    protected boolean isIdempotent() {
+        return !requestMethod.equals("POST") && !requestMethod.equals("PATCH");
+    }
+
+    /**
+     * Checks if this request can be sent again.
+     * Requests whose body can only be written once should return false.
+     * @return true if the request can be sent again
+     */
+    protected boolean isRepeatable() {
+        return true;
+    }
+
+    /**
+     * Returns the number of attempts made by the last call
+     * @return the number of attempts including retries
+     */
+    public int getAttemptCount() {
+        return attempts;
+    }
+
+    /**
+     * Returns the url that will receive the request
+     * @return the request url
+     */
+    public URL getUrl() {
+        return url;
+    }
+
+    /**
+     * Returns the response code for this request
+     * @return the request response code
+     */
+    public int getResponseCode() {
+        return responseCode;
+    }
+
+    /**
+     * Returns the error message for this request
+     * @return an error message
+     */
+    public String getResponseMessage() {
+        return responseMessage;
+    }
+
+    /**
+     * Returns the value of a response header
+     * @param name the header name
+     * @return the header value or null if the header was not sent
+     */
+    public String getResponseHeader(String name) {
+        if(responseHeaders == null) return null;
+        for(Map.Entry<String, List<String>> header : responseHeaders.entrySet()) {
+            if(name.equalsIgnoreCase(header.getKey())) {
+                List<String> values = header.getValue();
+                if(values == null || values.isEmpty()) return null;
+                return values.get(values.size() - 1);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Checks if the response was served from the response cache
+     * @return true if the server confirmed the cached response had not changed
+     */
+    public boolean isCachedResponse() {
+        return cachedResponse;
+    }
+
+    /**
+     * Returns the number of response bytes received on the wire
+     * @return the number of bytes received
+     */
+    public long getBytesReceived() {
+        return bytesReceived;
+    }
+
+    /**
+     * Returns the number of response bytes after decoding.
+     * This only differs from {@link #getBytesReceived()} when the response was compressed.
+     * @return the number of decoded bytes
+     */
+    public long getBytesDecoded() {
+        return bytesDecoded;
+    }
+
+    /**
+     * Allows subclasses to perform operations afer the connection has been opened.
+     * For example: writing data to the connection.
+     *
+     * @throws IOException
+     */
+    protected abstract void onConnected(HttpURLConnection conn) throws IOException;
+
+    /**
+     * Publishes progress as a response stream is consumed
+     */
+    private class ProgressInputStream extends FilterInputStream {
+        private final long totalBytes;
+        private final ProgressDispatcher progress = createProgressDispatcher(progressListener);
+        private boolean finished = false;
+
+        ProgressInputStream(InputStream in, long totalBytes) {
+            super(in);
+            this.totalBytes = totalBytes;
+            progress.start(getTransferProgress());
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            onRead(b == -1 ? -1 : 1);
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int n = super.read(buffer, offset, length);
+            onRead(n);
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(Math.min(n, Integer.MAX_VALUE));
+            if(skipped > 0) onRead((int)skipped);
+            return skipped;
+        }
+
+        private void onRead(int n) throws IOException {
+            if(n == -1) {
+                if(!finished) {
+                    finished = true;
+                    progress.publish(totalBytes, getTransferProgress());
+                }
+                return;
+            }
+            throttle(n);
+            bytesDecoded += n;
+            progress.update(totalBytes, getTransferProgress());
+        }
+    }
+
+    /**
+     * Counts the request body bytes and publishes progress as they are written
+     */
+    private class UploadProgressOutputStream extends FilterOutputStream {
+        private final long totalBytes;
+        private long bytesWritten = 0;
+        private long updateQueue = 0;
+        private long lastUpdate = System.currentTimeMillis();
+        private final ProgressDispatcher progress = createProgressDispatcher(uploadProgressListener);
+
+        UploadProgressOutputStream(OutputStream out, long totalBytes) {
+            super(out);
+            this.totalBytes = totalBytes;
+            progress.start(0);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            throttle(1);
+            out.write(b);
+            onWrite(1);
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int length) throws IOException {
+            // write through in one call rather than the byte at a time default
+            throttle(length);
+            out.write(buffer, offset, length);
+            onWrite(length);
+        }
+
+        @Override
+        public void close() throws IOException {
+            super.close();
+            if(updateQueue > 0 || bytesWritten == 0) {
+                updateQueue = 0;
+                progress.publish(totalBytes, bytesWritten);
+            }
+        }
+
+        private void onWrite(int n) {
+            bytesWritten += n;
+            bytesSent += n;
+            updateQueue += n;
+            long now = System.currentTimeMillis();
+            if(updateQueue >= uploadUpdateBytes || now - lastUpdate >= uploadUpdateMillis) {
+                updateQueue = 0;
+                lastUpdate = now;
+                progress.publish(totalBytes, bytesWritten);
+            }
+        }
+    }
+
+    /**
+     * Stores the response in the cache as it is read.
+     * The response is only cached if it is read to the end.
+     */
+    private static class CacheInputStream extends FilterInputStream {
+        private final ResponseCache.Editor editor;
+        private boolean done = false;
+
+        CacheInputStream(InputStream in, ResponseCache.Editor editor) {
+            super(in);
+            this.editor = editor;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            int n = read(b, 0, 1);
+            return n == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int n;
+            try {
+                n = super.read(buffer, offset, length);
+            } catch (IOException e) {
+                abort();
+                throw e;
+            }
+            if(done) return n;
+            try {
+                if (n == -1) {
+                    done = true;
+                    editor.commit();
+                } else {
+                    editor.getOutputStream().write(buffer, offset, n);
+                }
+            } catch (IOException e) {
+                // caching is best effort and must not fail the request
+                e.printStackTrace();
+                abort();
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            // skipped bytes would leave a hole in the cached body
+            abort();
+            return super.skip(n);
+        }
+
+        @Override
+        public void close() throws IOException {
+            abort();
+            super.close();
+        }
+
+        private void abort() {
+            if(!done) {
+                done = true;
+                editor.abort();
+            }
+        }
+    }
+
+    /**
+     * Updates digests with the bytes written through it
+     */
+    private static class DigestingOutputStream extends FilterOutputStream {
+        private final Collection<MessageDigest> digests;
+
+        DigestingOutputStream(OutputStream out, Collection<MessageDigest> digests) {
+            super(out);
+            this.digests = digests;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            for(MessageDigest digest : digests) {
+                digest.update((byte) b);
+            }
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int length) throws IOException {
+            out.write(buffer, offset, length);
+            for(MessageDigest digest : digests) {
+                digest.update(buffer, offset, length);
+            }
+        }
+    }
+
+    /**
+     * Fails once more than a fixed number of bytes have been written
+     */
+    private static class BoundedOutputStream extends FilterOutputStream {
+        private final long limit;
+        private long count = 0;
+
+        BoundedOutputStream(OutputStream out, long limit) {
+            super(out);
+            this.limit = limit;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte)b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int length) throws IOException {
+            count += length;
+            if(count > limit) throw new ResponseTooLargeException(limit, -1);
+            out.write(buffer, offset, length);
+        }
+    }
+
+    /**
+     * Buffers a body in memory until it grows past a threshold and in a temporary file after that
+     */
+    private static class SpillOutputStream extends OutputStream {
+        private final long threshold;
+        private final File directory;
+        private MemoryOutputStream memory;
+        private File file = null;
+        private OutputStream fileOut = null;
+        private long size = 0;
+
+        /**
+         * @param threshold the number of bytes kept in memory or 0 to never spill
+         * @param directory where the temporary file is created
+         * @param capacity the initial size of the memory buffer
+         */
+        SpillOutputStream(long threshold, File directory, int capacity) {
+            this.threshold = threshold;
+            this.directory = directory;
+            this.memory = new MemoryOutputStream(capacity);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte)b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int length) throws IOException {
+            if(fileOut == null && threshold > 0 && size + length > threshold) spill();
+            if(fileOut != null) {
+                fileOut.write(buffer, offset, length);
+            } else {
+                memory.write(buffer, offset, length);
+            }
+            size += length;
+        }
+
+        /**
+         * Moves the body into a temporary file
+         * @throws IOException
+         */
+        void spill() throws IOException {
+            if(fileOut != null) return;
+            file = File.createTempFile("response", ".body", directory);
+            fileOut = new FileOutputStream(file);
+            memory.writeTo(fileOut);
+            memory = null;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if(fileOut != null) fileOut.close();
+        }
+
+        long size() {
+            return size;
+        }
+
+        /**
+         * Opens the buffered body
+         * @return a stream over the body
+         * @throws IOException
+         */
+        InputStream openInputStream() throws IOException {
+            if(file != null) return new FileInputStream(file);
+            return memory.toInputStream();
+        }
+
+        /**
+         * Deletes the temporary file if there is one
+         */
+        void discard() {
+            try {
+                close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            if(file != null) file.delete();
+        }
+    }
+
+    /**
+     * A byte array stream that can be read without copying its buffer
+     */
+    private static class MemoryOutputStream extends ByteArrayOutputStream {
+        MemoryOutputStream(int size) {
+            super(size);
+        }
+
+        InputStream toInputStream() {
+            return new ByteArrayInputStream(buf, 0, count);
+        }
+    }
+
+    /**
+     * Counts the bytes received on the wire before any decoding
+     */
+    private class WireInputStream extends FilterInputStream {
+        WireInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if(b != -1) bytesReceived ++;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int n = super.read(buffer, offset, length);
+            if(n > 0) bytesReceived += n;
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            bytesReceived += skipped;
+            return skipped;
+        }
+    }
+
+    /**
+     * A single attempt at performing the request
+     */
+    private interface Attempt<T> {
+        T run() throws IOException;
+    }
+
+    public enum Priority {
+        /**
+         * Background work that yields bandwidth to other requests
+         */
+        LOW,
+        NORMAL,
+        /**
+         * Interactive requests that are started before anything else
+         */
+        HIGH
+    }
+
+    public interface OnProgressListener {
+        /**
+         * Receives progress events
+         * @param max the total number of items being processed
+         * @param progress the number of items that have been successfully processed
+         */
+        void onProgress(long max, long progress);
 
         /**
          * Receives a notice that the progresss is indeterminate
          */
         void onIndeterminate();
     }
+
+    /**
+     * A progress listener that also receives the transfer rate and an estimate of the time remaining
+     */
+    public interface OnRateProgressListener extends OnProgressListener {
+        /**
+         * Receives progress events.
+         * This is called instead of {@link #onProgress(long, long)} once some bytes have been transferred.
+         * @param max the total number of bytes or -1 if unknown
+         * @param progress the number of bytes transferred
+         * @param bytesPerSecond the recent transfer rate or -1 if it has not been measured yet
+         * @param etaMillis the estimated time remaining in milliseconds or -1 if unknown
+         */
+        void onProgress(long max, long progress, long bytesPerSecond, long etaMillis);
+    }
 }
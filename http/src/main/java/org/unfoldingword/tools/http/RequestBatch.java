@@ -0,0 +1,287 @@
+package org.unfoldingword.tools.http;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Future;
+
+/**
+ * Runs many requests in parallel on a {@link RequestExecutor} and hands back their results as they complete.
+ * The executor limits the overall and per host parallelism, the batch can limit its own share further.
+ *
+ * In collect-all mode every request runs and every result is returned.
+ * In fail-fast mode the first failure is returned and the rest of the batch is cancelled.
+ */
+public class RequestBatch<T> {
+    private final RequestExecutor executor;
+    private final RequestExecutor.Task<T> task;
+    private final ArrayDeque<Item> waiting = new ArrayDeque<>();
+    private final List<Item> running = new ArrayList<>();
+    private final ArrayDeque<Result<T>> results = new ArrayDeque<>();
+    private int parallelism = Integer.MAX_VALUE;
+    private boolean failFast = false;
+    private boolean started = false;
+    private boolean failed = false;
+    private int remaining = 0;
+    private int successes = 0;
+    private int failures = 0;
+    private long startTime = 0;
+    private long endTime = 0;
+    private long totalRequestMillis = 0;
+
+    /**
+     * Creates a batch that reads the response of each request
+     * @param executor the executor that runs the requests
+     * @return a new batch
+     */
+    public static RequestBatch<String> read(RequestExecutor executor) {
+        return new RequestBatch<>(executor, new RequestExecutor.Task<String>() {
+            @Override
+            public String run(Request request) throws IOException {
+                return request.read();
+            }
+        });
+    }
+
+    /**
+     * Creates a batch that performs a custom task for each request
+     * @param executor the executor that runs the requests
+     * @param task performs each request
+     */
+    public RequestBatch(RequestExecutor executor, RequestExecutor.Task<T> task) {
+        this.executor = executor;
+        this.task = task;
+    }
+
+    /**
+     * Limits how many requests of this batch run at the same time
+     * @param parallelism the maximum number of requests in flight
+     */
+    public synchronized void setParallelism(int parallelism) {
+        this.parallelism = Math.max(1, parallelism);
+    }
+
+    /**
+     * Chooses between cancelling the batch on the first failure and running every request
+     * @param failFast true to stop on the first failure
+     */
+    public synchronized void setFailFast(boolean failFast) {
+        this.failFast = failFast;
+    }
+
+    /**
+     * Adds a request to the batch
+     * @param request the request to run
+     */
+    public synchronized void add(Request request) {
+        waiting.add(new Item(request));
+        remaining ++;
+        if(started) submitWaiting();
+    }
+
+    /**
+     * Adds requests to the batch
+     * @param requests the requests to run
+     */
+    public synchronized void addAll(Collection<? extends Request> requests) {
+        for(Request request : requests) {
+            add(request);
+        }
+    }
+
+    /**
+     * Starts running the requests.
+     * Requests added afterwards are started as well.
+     */
+    public synchronized void start() {
+        if(started) return;
+        started = true;
+        startTime = System.currentTimeMillis();
+        if(remaining == 0) endTime = startTime;
+        submitWaiting();
+    }
+
+    /**
+     * Waits for the next request to complete
+     * @return the result of the request or null once every result has been returned
+     * @throws InterruptedException
+     */
+    public synchronized Result<T> next() throws InterruptedException {
+        if(!started) start();
+        while(results.isEmpty() && remaining > 0) {
+            wait();
+        }
+        return results.poll();
+    }
+
+    /**
+     * Waits for the batch to complete
+     * @return the results in the order they completed
+     * @throws InterruptedException
+     */
+    public List<Result<T>> awaitAll() throws InterruptedException {
+        List<Result<T>> all = new ArrayList<>();
+        Result<T> result;
+        while((result = next()) != null) {
+            all.add(result);
+        }
+        return all;
+    }
+
+    /**
+     * Cancels the requests that have not completed yet
+     */
+    public synchronized void cancel() {
+        remaining -= waiting.size();
+        waiting.clear();
+        for(Item item : new ArrayList<>(running)) {
+            item.future.cancel(true);
+        }
+        notifyAll();
+    }
+
+    public synchronized int getSuccessCount() {
+        return successes;
+    }
+
+    public synchronized int getFailureCount() {
+        return failures;
+    }
+
+    /**
+     * Returns the wall clock time from starting the batch until the last request completed
+     * @return the elapsed time in milliseconds, or so far if the batch is still running
+     */
+    public synchronized long getElapsedMillis() {
+        if(startTime == 0) return 0;
+        return (endTime > 0 ? endTime : System.currentTimeMillis()) - startTime;
+    }
+
+    /**
+     * Returns the combined duration of all completed requests.
+     * Compared with {@link #getElapsedMillis()} this shows how much time parallelism saved.
+     * @return the sum of the request durations in milliseconds
+     */
+    public synchronized long getTotalRequestMillis() {
+        return totalRequestMillis;
+    }
+
+    /**
+     * Submits waiting requests until the parallelism limit is reached
+     */
+    private void submitWaiting() {
+        while(!waiting.isEmpty() && running.size() < parallelism) {
+            Item item = waiting.poll();
+            running.add(item);
+            item.future = executor.submit(item.request, item, item);
+        }
+    }
+
+    /**
+     * Records a completed request
+     */
+    private synchronized void complete(Item item, Result<T> result) {
+        if(!running.remove(item)) return;
+        remaining --;
+        totalRequestMillis += result.durationMillis;
+        if(result.isSuccess()) {
+            successes ++;
+        } else {
+            failures ++;
+        }
+        if(!(failFast && failed)) {
+            results.add(result);
+        }
+        if(!result.isSuccess() && failFast && !failed) {
+            failed = true;
+            cancel();
+        }
+        submitWaiting();
+        if(remaining == 0) endTime = System.currentTimeMillis();
+        notifyAll();
+    }
+
+    /**
+     * A request in the batch
+     */
+    private class Item implements RequestExecutor.Task<T>, RequestExecutor.Callback<T> {
+        private final Request request;
+        private Future<T> future;
+        private long start = 0;
+
+        Item(Request request) {
+            this.request = request;
+        }
+
+        @Override
+        public T run(Request request) throws IOException {
+            start = System.currentTimeMillis();
+            return task.run(request);
+        }
+
+        @Override
+        public void onSuccess(Request request, T value) {
+            complete(this, new Result<>(request, value, null, duration()));
+        }
+
+        @Override
+        public void onFailure(Request request, Exception e) {
+            complete(this, new Result<T>(request, null, e, duration()));
+        }
+
+        private long duration() {
+            return start == 0 ? 0 : System.currentTimeMillis() - start;
+        }
+    }
+
+    /**
+     * The outcome of a single request in the batch
+     */
+    public static class Result<T> {
+        private final Request request;
+        private final T value;
+        private final Exception error;
+        private final long durationMillis;
+
+        Result(Request request, T value, Exception error, long durationMillis) {
+            this.request = request;
+            this.value = value;
+            this.error = error;
+            this.durationMillis = durationMillis;
+        }
+
+        public Request getRequest() {
+            return request;
+        }
+
+        /**
+         * Returns the result of the request
+         * @return the result or null if the request failed
+         */
+        public T getValue() {
+            return value;
+        }
+
+        /**
+         * Returns the error of the request
+         * @return the error or null if the request succeeded
+         */
+        public Exception getError() {
+            return error;
+        }
+
+        public boolean isSuccess() {
+            return error == null;
+        }
+
+        /**
+         * Returns how long the request took to run, not counting the time it waited to start
+         * @return the duration in milliseconds
+         */
+        public long getDurationMillis() {
+            return durationMillis;
+        }
+    }
+}
@@ -0,0 +1,181 @@
+package org.unfoldingword.tools.http;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+
+/**
+ * The data sent with a request such as in a POST or PUT request.
+ * Bodies are streamed to the connection so they never need to be held in memory as a whole.
+ */
+public abstract class RequestBody {
+    static final int BUFFER_SIZE = 8192;
+
+    /**
+     * Returns the number of bytes that will be written
+     * @return the size of the body or -1 if unknown
+     */
+    public abstract long contentLength();
+
+    /**
+     * Checks if the body can be written more than once
+     * @return true if the body can be written again
+     */
+    public boolean isRepeatable() {
+        return true;
+    }
+
+    /**
+     * Writes the body to the stream
+     * @param out the stream receiving the body
+     * @throws IOException
+     */
+    public abstract void writeTo(OutputStream out) throws IOException;
+
+    /**
+     * Writes the body to the stream using the buffers of the request sending it.
+     * Bodies that copy from another stream override this, anything else is written with {@link #writeTo(OutputStream)}.
+     * @param out the stream receiving the body
+     * @param pool the pool that copy buffers are borrowed from
+     * @param bufferSize the size of the copy buffer
+     * @throws IOException
+     */
+    void writeTo(OutputStream out, BufferPool pool, int bufferSize) throws IOException {
+        writeTo(out);
+    }
+
+    /**
+     * Creates a body from a string encoded as UTF-8
+     * @param data the body text
+     * @return a new body
+     */
+    public static RequestBody create(String data) {
+        try {
+            return create(data.getBytes("UTF-8"));
+        } catch (UnsupportedEncodingException e) {
+            // UTF-8 is always supported
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Creates a body from a byte array.
+     * The array is not copied so it must not be modified until the request completes.
+     * @param data the body bytes
+     * @return a new body
+     */
+    public static RequestBody create(final byte[] data) {
+        return new RequestBody() {
+            @Override
+            public long contentLength() {
+                return data.length;
+            }
+
+            @Override
+            public void writeTo(OutputStream out) throws IOException {
+                // write in chunks so the stream can report progress
+                for(int offset = 0; offset < data.length; offset += BUFFER_SIZE) {
+                    out.write(data, offset, Math.min(BUFFER_SIZE, data.length - offset));
+                }
+            }
+        };
+    }
+
+    /**
+     * Creates a body from the contents of a file
+     * @param file the file to send
+     * @return a new body
+     */
+    public static RequestBody create(final File file) {
+        return new RequestBody() {
+            @Override
+            public long contentLength() {
+                return file.length();
+            }
+
+            @Override
+            public void writeTo(OutputStream out) throws IOException {
+                writeTo(out, BufferPool.getDefault(), BUFFER_SIZE);
+            }
+
+            @Override
+            void writeTo(OutputStream out, BufferPool pool, int bufferSize) throws IOException {
+                InputStream in = new FileInputStream(file);
+                try {
+                    copy(in, out, pool, bufferSize);
+                } finally {
+                    in.close();
+                }
+            }
+        };
+    }
+
+    /**
+     * Creates a body from a stream.
+     * The stream is consumed when the body is written so the body cannot be sent again.
+     * The stream is closed once it has been written.
+     * @param in the stream to send
+     * @param contentLength the number of bytes in the stream or -1 if unknown
+     * @return a new body
+     */
+    public static RequestBody create(final InputStream in, final long contentLength) {
+        return new RequestBody() {
+            @Override
+            public long contentLength() {
+                return contentLength;
+            }
+
+            @Override
+            public boolean isRepeatable() {
+                return false;
+            }
+
+            @Override
+            public void writeTo(OutputStream out) throws IOException {
+                writeTo(out, BufferPool.getDefault(), BUFFER_SIZE);
+            }
+
+            @Override
+            void writeTo(OutputStream out, BufferPool pool, int bufferSize) throws IOException {
+                try {
+                    copy(in, out, pool, bufferSize);
+                } finally {
+                    in.close();
+                }
+            }
+        };
+    }
+
+    /**
+     * Copies a stream in chunks using a buffer from the default pool
+     * @param in the source stream
+     * @param out the destination stream
+     * @throws IOException
+     */
+    static void copy(InputStream in, OutputStream out) throws IOException {
+        copy(in, out, BufferPool.getDefault(), BUFFER_SIZE);
+    }
+
+    /**
+     * Copies a stream in chunks using a pooled buffer
+     * @param in the source stream
+     * @param out the destination stream
+     * @param pool the pool the buffer is borrowed from
+     * @param bufferSize the size of the buffer
+     * @throws IOException
+     */
+    static void copy(InputStream in, OutputStream out, BufferPool pool, int bufferSize) throws IOException {
+        byte[] buffer = pool.acquire(bufferSize);
+        try {
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                out.write(buffer, 0, n);
+            }
+        } finally {
+            pool.release(buffer);
+        }
+    }
+}
@@ -0,0 +1,190 @@
+package org.unfoldingword.tools.http;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Shares a single network fetch between identical requests that are in flight at the same time.
+ * Requests are identical when they have the same method, url, auth, headers and download options.
+ * Only GET and HEAD requests are coalesced, anything else is executed as usual.
+ *
+ * The first caller performs the request and every caller that arrives before it completes
+ * waits for and receives the same result, including the response code and headers.
+ */
+public class RequestCoalescer {
+    private final Map<String, Flight<?>> inFlight = new HashMap<>();
+    private long fetches = 0;
+    private long collapsed = 0;
+
+    /**
+     * Reads the response, sharing it with identical requests in flight
+     * @param request the request to read
+     * @return the response string
+     * @throws IOException
+     */
+    public String read(Request request) throws IOException {
+        return execute("read", request, null, new RequestExecutor.Task<String>() {
+            @Override
+            public String run(Request request) throws IOException {
+                return request.read();
+            }
+        });
+    }
+
+    /**
+     * Downloads the response to a file, sharing it with identical requests in flight.
+     * Callers that did not perform the download receive a copy of the downloaded file
+     * which is made before the download is returned to the caller that performed it.
+     * Incremental downloads are only shared with callers downloading to the same file
+     * since the result depends on what is already there.
+     * @param request the request to download
+     * @param destination the file where the response will be downloaded to
+     * @throws IOException
+     */
+    public void download(Request request, final File destination) throws IOException {
+        String operation = request.isIncremental() ? "download " + destination.getAbsolutePath() : "download";
+        execute(operation, request, destination, new RequestExecutor.Task<File>() {
+            @Override
+            public File run(Request request) throws IOException {
+                request.download(destination);
+                return destination;
+            }
+        });
+    }
+
+    /**
+     * Returns the number of network fetches performed
+     * @return the number of fetches
+     */
+    public synchronized long getFetchCount() {
+        return fetches;
+    }
+
+    /**
+     * Returns the number of requests that received the result of another request instead of fetching it themselves
+     * @return the number of collapsed requests
+     */
+    public synchronized long getCollapsedCount() {
+        return collapsed;
+    }
+
+    /**
+     * Performs the task or waits for an identical task that is already in flight
+     * @param operation identifies the kind of task
+     * @param request the request to perform
+     * @param destination the file the task downloads to or null if it does not download
+     * @param task performs the request
+     * @return the result of the task
+     * @throws IOException the error of the shared task
+     */
+    @SuppressWarnings("unchecked")
+    private <T> T execute(String operation, Request request, File destination, RequestExecutor.Task<T> task) throws IOException {
+        String requestKey = request.getCoalescingKey();
+        if(requestKey == null) return task.run(request);
+        String key = operation + " " + requestKey;
+
+        Flight<T> flight;
+        boolean leader = false;
+        synchronized (this) {
+            flight = (Flight<T>) inFlight.get(key);
+            if(flight == null) {
+                flight = new Flight<>(request);
+                inFlight.put(key, flight);
+                leader = true;
+                fetches ++;
+            } else {
+                collapsed ++;
+                if(destination != null) flight.copies.add(destination);
+            }
+        }
+
+        if(leader) {
+            try {
+                flight.result = task.run(request);
+                return flight.result;
+            } catch (Throwable e) {
+                flight.error = e;
+                throw e;
+            } finally {
+                List<File> copies;
+                synchronized (this) {
+                    inFlight.remove(key);
+                    copies = new ArrayList<>(flight.copies);
+                }
+                // copy the download before our caller can move or delete it
+                if(flight.error == null && destination != null) {
+                    for(File copy : copies) {
+                        if(copy.equals(destination)) continue;
+                        try {
+                            copy(destination, copy);
+                        } catch (IOException e) {
+                            flight.copyErrors.put(copy, e);
+                        }
+                    }
+                }
+                flight.done.countDown();
+            }
+        }
+
+        try {
+            flight.done.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a shared request");
+        }
+        request.adoptResponse(flight.leader);
+        if(flight.error instanceof IOException) throw (IOException)flight.error;
+        if(flight.error instanceof RuntimeException) throw (RuntimeException)flight.error;
+        if(flight.error instanceof Error) throw (Error)flight.error;
+        if(flight.error != null) throw new IOException(flight.error);
+        if(destination != null && flight.copyErrors.containsKey(destination)) throw flight.copyErrors.get(destination);
+        return flight.result;
+    }
+
+    /**
+     * Copies a file
+     */
+    private static void copy(File source, File destination) throws IOException {
+        destination.getParentFile().mkdirs();
+        InputStream in = new FileInputStream(source);
+        try {
+            OutputStream out = new FileOutputStream(destination);
+            try {
+                RequestBody.copy(in, out);
+            } catch (IOException e) {
+                out.close();
+                destination.delete();
+                throw e;
+            }
+            out.close();
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * A request that is being performed on behalf of every identical caller
+     */
+    private static class Flight<T> {
+        private final Request leader;
+        private final CountDownLatch done = new CountDownLatch(1);
+        private final List<File> copies = new ArrayList<>();
+        private final Map<File, IOException> copyErrors = new HashMap<>();
+        private T result = null;
+        private Throwable error = null;
+
+        Flight(Request leader) {
+            this.leader = leader;
+        }
+    }
+}
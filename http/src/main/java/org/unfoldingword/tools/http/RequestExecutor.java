@@ -0,0 +1,308 @@
+package org.unfoldingword.tools.http;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs requests in the background on a bounded pool of threads.
+ * Requests beyond the limit for a single host wait without occupying a thread.
+ * Waiting requests are started in order of their priority and then in the order they were submitted.
+ */
+public class RequestExecutor {
+    private final ThreadPoolExecutor pool;
+    private final int maxRequestsPerHost;
+    private final Map<String, Integer> runningPerHost = new HashMap<>();
+    private final Map<String, Queue<Call<?>>> waitingPerHost = new HashMap<>();
+    private final AtomicLong sequence = new AtomicLong();
+    private boolean shutdown = false;
+
+    /**
+     * Creates a new executor
+     * @param maxRequests the maximum number of requests that may run at the same time
+     * @param maxRequestsPerHost the maximum number of requests to a single host that may run at the same time
+     */
+    public RequestExecutor(int maxRequests, int maxRequestsPerHost) {
+        this.maxRequestsPerHost = Math.max(1, maxRequestsPerHost);
+        int threads = Math.max(1, maxRequests);
+        this.pool = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+                new PriorityBlockingQueue<Runnable>(), new RequestThreadFactory());
+        this.pool.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Reads the response of a request in the background
+     * @param request the request to execute
+     * @param callback receives the result on the worker thread. May be null
+     * @return a handle to the pending response
+     */
+    public Future<String> read(Request request, Callback<String> callback) {
+        return submit(request, new Task<String>() {
+            @Override
+            public String run(Request request) throws IOException {
+                return request.read();
+            }
+        }, callback);
+    }
+
+    /**
+     * Downloads the response of a request in the background
+     * @param request the request to execute
+     * @param destination the file where the response will be downloaded to
+     * @param callback receives the destination on the worker thread. May be null
+     * @return a handle to the pending download
+     */
+    public Future<File> download(Request request, final File destination, Callback<File> callback) {
+        return submit(request, new Task<File>() {
+            @Override
+            public File run(Request request) throws IOException {
+                request.download(destination);
+                return destination;
+            }
+        }, callback);
+    }
+
+    /**
+     * Executes a custom task in the background.
+     * Cancelling the returned future cancels the request.
+     * @param request the request to execute
+     * @param task performs the request
+     * @param callback receives the result on the worker thread. May be null
+     * @return a handle to the pending result
+     */
+    public <T> Future<T> submit(Request request, Task<T> task, Callback<T> callback) {
+        Call<T> call = new Call<>(request, task, callback);
+        enqueue(call);
+        return call;
+    }
+
+    /**
+     * Stops accepting requests.
+     * Requests that were already submitted will still be executed,
+     * including those waiting for their host. Requests submitted afterwards fail with a {@link RejectedExecutionException}.
+     */
+    public void shutdown() {
+        synchronized (this) {
+            shutdown = true;
+            // the pool is shut down once the last waiting request has been handed to it
+            if(!waitingPerHost.isEmpty()) return;
+        }
+        pool.shutdown();
+    }
+
+    /**
+     * Starts the call or places it in the host queue if the host is busy
+     * @param call the call to execute
+     */
+    private void enqueue(Call<?> call) {
+        boolean rejected = false;
+        synchronized (this) {
+            if(shutdown) {
+                rejected = true;
+            } else {
+                Integer running = runningPerHost.get(call.host);
+                if(running != null && running >= maxRequestsPerHost) {
+                    Queue<Call<?>> waiting = waitingPerHost.get(call.host);
+                    if(waiting == null) {
+                        waiting = new PriorityQueue<>();
+                        waitingPerHost.put(call.host, waiting);
+                    }
+                    waiting.add(call);
+                    return;
+                }
+                runningPerHost.put(call.host, running == null ? 1 : running + 1);
+            }
+        }
+        if(rejected) {
+            // failed outside the lock since the callback runs on this thread
+            call.reject(new RejectedExecutionException("The executor has been shut down"));
+        } else {
+            start(call);
+        }
+    }
+
+    /**
+     * Hands a call to the pool.
+     * If the pool does not accept it the call fails and its host slot is released.
+     * @param call the call to execute
+     */
+    private void start(Call<?> call) {
+        try {
+            pool.execute(call);
+        } catch (RejectedExecutionException e) {
+            call.reject(e);
+            finished(call.host);
+        }
+    }
+
+    /**
+     * Releases the host slot of a finished call and starts the next call waiting on that host
+     * @param host the host of the finished call
+     */
+    private void finished(String host) {
+        Call<?> next = null;
+        boolean drained = false;
+        synchronized (this) {
+            Queue<Call<?>> waiting = waitingPerHost.get(host);
+            if(waiting != null) {
+                next = waiting.poll();
+                if(waiting.isEmpty()) {
+                    waitingPerHost.remove(host);
+                    drained = shutdown && waitingPerHost.isEmpty();
+                }
+            }
+            if(next == null) {
+                int running = runningPerHost.get(host) - 1;
+                if(running <= 0) {
+                    runningPerHost.remove(host);
+                } else {
+                    runningPerHost.put(host, running);
+                }
+            }
+        }
+        if(next != null) {
+            start(next);
+        }
+        if(drained) {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Identifies the host a request will connect to
+     * @param url the request url
+     * @return the host key
+     */
+    private static String hostKey(URL url) {
+        int port = url.getPort() == -1 ? url.getDefaultPort() : url.getPort();
+        return url.getHost() + ":" + port;
+    }
+
+    /**
+     * A request waiting for or undergoing execution
+     */
+    private class Call<T> extends FutureTask<T> implements Comparable<Call<?>> {
+        private final Request request;
+        private final String host;
+        private final Callback<T> callback;
+        private final Request.Priority priority;
+        private final long order = sequence.getAndIncrement();
+
+        Call(final Request request, final Task<T> task, Callback<T> callback) {
+            super(new Callable<T>() {
+                @Override
+                public T call() throws Exception {
+                    return task.run(request);
+                }
+            });
+            this.request = request;
+            this.host = hostKey(request.getUrl());
+            this.callback = callback;
+            this.priority = request.getPriority();
+        }
+
+        @Override
+        public int compareTo(Call<?> other) {
+            // higher priorities first then first come first served
+            int result = other.priority.compareTo(priority);
+            if(result != 0) return result;
+            return order < other.order ? -1 : (order == other.order ? 0 : 1);
+        }
+
+        @Override
+        public void run() {
+            try {
+                super.run();
+            } finally {
+                finished(host);
+            }
+        }
+
+        /**
+         * Fails the call without running it
+         * @param e the reason
+         */
+        void reject(RejectedExecutionException e) {
+            setException(e);
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            boolean cancelled = super.cancel(mayInterruptIfRunning);
+            if(cancelled) {
+                request.cancel();
+            }
+            return cancelled;
+        }
+
+        @Override
+        protected void done() {
+            if(callback == null) return;
+            try {
+                callback.onSuccess(request, get());
+            } catch (CancellationException e) {
+                callback.onFailure(request, e);
+            } catch (ExecutionException e) {
+                callback.onFailure(request, e.getCause() instanceof Exception ? (Exception)e.getCause() : e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Names the worker threads so they are easy to recognize
+     */
+    private static class RequestThreadFactory implements ThreadFactory {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "http-request-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+
+    public interface Task<T> {
+        /**
+         * Performs the request
+         * @param request the request to perform
+         * @return the result of the request
+         * @throws IOException
+         */
+        T run(Request request) throws IOException;
+    }
+
+    public interface Callback<T> {
+        /**
+         * Receives the result of a successful request
+         * @param request the request that was executed
+         * @param result the result of the request
+         */
+        void onSuccess(Request request, T result);
+
+        /**
+         * Receives the error of a failed or cancelled request
+         * @param request the request that was executed
+         * @param e the error
+         */
+        void onFailure(Request request, Exception e);
+    }
+}
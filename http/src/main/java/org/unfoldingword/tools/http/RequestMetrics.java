@@ -0,0 +1,174 @@
+package org.unfoldingword.tools.http;
+
+import java.net.URL;
+
+/**
+ * Describes where the time went during a request.
+ * Phase durations are measured on the last attempt.
+ */
+public class RequestMetrics {
+    public enum CacheStatus {
+        /**
+         * The request did not use a response cache
+         */
+        NONE,
+        /**
+         * The response was downloaded
+         */
+        MISS,
+        /**
+         * The server confirmed the cached response had not changed
+         */
+        HIT
+    }
+
+    private final URL url;
+    private final String method;
+    private final int responseCode;
+    private final long connectMillis;
+    private final long uploadMillis;
+    private final long timeToFirstByteMillis;
+    private final long transferMillis;
+    private final long totalMillis;
+    private final long requestBytes;
+    private final long responseBytes;
+    private final int attempts;
+    private final CacheStatus cacheStatus;
+    private final Exception error;
+
+    RequestMetrics(URL url, String method, int responseCode, long connectMillis, long uploadMillis, long timeToFirstByteMillis,
+                   long transferMillis, long totalMillis, long requestBytes, long responseBytes, int attempts,
+                   CacheStatus cacheStatus, Exception error) {
+        this.url = url;
+        this.method = method;
+        this.responseCode = responseCode;
+        this.connectMillis = connectMillis;
+        this.uploadMillis = uploadMillis;
+        this.timeToFirstByteMillis = timeToFirstByteMillis;
+        this.transferMillis = transferMillis;
+        this.totalMillis = totalMillis;
+        this.requestBytes = requestBytes;
+        this.responseBytes = responseBytes;
+        this.attempts = attempts;
+        this.cacheStatus = cacheStatus;
+        this.error = error;
+    }
+
+    public URL getUrl() {
+        return url;
+    }
+
+    /**
+     * Returns the host and port the request was sent to
+     * @return the host key
+     */
+    public String getHost() {
+        int port = url.getPort() == -1 ? url.getDefaultPort() : url.getPort();
+        return url.getHost() + ":" + port;
+    }
+
+    public String getMethod() {
+        return method;
+    }
+
+    /**
+     * Returns the response code
+     * @return the response code or -1 if no response was received
+     */
+    public int getResponseCode() {
+        return responseCode;
+    }
+
+    /**
+     * Returns how long it took to establish the connection.
+     * This includes the DNS lookup and for https connections the TLS handshake,
+     * which HttpURLConnection does not expose separately.
+     * @return the connect time or -1 if the request failed before connecting
+     */
+    public long getConnectMillis() {
+        return connectMillis;
+    }
+
+    /**
+     * Returns how long it took to send the request body
+     * @return the upload time or -1 if the request was not sent
+     */
+    public long getUploadMillis() {
+        return uploadMillis;
+    }
+
+    /**
+     * Returns how long the server took to respond once the request had been sent
+     * @return the time to first byte or -1 if no response was received
+     */
+    public long getTimeToFirstByteMillis() {
+        return timeToFirstByteMillis;
+    }
+
+    /**
+     * Returns how long it took to receive the response body
+     * @return the body transfer time or -1 if no response was received
+     */
+    public long getTransferMillis() {
+        return transferMillis;
+    }
+
+    /**
+     * Returns the duration of the last attempt from opening the connection to finishing the body
+     * @return the total time
+     */
+    public long getTotalMillis() {
+        return totalMillis;
+    }
+
+    /**
+     * Returns the number of request body bytes sent
+     * @return the request size
+     */
+    public long getRequestBytes() {
+        return requestBytes;
+    }
+
+    /**
+     * Returns the number of response body bytes received on the wire
+     * @return the response size
+     */
+    public long getResponseBytes() {
+        return responseBytes;
+    }
+
+    /**
+     * Returns the number of attempts made including retries
+     * @return the number of attempts
+     */
+    public int getAttempts() {
+        return attempts;
+    }
+
+    public CacheStatus getCacheStatus() {
+        return cacheStatus;
+    }
+
+    /**
+     * Returns the error that failed the request
+     * @return the error or null if the request succeeded
+     */
+    public Exception getError() {
+        return error;
+    }
+
+    @Override
+    public String toString() {
+        return method + " " + url + " " + responseCode
+                + " connect=" + connectMillis + "ms"
+                + " upload=" + uploadMillis + "ms"
+                + " ttfb=" + timeToFirstByteMillis + "ms"
+                + " transfer=" + transferMillis + "ms"
+                + " total=" + totalMillis + "ms"
+                + " sent=" + requestBytes
+                + " received=" + responseBytes
+                + " attempts=" + attempts
+                + " cache=" + cacheStatus
+                + (error != null ? " error=" + error : "");
+    }
+}
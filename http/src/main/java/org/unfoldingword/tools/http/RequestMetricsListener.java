@@ -0,0 +1,13 @@
+package org.unfoldingword.tools.http;
+
+/**
+ * Receives the timing and size of completed requests
+ */
+public interface RequestMetricsListener {
+    /**
+     * Receives the metrics of a request once it has completed or failed.
+     * This is called on the thread that performed the request.
+     * @param metrics the request metrics
+     */
+    void onRequestComplete(RequestMetrics metrics);
+}
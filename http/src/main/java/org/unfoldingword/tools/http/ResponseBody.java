@@ -0,0 +1,165 @@
+package org.unfoldingword.tools.http;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.net.HttpURLConnection;
+import java.util.Locale;
+
+/**
+ * A response that can be consumed as a stream.
+ * The body either reads from an open connection, which is released when the body is closed,
+ * or from a response that has already been buffered.
+ */
+public class ResponseBody implements Closeable {
+    private static final int CHUNK_SIZE = 8192;
+
+    private final HttpURLConnection connection;
+    private final String contentType;
+    private final InputStream in;
+    private final long contentLength;
+    private final BufferPool bufferPool;
+    private final Runnable onClose;
+    private boolean closed = false;
+
+    /**
+     * Wraps the response of an open connection
+     * @param connection the connection that produced the response
+     * @param in the response stream
+     * @param contentLength the size of the response or -1 if unknown
+     * @param bufferPool the pool chunk buffers are borrowed from
+     * @param onClose runs once the body has been closed or null
+     */
+    ResponseBody(HttpURLConnection connection, InputStream in, long contentLength, BufferPool bufferPool, Runnable onClose) {
+        this.connection = connection;
+        this.contentType = null;
+        this.in = in;
+        this.contentLength = contentLength;
+        this.bufferPool = bufferPool;
+        this.onClose = onClose;
+    }
+
+    /**
+     * Wraps a response that has already been read from its connection
+     * @param contentType the content type of the response or null if unknown
+     * @param in the buffered response
+     * @param contentLength the size of the buffered response
+     * @param bufferPool the pool chunk buffers are borrowed from
+     * @param onClose runs once the body has been closed or null
+     */
+    ResponseBody(String contentType, InputStream in, long contentLength, BufferPool bufferPool, Runnable onClose) {
+        this.connection = null;
+        this.contentType = contentType;
+        this.in = in;
+        this.contentLength = contentLength;
+        this.bufferPool = bufferPool;
+        this.onClose = onClose;
+    }
+
+    /**
+     * Returns the size of the response as reported by the server
+     * @return the content length or -1 if unknown
+     */
+    public long getContentLength() {
+        return contentLength;
+    }
+
+    /**
+     * Returns the content type of the response
+     * @return the content type or null if unknown
+     */
+    public String getContentType() {
+        if(connection == null) return contentType;
+        return connection.getContentType();
+    }
+
+    /**
+     * Returns the raw response stream
+     * @return the response stream
+     */
+    public InputStream getInputStream() {
+        return in;
+    }
+
+    /**
+     * Returns a reader over the response.
+     * The charset is taken from the content type and defaults to UTF-8.
+     * @return a reader over the response
+     * @throws IOException
+     */
+    public Reader getReader() throws IOException {
+        return new InputStreamReader(in, getCharset());
+    }
+
+    /**
+     * Passes the response to the visitor one chunk at a time.
+     * The chunk buffer is reused between calls so visitors must copy anything they want to keep.
+     * @param visitor the visitor that will receive the chunks
+     * @return the number of bytes visited
+     * @throws IOException
+     */
+    public long visit(ChunkVisitor visitor) throws IOException {
+        byte[] buffer = bufferPool.acquire(CHUNK_SIZE);
+        long bytesRead = 0;
+        try {
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                visitor.onChunk(buffer, 0, n);
+                bytesRead += n;
+            }
+        } finally {
+            bufferPool.release(buffer);
+        }
+        return bytesRead;
+    }
+
+    /**
+     * Closes the response stream and releases the connection if the body is read from one.
+     * A small unread remainder is drained so the connection can be reused, otherwise it is disconnected.
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException {
+        if(closed) return;
+        closed = true;
+        try {
+            if(connection != null) {
+                KeepAlivePolicy.getDefault().release(connection, in);
+            } else {
+                in.close();
+            }
+        } finally {
+            if(onClose != null) onClose.run();
+        }
+    }
+
+    /**
+     * Reads the charset from the content type
+     * @return the charset name
+     */
+    private String getCharset() {
+        String contentType = getContentType();
+        if(contentType != null) {
+            for(String param : contentType.split(";")) {
+                param = param.trim();
+                if(param.toLowerCase(Locale.US).startsWith("charset=")) {
+                    return param.substring("charset=".length()).replace("\"", "").trim();
+                }
+            }
+        }
+        return "UTF-8";
+    }
+
+    public interface ChunkVisitor {
+        /**
+         * Receives a chunk of the response
+         * @param buffer the buffer holding the chunk
+         * @param offset the start of the chunk within the buffer
+         * @param length the size of the chunk
+         * @throws IOException
+         */
+        void onChunk(byte[] buffer, int offset, int length) throws IOException;
+    }
+}
@@ -0,0 +1,118 @@
+package org.unfoldingword.tools.http;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Stores response bodies along with their validators so unchanged responses
+ * can be revalidated with the server instead of being downloaded again.
+ * Only GET requests are cached.
+ */
+public abstract class ResponseCache {
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private final AtomicLong revalidationCount = new AtomicLong();
+    private final AtomicLong bytesSaved = new AtomicLong();
+
+    /**
+     * Looks up a cached response
+     * @param key identifies the request
+     * @return the cached entry or null if the request has not been cached
+     * @throws IOException
+     */
+    public abstract CacheEntry get(String key) throws IOException;
+
+    /**
+     * Opens the body of a cached response
+     * @param key identifies the request
+     * @return the cached body or null if it is no longer available
+     * @throws IOException
+     */
+    public abstract InputStream openBody(String key) throws IOException;
+
+    /**
+     * Begins storing a response.
+     * The body is written to the returned editor as it is received.
+     * @param key identifies the request
+     * @param entry the validators of the response
+     * @return an editor that receives the body or null if the response should not be cached
+     * @throws IOException
+     */
+    public abstract Editor put(String key, CacheEntry entry) throws IOException;
+
+    /**
+     * Removes a cached response
+     * @param key identifies the request
+     * @throws IOException
+     */
+    public abstract void remove(String key) throws IOException;
+
+    /**
+     * Returns the number of responses that were served from the cache after the server confirmed they had not changed
+     * @return the number of cache hits
+     */
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    /**
+     * Returns the number of cacheable responses that had to be downloaded
+     * @return the number of cache misses
+     */
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    /**
+     * Returns the number of conditional requests sent to revalidate a cached response
+     * @return the number of revalidations
+     */
+    public long getRevalidationCount() {
+        return revalidationCount.get();
+    }
+
+    /**
+     * Returns the number of body bytes that did not have to be downloaded because they were served from the cache
+     * @return the number of bytes saved
+     */
+    public long getBytesSaved() {
+        return bytesSaved.get();
+    }
+
+    void recordHit(long length) {
+        hitCount.incrementAndGet();
+        if(length > 0) bytesSaved.addAndGet(length);
+    }
+
+    void recordMiss() {
+        missCount.incrementAndGet();
+    }
+
+    void recordRevalidation() {
+        revalidationCount.incrementAndGet();
+    }
+
+    /**
+     * Receives the body of a response being cached
+     */
+    public interface Editor {
+        /**
+         * Returns the stream that receives the body
+         * @return the body stream
+         */
+        OutputStream getOutputStream();
+
+        /**
+         * Stores the response once the entire body has been written
+         * @throws IOException
+         */
+        void commit() throws IOException;
+
+        /**
+         * Discards the response
+         */
+        void abort();
+    }
+}
@@ -0,0 +1,33 @@
+package org.unfoldingword.tools.http;
+
+import java.io.IOException;
+
+/**
+ * Thrown when a response is larger than a request is allowed to hold in memory
+ */
+public class ResponseTooLargeException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    private final long limit;
+    private final long length;
+
+    /**
+     * @param limit the maximum size in bytes
+     * @param length the size announced by the server or -1 if the limit was exceeded while the response was received
+     */
+    public ResponseTooLargeException(long limit, long length) {
+        super(length >= 0
+                ? "The response of " + length + " bytes exceeds the limit of " + limit + " bytes"
+                : "The response exceeds the limit of " + limit + " bytes");
+        this.limit = limit;
+        this.length = length;
+    }
+
+    public long getLimit() {
+        return limit;
+    }
+
+    public long getLength() {
+        return length;
+    }
+}
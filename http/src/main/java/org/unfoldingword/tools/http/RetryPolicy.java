@@ -0,0 +1,185 @@
+package org.unfoldingword.tools.http;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.Set;
+import java.util.TimeZone;
+
+/**
+ * Decides when a failed request should be attempted again and how long to wait before doing so.
+ * Delays grow exponentially with random jitter so many clients do not retry in lockstep.
+ * Only idempotent requests are retried unless configured otherwise.
+ */
+public class RetryPolicy {
+    private final int maxAttempts;
+    private long initialDelay = 500;
+    private long maxDelay = 30000;
+    private double multiplier = 2;
+    private double jitter = 0.5;
+    private boolean retryNonIdempotent = false;
+    private final Set<Integer> statusCodes = new HashSet<>();
+    private final List<Class<? extends IOException>> exceptions = new ArrayList<>();
+    private OnAttemptListener attemptListener = null;
+    private final Random random = new Random();
+
+    /**
+     * Creates a new retry policy.
+     * By default requests are retried on timeouts, failed connections and 408, 429, 500, 502, 503 and 504 responses.
+     * @param maxAttempts the maximum number of attempts including the first one
+     */
+    public RetryPolicy(int maxAttempts) {
+        this.maxAttempts = Math.max(1, maxAttempts);
+        setRetryStatusCodes(408, 429, 500, 502, 503, 504);
+        exceptions.add(SocketTimeoutException.class);
+        exceptions.add(ConnectException.class);
+    }
+
+    /**
+     * Configures the exponential backoff
+     * @param initialDelay the delay in milliseconds before the first retry
+     * @param maxDelay the longest delay in milliseconds between attempts
+     * @param multiplier the factor the delay grows by after each attempt
+     */
+    public void setBackoff(long initialDelay, long maxDelay, double multiplier) {
+        this.initialDelay = initialDelay;
+        this.maxDelay = maxDelay;
+        this.multiplier = multiplier;
+    }
+
+    /**
+     * Sets how much of each delay is randomized
+     * @param jitter a fraction between 0 (no randomness) and 1 (anywhere from zero up to the full delay)
+     */
+    public void setJitter(double jitter) {
+        this.jitter = Math.max(0, Math.min(1, jitter));
+    }
+
+    /**
+     * Sets the response codes that will be retried
+     * @param codes the response codes
+     */
+    public void setRetryStatusCodes(int... codes) {
+        statusCodes.clear();
+        for(int code : codes) {
+            statusCodes.add(code);
+        }
+    }
+
+    /**
+     * Adds an exception type that will be retried when no response was received
+     * or a successful response failed while its body was being read.
+     * Subclasses of the type are retried as well.
+     * @param type the exception type
+     */
+    public void addRetryException(Class<? extends IOException> type) {
+        exceptions.add(type);
+    }
+
+    /**
+     * Allows requests that are not idempotent such as POST to be retried.
+     * Only enable this if the server can safely receive the same request twice.
+     * @param retryNonIdempotent true if non-idempotent requests may be retried
+     */
+    public void setRetryNonIdempotent(boolean retryNonIdempotent) {
+        this.retryNonIdempotent = retryNonIdempotent;
+    }
+
+    /**
+     * Sets the listener to be notified after every attempt
+     * @param listener a listener that will receive attempt events
+     */
+    public void setAttemptListener(OnAttemptListener listener) {
+        this.attemptListener = listener;
+    }
+
+    /**
+     * Checks if a failed attempt should be retried
+     * @param request the request that failed
+     * @param attempt the number of the attempt that failed starting at 1
+     * @param responseCode the response code or -1 if no response was received
+     * @param e the error
+     * @return true if the request should be attempted again
+     */
+    boolean shouldRetry(Request request, int attempt, int responseCode, IOException e) {
+        if(attempt >= maxAttempts) return false;
+        if(!request.isRepeatable()) return false;
+        if(!retryNonIdempotent && !request.isIdempotent()) return false;
+        if(responseCode >= 400) {
+            return statusCodes.contains(responseCode);
+        }
+        // either no response was received or the body of a successful response failed
+        if(e instanceof UnknownHostException) return false;
+        for(Class<? extends IOException> type : exceptions) {
+            if(type.isInstance(e)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Calculates how long to wait before the next attempt
+     * @param attempt the number of the attempt that failed starting at 1
+     * @param retryAfter the Retry-After header of the failed response or null
+     * @return the delay in milliseconds or -1 if the server asked us to wait longer than the maximum delay
+     */
+    long getDelay(int attempt, String retryAfter) {
+        long delay = (long)Math.min(maxDelay, initialDelay * Math.pow(multiplier, attempt - 1));
+        delay -= (long)(delay * jitter * random.nextDouble());
+        long serverDelay = parseRetryAfter(retryAfter);
+        if(serverDelay > maxDelay) return -1;
+        return Math.max(delay, serverDelay);
+    }
+
+    /**
+     * Sends an attempt to the listener
+     */
+    void notifyAttempt(Request request, int attempt, long duration, IOException error, long retryDelay) {
+        if(attemptListener != null) {
+            attemptListener.onAttempt(request, attempt, duration, request.getResponseCode(), error, retryDelay);
+        }
+    }
+
+    /**
+     * Parses a Retry-After header which may either be a number of seconds or a date
+     * @param value the header value
+     * @return the delay in milliseconds or 0 if there is no delay
+     */
+    private static long parseRetryAfter(String value) {
+        if(value == null) return 0;
+        value = value.trim();
+        try {
+            return Math.max(0, Long.parseLong(value) * 1000);
+        } catch (NumberFormatException e) {
+            SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+            format.setTimeZone(TimeZone.getTimeZone("GMT"));
+            try {
+                Date date = format.parse(value);
+                return Math.max(0, date.getTime() - System.currentTimeMillis());
+            } catch (ParseException pe) {
+                return 0;
+            }
+        }
+    }
+
+    public interface OnAttemptListener {
+        /**
+         * Receives the outcome of an attempt
+         * @param request the request
+         * @param attempt the number of the attempt starting at 1
+         * @param durationMillis how long the attempt took
+         * @param responseCode the response code or -1 if no response was received
+         * @param error the error or null if the attempt succeeded
+         * @param retryDelayMillis how long until the next attempt or -1 if there will be no other attempt
+         */
+        void onAttempt(Request request, int attempt, long durationMillis, int responseCode, IOException error, long retryDelayMillis);
+    }
+}
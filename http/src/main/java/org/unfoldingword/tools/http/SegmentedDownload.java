@@ -0,0 +1,406 @@
+package org.unfoldingword.tools.http;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Downloads a large file by fetching several byte ranges at the same time.
+ * Each range is written directly to its position in the destination file.
+ * Servers that do not support range requests are downloaded with a single request.
+ */
+public class SegmentedDownload {
+    private final URL url;
+    private final File destination;
+    private final Map<String, String> headers = new LinkedHashMap<>();
+    private int segments = 4;
+    private long minSegmentSize = 1024 * 1024;
+    private int maxRetries = 3;
+    private int ttl = 5000;
+    private ExecutorService executor = null;
+    private Request.OnProgressListener progressListener = null;
+    private long progressUpdateBytes = 0;
+    private long progressUpdateMillis = 250;
+    private Executor progressExecutor = null;
+
+    private final AtomicLong bytesWritten = new AtomicLong();
+    private ProgressDispatcher progress = null;
+    private volatile boolean aborted = false;
+
+    /**
+     * Prepares a new segmented download
+     * @param url the url of the file
+     * @param destination the file where the response will be downloaded to
+     */
+    public SegmentedDownload(URL url, File destination) {
+        this.url = url;
+        this.destination = destination;
+    }
+
+    /**
+     * Sets the maximum number of segments that will be downloaded at the same time
+     * @param segments the number of segments
+     */
+    public void setSegments(int segments) {
+        this.segments = Math.max(1, segments);
+    }
+
+    /**
+     * Sets the smallest segment worth fetching on its own.
+     * Files smaller than two segments are downloaded as a single range.
+     * @param minSegmentSize the minimum segment size in bytes
+     */
+    public void setMinSegmentSize(long minSegmentSize) {
+        this.minSegmentSize = Math.max(1, minSegmentSize);
+    }
+
+    /**
+     * Sets how many times a failed segment will be retried before the download fails
+     * @param maxRetries the number of retries for each segment
+     */
+    public void setMaxRetries(int maxRetries) {
+        this.maxRetries = Math.max(0, maxRetries);
+    }
+
+    /**
+     * Sets the connection write and read timeout for each segment request
+     * @param ttl the time allowed before the connection times out
+     */
+    public void setTimeout(int ttl) {
+        this.ttl = ttl;
+    }
+
+    /**
+     * Sets the authentication for the segment requests
+     * @param token
+     * @param label the auth label
+     */
+    public void setAuth(String token, String label) {
+        setHeader("Authorization", label + " " + token);
+    }
+
+    /**
+     * Sets a header that will be sent with every segment request
+     * @param name the header name
+     * @param value the header value or null to remove the header
+     */
+    public void setHeader(String name, String value) {
+        if(value == null) {
+            headers.remove(name);
+        } else {
+            headers.put(name, value);
+        }
+    }
+
+    /**
+     * Sets the executor that segments will be downloaded on.
+     * By default a pool with one thread per segment is created for each download.
+     * @param executor the executor or null to use a private pool
+     */
+    public void setExecutor(ExecutorService executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Sets the listener to receive progress updates for the whole file
+     * @param listener a listener that will receive progress events
+     */
+    public void setProgressListener(Request.OnProgressListener listener) {
+        this.progressListener = listener;
+    }
+
+    /**
+     * Sets how often progress is published.
+     * An update is sent once both thresholds have been reached since the last update.
+     * @param bytes the minimum number of bytes between updates
+     * @param millis the minimum number of milliseconds between updates
+     */
+    public void setProgressInterval(long bytes, long millis) {
+        if(bytes < 0 || millis < 0) throw new IllegalArgumentException("The progress interval cannot be negative");
+        this.progressUpdateBytes = bytes;
+        this.progressUpdateMillis = millis;
+    }
+
+    /**
+     * Sets the executor that progress is delivered on.
+     * Updates are coalesced while the listener is busy so a slow listener never holds up the segments.
+     * @param executor the executor or null to deliver progress on the segment threads
+     */
+    public void setProgressExecutor(Executor executor) {
+        this.progressExecutor = executor;
+    }
+
+    /**
+     * Downloads the file.
+     * The destination is deleted if the download fails.
+     * @throws IOException
+     */
+    public void download() throws IOException {
+        bytesWritten.set(0);
+        progress = new ProgressDispatcher(progressListener);
+        progress.setInterval(progressUpdateBytes, progressUpdateMillis);
+        progress.setExecutor(progressExecutor);
+        progress.start(0);
+        aborted = false;
+        destination.getParentFile().mkdirs();
+
+        // ask for the first byte to learn the size and whether ranges are supported
+        GetRequest probe = createRequest();
+        probe.setHeader("Range", "bytes=0-0");
+        ResponseBody probeBody;
+        try {
+            probeBody = probe.openResponse();
+        } catch (IOException e) {
+            if(probe.getResponseCode() == 416 && parseTotalSize(probe.getResponseHeader("Content-Range")) == 0) {
+                // an empty file has no first byte to give us
+                downloadEmpty();
+                return;
+            }
+            throw e;
+        }
+        long totalBytes;
+        String validator;
+        try {
+            if(probe.getResponseCode() != 206) {
+                // ranges are not supported so the probe already holds the whole file
+                downloadSingle(probeBody, probeBody.getContentLength());
+                return;
+            }
+            totalBytes = parseTotalSize(probe.getResponseHeader("Content-Range"));
+            validator = probe.getResponseHeader("ETag");
+            if(validator == null) validator = probe.getResponseHeader("Last-Modified");
+        } finally {
+            probeBody.close();
+        }
+
+        if(totalBytes < 0) {
+            GetRequest request = createRequest();
+            ResponseBody body = request.openResponse();
+            try {
+                downloadSingle(body, body.getContentLength());
+            } finally {
+                body.close();
+            }
+        } else {
+            downloadSegments(totalBytes, validator);
+        }
+    }
+
+    /**
+     * Creates an empty destination
+     * @throws IOException
+     */
+    private void downloadEmpty() throws IOException {
+        RandomAccessFile file = new RandomAccessFile(destination, "rw");
+        try {
+            file.setLength(0);
+        } finally {
+            file.close();
+        }
+        progress.publish(0, 0);
+    }
+
+    /**
+     * Writes a complete response to the destination
+     * @param body the response body
+     * @param totalBytes the size of the file or -1 if unknown
+     * @throws IOException
+     */
+    private void downloadSingle(ResponseBody body, final long totalBytes) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(destination, "rw");
+        try {
+            file.setLength(0);
+            final FileChannel channel = file.getChannel();
+            final long[] position = {0};
+            body.visit(new ResponseBody.ChunkVisitor() {
+                @Override
+                public void onChunk(byte[] buffer, int offset, int length) throws IOException {
+                    write(channel, buffer, offset, length, position[0]);
+                    position[0] += length;
+                    onBytesWritten(length, totalBytes);
+                }
+            });
+            progress.publish(totalBytes, bytesWritten.get());
+        } catch (IOException e) {
+            file.close();
+            destination.delete();
+            throw e;
+        }
+        file.close();
+    }
+
+    /**
+     * Splits the file into ranges and downloads them concurrently
+     * @param totalBytes the size of the file
+     * @param validator the ETag or Last-Modified value used to make sure every range comes from the same file
+     * @throws IOException
+     */
+    private void downloadSegments(final long totalBytes, final String validator) throws IOException {
+        int count = (int)Math.max(1, Math.min(segments, totalBytes / minSegmentSize));
+        long segmentSize = totalBytes / count;
+
+        RandomAccessFile file = new RandomAccessFile(destination, "rw");
+        ExecutorService pool = executor != null ? executor : Executors.newFixedThreadPool(count);
+        CompletionService<Void> completion = new ExecutorCompletionService<>(pool);
+        List<Future<Void>> futures = new ArrayList<>();
+        try {
+            file.setLength(totalBytes);
+            final FileChannel channel = file.getChannel();
+            for(int i = 0; i < count; i ++) {
+                final long start = i * segmentSize;
+                final long end = i == count - 1 ? totalBytes - 1 : start + segmentSize - 1;
+                futures.add(completion.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        downloadSegment(channel, start, end, totalBytes, validator);
+                        return null;
+                    }
+                }));
+            }
+            // wait in the order the segments finish so the first failure stops the rest straight away
+            for(int i = 0; i < futures.size(); i ++) {
+                completion.take().get();
+            }
+            progress.publish(totalBytes, bytesWritten.get());
+        } catch (InterruptedException e) {
+            abort(futures, file);
+            Thread.currentThread().interrupt();
+            throw new IOException("The download was interrupted");
+        } catch (ExecutionException e) {
+            abort(futures, file);
+            if(e.getCause() instanceof IOException) throw (IOException)e.getCause();
+            throw new IOException(e.getCause());
+        } catch (IOException e) {
+            abort(futures, file);
+            throw e;
+        } finally {
+            if(executor == null) pool.shutdown();
+        }
+        file.close();
+    }
+
+    /**
+     * Downloads a single range, retrying from the last byte written if it fails
+     * @param channel the channel of the destination file
+     * @param start the first byte of the range
+     * @param end the last byte of the range
+     * @param totalBytes the size of the file
+     * @param validator the ETag or Last-Modified value of the file
+     * @throws IOException
+     */
+    private void downloadSegment(final FileChannel channel, long start, long end, final long totalBytes, String validator) throws IOException {
+        final long[] position = {start};
+        int attempt = 0;
+        while(true) {
+            GetRequest request = createRequest();
+            request.setHeader("Range", "bytes=" + position[0] + "-" + end);
+            if(validator != null) request.setHeader("If-Range", validator);
+            try {
+                ResponseBody body = request.openResponse();
+                try {
+                    if(request.getResponseCode() != 206) {
+                        throw new IOException("The file changed during the download");
+                    }
+                    body.visit(new ResponseBody.ChunkVisitor() {
+                        @Override
+                        public void onChunk(byte[] buffer, int offset, int length) throws IOException {
+                            if(aborted) throw new IOException("The download was aborted");
+                            write(channel, buffer, offset, length, position[0]);
+                            position[0] += length;
+                            onBytesWritten(length, totalBytes);
+                        }
+                    });
+                } finally {
+                    body.close();
+                }
+                if(position[0] <= end) {
+                    throw new IOException("Expected " + (end + 1 - position[0]) + " more bytes");
+                }
+                return;
+            } catch (IOException e) {
+                attempt ++;
+                if(aborted || attempt > maxRetries || request.getResponseCode() == 200) throw e;
+            }
+        }
+    }
+
+    /**
+     * Stops all the segments and removes the partial file
+     */
+    private void abort(List<Future<Void>> futures, RandomAccessFile file) {
+        aborted = true;
+        for(Future<Void> future : futures) {
+            future.cancel(true);
+        }
+        try {
+            file.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        destination.delete();
+    }
+
+    /**
+     * Writes a chunk at a position in the file
+     */
+    private static void write(FileChannel channel, byte[] buffer, int offset, int length, long position) throws IOException {
+        ByteBuffer data = ByteBuffer.wrap(buffer, offset, length);
+        while(data.hasRemaining()) {
+            position += channel.write(data, position);
+        }
+    }
+
+    /**
+     * Creates a request for the file
+     * @return a new request
+     */
+    private GetRequest createRequest() {
+        GetRequest request = new GetRequest(url);
+        request.setTimeout(ttl);
+        for(Map.Entry<String, String> header : headers.entrySet()) {
+            request.setHeader(header.getKey(), header.getValue());
+        }
+        // ranges apply to the encoded body so the response must not be compressed
+        request.setHeader("Accept-Encoding", "identity");
+        return request;
+    }
+
+    /**
+     * Parses the total size from a content range such as "bytes 0-0/1234"
+     * @param contentRange the content range header
+     * @return the total size or -1 if unknown
+     */
+    private static long parseTotalSize(String contentRange) {
+        if(contentRange == null) return -1;
+        int slash = contentRange.lastIndexOf('/');
+        if(slash == -1) return -1;
+        try {
+            return Long.parseLong(contentRange.substring(slash + 1).trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Records bytes written by any segment and sends progress updates
+     */
+    private void onBytesWritten(int length, long totalBytes) {
+        progress.update(totalBytes, bytesWritten.addAndGet(length));
+    }
+}
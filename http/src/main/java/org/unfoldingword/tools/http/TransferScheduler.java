@@ -0,0 +1,88 @@
+package org.unfoldingword.tools.http;
+
+import java.io.InterruptedIOException;
+
+/**
+ * Shares the available bandwidth between requests according to their priority.
+ * While any {@link Request.Priority#NORMAL} or {@link Request.Priority#HIGH} request is running
+ * {@link Request.Priority#LOW} transfers are slowed down to the background rate so interactive calls are not starved.
+ * An overall limit can be applied to every transfer as well.
+ */
+public class TransferScheduler {
+    private static final long DEFAULT_BACKGROUND_RATE = 128 * 1024;
+    private static volatile TransferScheduler defaultScheduler = new TransferScheduler();
+
+    private final BandwidthLimiter limiter = new BandwidthLimiter(0);
+    private final BandwidthLimiter backgroundLimiter = new BandwidthLimiter(DEFAULT_BACKGROUND_RATE);
+    private int foreground = 0;
+
+    /**
+     * Returns the scheduler used by requests that have not been given their own scheduler
+     * @return the default scheduler
+     */
+    public static TransferScheduler getDefault() {
+        return defaultScheduler;
+    }
+
+    /**
+     * Replaces the scheduler used by requests that have not been given their own scheduler
+     * @param scheduler the new default scheduler
+     */
+    public static void setDefault(TransferScheduler scheduler) {
+        if(scheduler == null) throw new IllegalArgumentException("The default scheduler cannot be null");
+        defaultScheduler = scheduler;
+    }
+
+    /**
+     * Limits the combined throughput of all transfers
+     * @param bytesPerSecond the maximum throughput or 0 for no limit
+     */
+    public void setBandwidthLimit(long bytesPerSecond) {
+        limiter.setRate(bytesPerSecond);
+    }
+
+    /**
+     * Sets the combined throughput allowed for low priority transfers while other requests are running
+     * @param bytesPerSecond the background throughput or 0 for no limit
+     */
+    public void setBackgroundRate(long bytesPerSecond) {
+        backgroundLimiter.setRate(bytesPerSecond);
+    }
+
+    /**
+     * Returns the number of normal and high priority requests that are running
+     * @return the number of foreground requests
+     */
+    public synchronized int getForegroundCount() {
+        return foreground;
+    }
+
+    /**
+     * Records that a request has started
+     * @param priority the priority of the request
+     */
+    synchronized void begin(Request.Priority priority) {
+        if(priority != Request.Priority.LOW) foreground ++;
+    }
+
+    /**
+     * Records that a request has finished
+     * @param priority the priority of the request
+     */
+    synchronized void end(Request.Priority priority) {
+        if(priority != Request.Priority.LOW) foreground = Math.max(0, foreground - 1);
+    }
+
+    /**
+     * Waits until a chunk may be transferred
+     * @param priority the priority of the transfer
+     * @param bytes the size of the chunk
+     * @throws InterruptedIOException if the thread was interrupted while waiting
+     */
+    void throttle(Request.Priority priority, int bytes) throws InterruptedIOException {
+        if(priority == Request.Priority.LOW && getForegroundCount() > 0) {
+            backgroundLimiter.acquire(bytes);
+        }
+        limiter.acquire(bytes);
+    }
+}
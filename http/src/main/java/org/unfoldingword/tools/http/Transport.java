@@ -0,0 +1,40 @@
+package org.unfoldingword.tools.http;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+/**
+ * Opens the connections requests are sent over.
+ * Engines hand out their own {@link HttpURLConnection} implementation
+ * so requests and their subclasses work the same whichever engine is used.
+ */
+public abstract class Transport {
+    private static volatile Transport defaultTransport = new UrlConnectionTransport();
+
+    /**
+     * Returns the transport used by requests that have not been given their own transport
+     * @return the default transport
+     */
+    public static Transport getDefault() {
+        return defaultTransport;
+    }
+
+    /**
+     * Replaces the transport used by requests that have not been given their own transport
+     * @param transport the new default transport
+     */
+    public static void setDefault(Transport transport) {
+        if(transport == null) throw new IllegalArgumentException("The default transport cannot be null");
+        defaultTransport = transport;
+    }
+
+    /**
+     * Creates a connection to a url.
+     * The connection is not connected until the request has been configured.
+     * @param url the url
+     * @return a new connection
+     * @throws IOException
+     */
+    public abstract HttpURLConnection open(URL url) throws IOException;
+}
@@ -0,0 +1,20 @@
+package org.unfoldingword.tools.http;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+import javax.net.ssl.HttpsURLConnection;
+
+/**
+ * The default transport which uses the platform's {@link HttpURLConnection}
+ */
+public class UrlConnectionTransport extends Transport {
+    @Override
+    public HttpURLConnection open(URL url) throws IOException {
+        if(url.getProtocol().equals("https")) {
+            return (HttpsURLConnection)url.openConnection();
+        }
+        return (HttpURLConnection)url.openConnection();
+    }
+}
@@ -0,0 +1,244 @@
+package org.unfoldingword.tools.http;
+
+import com.github.tomakehurst.wiremock.junit.WireMockRule;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.URL;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.*;
+import static com.github.tomakehurst.wiremock.core.WireMockConfiguration.wireMockConfig;
+import static org.junit.Assert.*;
+
+public class ArchiveExtractorUnitTests {
+    @Rule
+    public WireMockRule wireMockRule = new WireMockRule(wireMockConfig().dynamicPort().dynamicHttpsPort());
+    @Rule
+    public TemporaryFolder tempDir = new TemporaryFolder();
+
+    private static String readFile(File f) throws IOException {
+        FileInputStream in = new FileInputStream(f);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            byte[] buffer = new byte[4096];
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                out.write(buffer, 0, n);
+            }
+        } finally {
+            in.close();
+        }
+        return out.toString("UTF-8");
+    }
+
+    private static byte[] createZip(String... entries) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ZipOutputStream zip = new ZipOutputStream(bytes);
+        for(int i = 0; i < entries.length; i += 2) {
+            zip.putNextEntry(new ZipEntry(entries[i]));
+            zip.write(entries[i + 1].getBytes("UTF-8"));
+            zip.closeEntry();
+        }
+        zip.close();
+        return bytes.toByteArray();
+    }
+
+    private static void writeOctal(byte[] header, int offset, int length, long value) {
+        String octal = Long.toOctalString(value);
+        while(octal.length() < length - 1) octal = "0" + octal;
+        for(int i = 0; i < octal.length(); i ++) {
+            header[offset + i] = (byte)octal.charAt(i);
+        }
+    }
+
+    private static byte[] createTar(String... entries) throws IOException {
+        ByteArrayOutputStream tar = new ByteArrayOutputStream();
+        for(int i = 0; i < entries.length; i += 2) {
+            byte[] data = entries[i + 1].getBytes("UTF-8");
+            byte[] header = new byte[512];
+            byte[] name = entries[i].getBytes("UTF-8");
+            System.arraycopy(name, 0, header, 0, name.length);
+            writeOctal(header, 100, 8, 0644);
+            writeOctal(header, 124, 12, data.length);
+            header[156] = '0';
+            System.arraycopy("ustar\u000000".getBytes("UTF-8"), 0, header, 257, 8);
+            tar.write(header);
+            tar.write(data);
+            tar.write(new byte[(512 - data.length % 512) % 512]);
+        }
+        tar.write(new byte[1024]);
+        return tar.toByteArray();
+    }
+
+    private static byte[] gzip(byte[] data) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        GZIPOutputStream out = new GZIPOutputStream(bytes);
+        out.write(data);
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    private void stubArchive(String path, byte[] archive) {
+        stubFor(get(urlEqualTo(path))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withHeader("Content-Length", String.valueOf(archive.length))
+                        .withBody(archive)));
+    }
+
+    @Test
+    public void zipExtractedWhileDownloading() throws Exception {
+        byte[] archive = createZip("manifest.yaml", "my manifest", "content/01.usfm", "my chapter");
+        stubArchive("/archive/zip", archive);
+
+        final long[] progress = new long[2];
+        File dir = new File(tempDir.getRoot(), "zip");
+        GetRequest request = new GetRequest(new URL("http://localhost:" + wireMockRule.port() + "/archive/zip"));
+        request.setProgressListener(new Request.OnProgressListener() {
+            @Override
+            public void onProgress(long max, long value) {
+                progress[0] = max;
+                progress[1] = value;
+            }
+
+            @Override
+            public void onIndeterminate() {
+
+            }
+        });
+        List<File> files = request.downloadAndExtract(dir);
+
+        assertEquals(2, files.size());
+        assertEquals("my manifest", readFile(new File(dir, "manifest.yaml")));
+        assertEquals("my chapter", readFile(new File(dir, "content/01.usfm")));
+        assertEquals(archive.length, progress[0]);
+        assertEquals(archive.length, progress[1]);
+    }
+
+    @Test
+    public void tarGzipExtracted() throws Exception {
+        stubArchive("/archive/targz", gzip(createTar("bundle/a.txt", "aaa", "bundle/b.txt", "bbb")));
+        stubArchive("/archive/tar", createTar("c.txt", "ccc"));
+
+        File dir = new File(tempDir.getRoot(), "tar");
+        new GetRequest(new URL("http://localhost:" + wireMockRule.port() + "/archive/targz")).downloadAndExtract(dir);
+        new GetRequest(new URL("http://localhost:" + wireMockRule.port() + "/archive/tar")).downloadAndExtract(dir);
+
+        assertEquals("aaa", readFile(new File(dir, "bundle/a.txt")));
+        assertEquals("bbb", readFile(new File(dir, "bundle/b.txt")));
+        assertEquals("ccc", readFile(new File(dir, "c.txt")));
+    }
+
+    @Test
+    public void pathTraversalRejected() throws Exception {
+        stubArchive("/archive/traversal", createZip("good.txt", "good", "../../evil.txt", "evil"));
+
+        File dir = new File(tempDir.getRoot(), "traversal");
+        GetRequest request = new GetRequest(new URL("http://localhost:" + wireMockRule.port() + "/archive/traversal"));
+        try {
+            request.downloadAndExtract(dir);
+            fail();
+        } catch (IOException e) {
+            assertNotNull(e);
+        }
+
+        assertFalse(new File(tempDir.getRoot().getParentFile(), "evil.txt").exists());
+        // the partial output was removed
+        assertFalse(dir.exists());
+    }
+
+    @Test
+    public void truncatedArchiveRemoved() throws Exception {
+        byte[] tar = createTar("a.txt", "aaa", "b.txt", "bbbbbbbbbb");
+        byte[] truncated = new byte[512 * 3 + 4];
+        System.arraycopy(tar, 0, truncated, 0, truncated.length);
+        stubArchive("/archive/truncated", truncated);
+
+        File dir = tempDir.newFolder("truncated");
+        GetRequest request = new GetRequest(new URL("http://localhost:" + wireMockRule.port() + "/archive/truncated"));
+        try {
+            request.downloadAndExtract(dir);
+            fail();
+        } catch (IOException e) {
+            assertNotNull(e);
+        }
+
+        // the existing directory is kept but nothing is left inside it
+        assertTrue(dir.exists());
+        assertEquals(0, dir.list().length);
+    }
+
+    @Test
+    public void failedUpdateKeepsExistingFiles() throws Exception {
+        byte[] tar = createTar("a.txt", "new", "b.txt", "bbbbbbbbbb");
+        byte[] truncated = new byte[512 * 3 + 4];
+        System.arraycopy(tar, 0, truncated, 0, truncated.length);
+        stubArchive("/archive/update-failed", truncated);
+
+        File dir = tempDir.newFolder("update-failed");
+        File existing = new File(dir, "a.txt");
+        FileOutputStream out = new FileOutputStream(existing);
+        out.write("old".getBytes("UTF-8"));
+        out.close();
+
+        GetRequest request = new GetRequest(new URL("http://localhost:" + wireMockRule.port() + "/archive/update-failed"));
+        try {
+            request.downloadAndExtract(dir);
+            fail();
+        } catch (IOException e) {
+            assertNotNull(e);
+        }
+
+        // the existing file is untouched and nothing else is left behind
+        assertEquals("old", readFile(existing));
+        assertEquals(1, dir.list().length);
+    }
+
+    @Test
+    public void updateReplacesExistingFiles() throws Exception {
+        stubArchive("/archive/update", createTar("a.txt", "new", "b.txt", "bbb"));
+
+        File dir = tempDir.newFolder("update");
+        File existing = new File(dir, "a.txt");
+        FileOutputStream out = new FileOutputStream(existing);
+        out.write("old".getBytes("UTF-8"));
+        out.close();
+
+        new GetRequest(new URL("http://localhost:" + wireMockRule.port() + "/archive/update")).downloadAndExtract(dir);
+
+        assertEquals("new", readFile(existing));
+        assertEquals("bbb", readFile(new File(dir, "b.txt")));
+        assertEquals(2, dir.list().length);
+    }
+
+    @Test
+    public void oversizedLongNameRejected() throws Exception {
+        // a GNU long name header announcing 2 GB of name
+        byte[] header = new byte[512];
+        byte[] name = "././@LongLink".getBytes("UTF-8");
+        System.arraycopy(name, 0, header, 0, name.length);
+        writeOctal(header, 124, 12, Integer.MAX_VALUE);
+        header[156] = 'L';
+        System.arraycopy("ustar\u000000".getBytes("UTF-8"), 0, header, 257, 8);
+
+        File dir = tempDir.newFolder("long-name");
+        try {
+            new ArchiveExtractor().extract(new ByteArrayInputStream(header), dir);
+            fail();
+        } catch (IOException e) {
+            assertEquals("The tar header is too large", e.getMessage());
+        }
+    }
+}
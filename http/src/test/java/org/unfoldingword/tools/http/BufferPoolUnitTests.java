@@ -0,0 +1,104 @@
+package org.unfoldingword.tools.http;
+
+import com.github.tomakehurst.wiremock.junit.WireMockRule;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.*;
+import static com.github.tomakehurst.wiremock.core.WireMockConfiguration.wireMockConfig;
+import static org.junit.Assert.*;
+
+public class BufferPoolUnitTests {
+    @Rule
+    public WireMockRule wireMockRule = new WireMockRule(wireMockConfig().dynamicPort().dynamicHttpsPort());
+    @Rule
+    public TemporaryFolder tempDir = new TemporaryFolder();
+
+    @Test
+    public void buffersReused() {
+        BufferPool pool = new BufferPool(64 * 1024, 4096, 8192);
+
+        byte[] buffer = pool.acquire(5000);
+        assertEquals(8192, buffer.length);
+        pool.release(buffer);
+        assertEquals(8192, pool.getPooledBytes());
+
+        assertSame(buffer, pool.acquire(8192));
+        assertEquals(1, pool.getAllocationCount());
+        assertEquals(1, pool.getReuseCount());
+        assertEquals(4096, pool.acquire(1).length);
+    }
+
+    @Test
+    public void poolBounded() {
+        BufferPool pool = new BufferPool(8192, 4096);
+        List<byte[]> buffers = new ArrayList<>();
+        for(int i = 0; i < 4; i ++) {
+            buffers.add(pool.acquire(4096));
+        }
+        for(byte[] buffer : buffers) {
+            pool.release(buffer);
+        }
+        assertEquals(8192, pool.getPooledBytes());
+
+        // buffers that do not match a size class are never pooled
+        byte[] large = pool.acquire(100000);
+        assertEquals(100000, large.length);
+        pool.release(large);
+        pool.release(new byte[10]);
+        assertEquals(8192, pool.getPooledBytes());
+    }
+
+    @Test
+    public void requestsShareBuffers() throws Exception {
+        stubFor(get(urlEqualTo("/pool/download"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withBody(new byte[32 * 1024])));
+
+        BufferPool pool = new BufferPool(64 * 1024, 8192);
+        for(int i = 0; i < 10; i ++) {
+            GetRequest request = new GetRequest(new URL("http://localhost:" + wireMockRule.port() + "/pool/download"));
+            request.setBufferPool(pool);
+            request.download(new File(tempDir.getRoot(), "download" + i));
+            request = new GetRequest(new URL("http://localhost:" + wireMockRule.port() + "/pool/download"));
+            request.setBufferPool(pool);
+            request.read();
+        }
+
+        assertEquals(1, pool.getAllocationCount());
+        assertEquals(19, pool.getReuseCount());
+        assertEquals(8192, pool.getPooledBytes());
+    }
+
+    @Test
+    public void uploadUsesRequestPool() throws Exception {
+        stubFor(post(urlEqualTo("/pool/upload"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withBody("ok")));
+
+        File file = tempDir.newFile("upload");
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(new byte[64 * 1024]);
+        out.close();
+
+        BufferPool pool = new BufferPool(64 * 1024, 16384);
+        PostRequest request = new PostRequest(new URL("http://localhost:" + wireMockRule.port() + "/pool/upload"), RequestBody.create(file));
+        request.setBufferPool(pool);
+        request.setBufferSize(16384);
+        assertEquals("ok", request.read());
+
+        // the upload borrowed the buffer first and the response reused it
+        assertEquals(1, pool.getAllocationCount());
+        assertEquals(1, pool.getReuseCount());
+    }
+}
@@ -0,0 +1,128 @@
+package org.unfoldingword.tools.http;
+
+import com.github.tomakehurst.wiremock.junit.WireMockRule;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.net.URL;
+import java.security.MessageDigest;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.*;
+import static com.github.tomakehurst.wiremock.core.WireMockConfiguration.wireMockConfig;
+import static org.junit.Assert.*;
+
+public class ChecksumUnitTests {
+    private static final String BODY = "the quick brown fox jumps over the lazy dog";
+
+    @Rule
+    public WireMockRule wireMockRule = new WireMockRule(wireMockConfig().dynamicPort().dynamicHttpsPort());
+    @Rule
+    public TemporaryFolder tempDir = new TemporaryFolder();
+
+    private static byte[] digest(String algorithm, String data) throws Exception {
+        return MessageDigest.getInstance(algorithm).digest(data.getBytes("UTF-8"));
+    }
+
+    private static String hex(byte[] bytes) {
+        return String.format("%0" + (bytes.length * 2) + "x", new BigInteger(1, bytes));
+    }
+
+    private void stubBody(String path, String headerName, String headerValue) {
+        stubFor(get(urlEqualTo(path))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withHeader(headerName, headerValue)
+                        .withBody(BODY)));
+    }
+
+    private GetRequest createRequest(String path) throws IOException {
+        return new GetRequest(new URL("http://localhost:" + wireMockRule.port() + path));
+    }
+
+    @Test
+    public void digestsComputedDuringDownload() throws Exception {
+        stubBody("/checksum/compute", "Content-Type", "text/plain");
+
+        GetRequest request = createRequest("/checksum/compute");
+        request.addDigest("SHA-256", hex(digest("SHA-256", BODY)));
+        request.addDigest("md5");
+        request.download(new File(tempDir.getRoot(), "compute.txt"));
+
+        assertEquals(hex(digest("SHA-256", BODY)), request.getDigest("sha-256"));
+        assertEquals(hex(digest("MD5", BODY)), request.getDigest("MD5"));
+    }
+
+    @Test
+    public void mismatchDeletesFile() throws Exception {
+        stubBody("/checksum/mismatch", "Content-Type", "text/plain");
+
+        File dest = new File(tempDir.getRoot(), "mismatch.txt");
+        GetRequest request = createRequest("/checksum/mismatch");
+        request.addDigest("SHA-256", hex(digest("SHA-256", "something else")));
+        try {
+            request.download(dest);
+            fail();
+        } catch (ChecksumException e) {
+            assertEquals("SHA-256", e.getAlgorithm());
+            assertEquals(hex(digest("SHA-256", BODY)), e.getActual());
+        }
+        assertFalse(dest.exists());
+    }
+
+    @Test
+    public void contentMd5HeaderVerified() throws Exception {
+        String md5 = android.util.Base64.encodeToString(digest("MD5", BODY), android.util.Base64.NO_WRAP);
+        stubBody("/checksum/header", "Content-MD5", md5);
+        stubBody("/checksum/corrupt", "Digest", "SHA-256=" + android.util.Base64.encodeToString(digest("SHA-256", "corrupt"), android.util.Base64.NO_WRAP));
+
+        GetRequest request = createRequest("/checksum/header");
+        request.setVerifyDigestHeaders(true);
+        request.download(new File(tempDir.getRoot(), "header.txt"));
+        assertEquals(hex(digest("MD5", BODY)), request.getDigest("MD5"));
+
+        File dest = new File(tempDir.getRoot(), "corrupt.txt");
+        request = createRequest("/checksum/corrupt");
+        request.setVerifyDigestHeaders(true);
+        try {
+            request.download(dest);
+            fail();
+        } catch (ChecksumException e) {
+            assertEquals("SHA-256", e.getAlgorithm());
+        }
+        assertFalse(dest.exists());
+    }
+
+    @Test
+    public void resumedDownloadIncludesPartialFile() throws Exception {
+        int offset = 10;
+        stubFor(get(urlEqualTo("/checksum/resume"))
+                .withHeader("Range", equalTo("bytes=" + offset + "-"))
+                .willReturn(aResponse()
+                        .withStatus(206)
+                        .withHeader("ETag", "\"v1\"")
+                        .withHeader("Content-Range", "bytes " + offset + "-" + (BODY.length() - 1) + "/" + BODY.length())
+                        .withBody(BODY.substring(offset))));
+
+        File dest = new File(tempDir.getRoot(), "resume.txt");
+        FileOutputStream out = new FileOutputStream(new File(dest.getPath() + ".part"));
+        out.write(BODY.substring(0, offset).getBytes("UTF-8"));
+        out.close();
+        out = new FileOutputStream(new File(dest.getPath() + ".part.meta"));
+        out.write("etag=\"v1\"\n".getBytes("UTF-8"));
+        out.close();
+
+        GetRequest request = createRequest("/checksum/resume");
+        request.setResumable(true);
+        request.addDigest("SHA-256", hex(digest("SHA-256", BODY)));
+        request.download(dest);
+
+        assertEquals(206, request.getResponseCode());
+        assertEquals(hex(digest("SHA-256", BODY)), request.getDigest("SHA-256"));
+    }
+}
@@ -0,0 +1,103 @@
+package org.unfoldingword.tools.http;
+
+import com.github.tomakehurst.wiremock.junit.WireMockRule;
+
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.*;
+import static com.github.tomakehurst.wiremock.core.WireMockConfiguration.wireMockConfig;
+import static org.junit.Assert.*;
+
+/**
+ * Checks that the chunked {@link Request#read()} returns exactly what the old byte-at-a-time read loop did.
+ * Throughput is compared by ReadBenchmark in the benchmark module.
+ */
+public class ChunkedReadUnitTests {
+    private static final int BODY_SIZE = 4 * 1024 * 1024;
+
+    @Rule
+    public WireMockRule wireMockRule = new WireMockRule(wireMockConfig().dynamicPort().dynamicHttpsPort());
+
+    /**
+     * The read loop as it was before responses were copied in chunks
+     */
+    private static String legacyRead(URL url) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection)url.openConnection();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        BufferedInputStream in = new BufferedInputStream(connection.getInputStream());
+        try {
+            int n;
+            while ((n = in.read()) != -1) {
+                out.write((byte) n);
+            }
+        } finally {
+            in.close();
+            out.close();
+            connection.disconnect();
+        }
+        return out.toString("UTF-8");
+    }
+
+    private static String createBody() {
+        // vary the content so misplaced chunks would be noticed
+        char[] chars = new char[BODY_SIZE];
+        for(int i = 0; i < chars.length; i ++) {
+            chars[i] = (char)('a' + i % 26);
+        }
+        return new String(chars);
+    }
+
+    @Test
+    public void chunkedReadMatchesByteReads() throws Exception {
+        String body = createBody();
+        stubFor(get(urlEqualTo("/read/large"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withHeader("Content-Type", "text/plain")
+                        .withBody(body)));
+        URL url = new URL("http://localhost:" + wireMockRule.port() + "/read/large");
+
+        String legacy = legacyRead(url);
+        String chunked = new GetRequest(url).read();
+        assertEquals(body, legacy);
+        assertEquals(legacy, chunked);
+    }
+
+    @Test
+    public void readPublishesProgress() throws Exception {
+        String body = createBody();
+        stubFor(get(urlEqualTo("/read/progress"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withHeader("Content-Type", "text/plain")
+                        .withHeader("Content-Length", String.valueOf(BODY_SIZE))
+                        .withBody(body)));
+
+        final long[] updates = new long[2];
+        GetRequest request = new GetRequest(new URL("http://localhost:" + wireMockRule.port() + "/read/progress"));
+        request.setProgressListener(new Request.OnProgressListener() {
+            @Override
+            public void onProgress(long max, long progress) {
+                assertTrue(progress >= updates[1]);
+                updates[0] ++;
+                updates[1] = progress;
+            }
+
+            @Override
+            public void onIndeterminate() {
+
+            }
+        });
+        request.read();
+
+        assertTrue(updates[0] > 1);
+        assertEquals(BODY_SIZE, updates[1]);
+    }
+}
@@ -0,0 +1,202 @@
+package org.unfoldingword.tools.http;
+
+import com.github.tomakehurst.wiremock.junit.WireMockRule;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.net.URL;
+import java.util.Locale;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.*;
+import static com.github.tomakehurst.wiremock.core.WireMockConfiguration.wireMockConfig;
+import static org.junit.Assert.*;
+
+public class CompressionUnitTests {
+    @Rule
+    public WireMockRule wireMockRule = new WireMockRule(wireMockConfig().dynamicPort().dynamicHttpsPort());
+    @Rule
+    public TemporaryFolder tempDir = new TemporaryFolder();
+
+    private static String createBody(int lines) {
+        StringBuilder sb = new StringBuilder();
+        for(int i = 0; i < lines; i ++) {
+            sb.append("{\"slug\":\"gen\",\"chapter\":").append(i).append(",\"title\":\"Genesis\"}\n");
+        }
+        return sb.toString();
+    }
+
+    private static byte[] gzip(String data) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        GZIPOutputStream out = new GZIPOutputStream(bytes);
+        out.write(data.getBytes("UTF-8"));
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    private static byte[] deflate(String data) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DeflaterOutputStream out = new DeflaterOutputStream(bytes);
+        out.write(data.getBytes("UTF-8"));
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    private static String readFile(File f) throws IOException {
+        FileInputStream in = new FileInputStream(f);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            byte[] buffer = new byte[4096];
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                out.write(buffer, 0, n);
+            }
+        } finally {
+            in.close();
+        }
+        return out.toString("UTF-8");
+    }
+
+    @Test
+    public void readGzipGET() throws Exception {
+        String body = createBody(1000);
+        byte[] compressed = gzip(body);
+        stubFor(get(urlEqualTo("/read/gzip"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withHeader("Content-Type", "application/json")
+                        .withHeader("Content-Encoding", "gzip")
+                        .withHeader("Content-Length", String.valueOf(compressed.length))
+                        .withBody(compressed)));
+
+        final long[] lastProgress = new long[2];
+        GetRequest request = new GetRequest(new URL("http://localhost:" + wireMockRule.port() + "/read/gzip"));
+        request.setCompression(true);
+        request.setProgressListener(new Request.OnProgressListener() {
+            @Override
+            public void onProgress(long max, long progress) {
+                lastProgress[0] = max;
+                lastProgress[1] = progress;
+            }
+
+            @Override
+            public void onIndeterminate() {
+
+            }
+        });
+        String response = request.read();
+
+        assertEquals(body, response);
+        assertEquals(compressed.length, request.getBytesReceived());
+        assertEquals(body.getBytes("UTF-8").length, request.getBytesDecoded());
+        assertEquals(lastProgress[0], lastProgress[1]);
+
+        verify(getRequestedFor(urlMatching("/read/gzip")).withHeader("Accept-Encoding", containing("gzip")));
+    }
+
+    @Test
+    public void readDeflateGET() throws Exception {
+        String body = createBody(100);
+        stubFor(get(urlEqualTo("/read/deflate"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withHeader("Content-Type", "application/json")
+                        .withHeader("Content-Encoding", "deflate")
+                        .withBody(deflate(body))));
+
+        GetRequest request = new GetRequest(new URL("http://localhost:" + wireMockRule.port() + "/read/deflate"));
+        request.setCompression(true);
+
+        assertEquals(body, request.read());
+    }
+
+    @Test
+    public void downloadGzipGET() throws Exception {
+        String body = createBody(1000);
+        stubFor(get(urlEqualTo("/download/gzip"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withHeader("Content-Type", "application/json")
+                        .withHeader("Content-Encoding", "gzip")
+                        .withBody(gzip(body))));
+
+        GetRequest request = new GetRequest(new URL("http://localhost:" + wireMockRule.port() + "/download/gzip"));
+        request.setCompression(true);
+        File dest = new File(tempDir.getRoot(), "download.gzip.json");
+        request.download(dest);
+
+        assertEquals(body, readFile(dest));
+    }
+
+    @Test
+    public void encodingMatchedInAnyLocale() throws Exception {
+        String body = createBody(100);
+        stubFor(get(urlEqualTo("/read/upper"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withHeader("Content-Type", "application/json")
+                        .withHeader("Content-Encoding", "GZIP")
+                        .withBody(gzip(body))));
+
+        // the dotted and dotless i differ in Turkish
+        Locale original = Locale.getDefault();
+        Locale.setDefault(new Locale("tr", "TR"));
+        try {
+            GetRequest request = new GetRequest(new URL("http://localhost:" + wireMockRule.port() + "/read/upper"));
+            request.setCompression(true);
+            assertEquals(body, request.read());
+        } finally {
+            Locale.setDefault(original);
+        }
+    }
+
+    @Test
+    public void compressionDisabledByDefault() throws Exception {
+        stubFor(get(urlEqualTo("/read/plain"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withHeader("Content-Type", "text/plain")
+                        .withBody("my response")));
+
+        GetRequest request = new GetRequest(new URL("http://localhost:" + wireMockRule.port() + "/read/plain"));
+
+        assertEquals("my response", request.read());
+        assertEquals(request.getBytesReceived(), request.getBytesDecoded());
+        verify(getRequestedFor(urlMatching("/read/plain")).withoutHeader("Accept-Encoding"));
+    }
+
+    @Test
+    public void compressedTransferSmallerAndIdentical() throws Exception {
+        String body = createBody(50000);
+        stubFor(get(urlEqualTo("/benchmark/plain"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withHeader("Content-Type", "application/json")
+                        .withBody(body)));
+        stubFor(get(urlEqualTo("/benchmark/gzip"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withHeader("Content-Type", "application/json")
+                        .withHeader("Content-Encoding", "gzip")
+                        .withBody(gzip(body))));
+
+        GetRequest plain = new GetRequest(new URL("http://localhost:" + wireMockRule.port() + "/benchmark/plain"));
+        String plainBody = plain.read();
+
+        GetRequest compressed = new GetRequest(new URL("http://localhost:" + wireMockRule.port() + "/benchmark/gzip"));
+        compressed.setCompression(true);
+        String decodedBody = compressed.read();
+
+        assertEquals(body, plainBody);
+        assertEquals(plainBody, decodedBody);
+        assertEquals(plain.getBytesDecoded(), compressed.getBytesDecoded());
+        assertTrue(compressed.getBytesReceived() < plain.getBytesReceived());
+    }
+}
@@ -0,0 +1,161 @@
+package org.unfoldingword.tools.http;
+
+import com.github.tomakehurst.wiremock.junit.WireMockRule;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.URL;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.*;
+import static com.github.tomakehurst.wiremock.core.WireMockConfiguration.wireMockConfig;
+import static org.junit.Assert.*;
+
+public class IncrementalDownloadUnitTests {
+    private static final String LAST_MODIFIED = "Wed, 21 Oct 2015 07:28:00 GMT";
+
+    @Rule
+    public WireMockRule wireMockRule = new WireMockRule(wireMockConfig().dynamicPort().dynamicHttpsPort());
+    @Rule
+    public TemporaryFolder tempDir = new TemporaryFolder();
+
+    private static String readFile(File f) throws IOException {
+        FileInputStream in = new FileInputStream(f);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            byte[] buffer = new byte[4096];
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                out.write(buffer, 0, n);
+            }
+        } finally {
+            in.close();
+        }
+        return out.toString("UTF-8");
+    }
+
+    /**
+     * Serves the body with an ETag and answers 304 when the client already has it
+     */
+    private void stubVersion(String path, String etag, String body) {
+        stubFor(get(urlEqualTo(path))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withHeader("ETag", etag)
+                        .withBody(body)));
+        stubFor(get(urlEqualTo(path))
+                .withHeader("If-None-Match", equalTo(etag))
+                .willReturn(aResponse()
+                        .withStatus(304)
+                        .withHeader("ETag", etag)));
+    }
+
+    private Request download(String path, File dest) throws IOException {
+        GetRequest request = new GetRequest(new URL("http://localhost:" + wireMockRule.port() + path));
+        request.setIncremental(true);
+        request.download(dest);
+        return request;
+    }
+
+    @Test
+    public void unchangedFileSkipped() throws Exception {
+        stubVersion("/incremental/file", "\"v1\"", "version one");
+        File dest = new File(tempDir.getRoot(), "file.txt");
+
+        assertFalse(download("/incremental/file", dest).isUnchanged());
+        assertTrue(new File(dest.getPath() + ".meta").exists());
+
+        Request request = download("/incremental/file", dest);
+        assertTrue(request.isUnchanged());
+        assertEquals(304, request.getResponseCode());
+        assertEquals("version one", readFile(dest));
+        verify(1, getRequestedFor(urlMatching("/incremental/file")).withHeader("If-None-Match", equalTo("\"v1\"")));
+    }
+
+    @Test
+    public void changedFileDownloaded() throws Exception {
+        stubVersion("/incremental/changed", "\"v1\"", "version one");
+        File dest = new File(tempDir.getRoot(), "changed.txt");
+        download("/incremental/changed", dest);
+
+        stubVersion("/incremental/changed", "\"v2\"", "version two");
+        assertFalse(download("/incremental/changed", dest).isUnchanged());
+        assertEquals("version two", readFile(dest));
+
+        assertTrue(download("/incremental/changed", dest).isUnchanged());
+        verify(1, getRequestedFor(urlMatching("/incremental/changed")).withHeader("If-None-Match", equalTo("\"v2\"")));
+    }
+
+    @Test
+    public void lastModifiedUsed() throws Exception {
+        stubFor(get(urlEqualTo("/incremental/date"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withHeader("Last-Modified", LAST_MODIFIED)
+                        .withBody("dated")));
+        stubFor(get(urlEqualTo("/incremental/date"))
+                .withHeader("If-Modified-Since", equalTo(LAST_MODIFIED))
+                .willReturn(aResponse()
+                        .withStatus(304)));
+        File dest = new File(tempDir.getRoot(), "date.txt");
+
+        download("/incremental/date", dest);
+        assertTrue(download("/incremental/date", dest).isUnchanged());
+        assertEquals("dated", readFile(dest));
+    }
+
+    @Test
+    public void locallyModifiedFileDownloaded() throws Exception {
+        stubVersion("/incremental/local", "\"v1\"", "version one");
+        File dest = new File(tempDir.getRoot(), "local.txt");
+        download("/incremental/local", dest);
+
+        FileOutputStream out = new FileOutputStream(dest, true);
+        out.write(" and more".getBytes("UTF-8"));
+        out.close();
+
+        assertFalse(download("/incremental/local", dest).isUnchanged());
+        assertEquals("version one", readFile(dest));
+    }
+
+    @Test
+    public void resumableUnchangedFileSkipped() throws Exception {
+        stubVersion("/incremental/resumable", "\"v1\"", "version one");
+        File dest = new File(tempDir.getRoot(), "resumable.txt");
+
+        GetRequest request = new GetRequest(new URL("http://localhost:" + wireMockRule.port() + "/incremental/resumable"));
+        request.setIncremental(true);
+        request.setResumable(true);
+        request.download(dest);
+        request.download(dest);
+
+        assertTrue(request.isUnchanged());
+        assertEquals("version one", readFile(dest));
+        assertFalse(new File(dest.getPath() + ".part").exists());
+    }
+
+    @Test
+    public void errorKeepsExistingFile() throws Exception {
+        stubVersion("/incremental/error", "\"v1\"", "version one");
+        File dest = new File(tempDir.getRoot(), "error.txt");
+        download("/incremental/error", dest);
+
+        stubFor(get(urlEqualTo("/incremental/error"))
+                .willReturn(aResponse()
+                        .withStatus(500)
+                        .withBody("failed")));
+        try {
+            download("/incremental/error", dest);
+            fail();
+        } catch (IOException e) {
+            assertNotNull(e);
+        }
+        assertEquals("version one", readFile(dest));
+    }
+}
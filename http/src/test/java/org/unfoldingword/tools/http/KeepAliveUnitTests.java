@@ -0,0 +1,179 @@
+package org.unfoldingword.tools.http;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class KeepAliveUnitTests {
+    private CountingServer server;
+
+    /**
+     * A minimal keep-alive http server that counts the connections it accepts
+     */
+    private static class CountingServer implements Runnable {
+        private final ServerSocket socket;
+        private final AtomicInteger connections = new AtomicInteger();
+
+        CountingServer() throws IOException {
+            socket = new ServerSocket(0);
+            Thread thread = new Thread(this);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        int getPort() {
+            return socket.getLocalPort();
+        }
+
+        int getConnectionCount() {
+            return connections.get();
+        }
+
+        @Override
+        public void run() {
+            while(!socket.isClosed()) {
+                try {
+                    final Socket client = socket.accept();
+                    connections.incrementAndGet();
+                    Thread thread = new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            serve(client);
+                        }
+                    });
+                    thread.setDaemon(true);
+                    thread.start();
+                } catch (IOException e) {
+                    return;
+                }
+            }
+        }
+
+        private void serve(Socket client) {
+            try {
+                BufferedReader in = new BufferedReader(new InputStreamReader(client.getInputStream(), "UTF-8"));
+                OutputStream out = client.getOutputStream();
+                String line;
+                while((line = in.readLine()) != null) {
+                    String path = line.split(" ")[1];
+                    boolean close = false;
+                    while((line = in.readLine()) != null && !line.isEmpty()) {
+                        if(line.toLowerCase().equals("connection: close")) close = true;
+                    }
+                    int status = path.startsWith("/missing") ? 404 : 200;
+                    StringBuilder body = new StringBuilder();
+                    int size = path.startsWith("/large") ? 20000 : 10;
+                    for(int i = 0; i < size; i ++) body.append('x');
+                    byte[] data = body.toString().getBytes("UTF-8");
+                    out.write(("HTTP/1.1 " + status + " Status\r\n"
+                            + "Content-Type: text/plain\r\n"
+                            + "Content-Length: " + data.length + "\r\n"
+                            + "\r\n").getBytes("UTF-8"));
+                    out.write(data);
+                    out.flush();
+                    if(close) break;
+                }
+            } catch (IOException e) {
+                // the client went away
+            } finally {
+                try {
+                    client.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        void stop() throws IOException {
+            socket.close();
+        }
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        server = new CountingServer();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        server.stop();
+    }
+
+    private GetRequest createRequest(String path) throws IOException {
+        return new GetRequest(new URL("http://localhost:" + server.getPort() + path));
+    }
+
+    @Test
+    public void sequentialReadsReuseConnection() throws Exception {
+        for(int i = 0; i < 20; i ++) {
+            assertEquals(10, createRequest("/ok").read().length());
+        }
+        assertEquals(1, server.getConnectionCount());
+    }
+
+    @Test
+    public void errorResponsesDrained() throws Exception {
+        for(int i = 0; i < 10; i ++) {
+            try {
+                createRequest("/missing").read();
+                fail();
+            } catch (IOException e) {
+                assertNotNull(e);
+            }
+            createRequest("/large").read();
+        }
+        assertEquals(1, server.getConnectionCount());
+    }
+
+    @Test
+    public void closedResponseBodyReleased() throws Exception {
+        for(int i = 0; i < 10; i ++) {
+            ResponseBody body = createRequest("/large").openResponse();
+            // leave most of the body unread
+            assertTrue(body.getInputStream().read() != -1);
+            body.close();
+        }
+        assertEquals(1, server.getConnectionCount());
+    }
+
+    @Test
+    public void keepAliveDisabled() throws Exception {
+        KeepAlivePolicy original = KeepAlivePolicy.getDefault();
+        KeepAlivePolicy policy = new KeepAlivePolicy();
+        policy.setEnabled(false);
+        KeepAlivePolicy.setDefault(policy);
+        try {
+            for(int i = 0; i < 5; i ++) {
+                assertEquals(10, createRequest("/ok").read().length());
+            }
+        } finally {
+            KeepAlivePolicy.setDefault(original);
+        }
+        assertEquals(5, server.getConnectionCount());
+    }
+
+    @Test
+    public void defaultPolicyLeavesSystemPropertiesAlone() throws Exception {
+        String maxConnections = System.getProperty("http.maxConnections");
+        KeepAlivePolicy original = KeepAlivePolicy.getDefault();
+        KeepAlivePolicy policy = new KeepAlivePolicy();
+        policy.setMaxIdleConnections(maxConnections == null ? 42 : Integer.parseInt(maxConnections) + 1);
+        KeepAlivePolicy.setDefault(policy);
+        try {
+            assertEquals(maxConnections, System.getProperty("http.maxConnections"));
+        } finally {
+            KeepAlivePolicy.setDefault(original);
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package org.unfoldingword.tools.http;
+
+import com.github.tomakehurst.wiremock.junit.WireMockRule;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.*;
+import static com.github.tomakehurst.wiremock.core.WireMockConfiguration.wireMockConfig;
+import static org.junit.Assert.*;
+
+public class MultipartUnitTests {
+    @Rule
+    public WireMockRule wireMockRule = new WireMockRule(wireMockConfig().dynamicPort().dynamicHttpsPort());
+    @Rule
+    public TemporaryFolder tempDir = new TemporaryFolder();
+
+    private File createFile(String name, int size) throws Exception {
+        File file = tempDir.newFile(name);
+        FileOutputStream out = new FileOutputStream(file);
+        byte[] data = new byte[size];
+        for(int i = 0; i < size; i ++) {
+            data[i] = (byte)('a' + i % 26);
+        }
+        out.write(data);
+        out.close();
+        return file;
+    }
+
+    @Test
+    public void bodyLayout() throws Exception {
+        MultipartBody body = new MultipartBody("boundary");
+        body.addField("title", "caf\u00e9");
+        body.addStream("notes", "my \"notes\".txt", "text/plain", new ByteArrayInputStream("some notes".getBytes("UTF-8")), 10);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        body.writeTo(out);
+        String expected = "--boundary\r\n"
+                + "Content-Disposition: form-data; name=\"title\"\r\n"
+                + "\r\n"
+                + "caf\u00e9\r\n"
+                + "--boundary\r\n"
+                + "Content-Disposition: form-data; name=\"notes\"; filename=\"my %22notes%22.txt\"\r\n"
+                + "Content-Type: text/plain\r\n"
+                + "\r\n"
+                + "some notes\r\n"
+                + "--boundary--\r\n";
+        assertEquals(expected, out.toString("UTF-8"));
+        assertEquals(expected.getBytes("UTF-8").length, body.contentLength());
+        assertFalse(body.isRepeatable());
+    }
+
+    @Test
+    public void uploadFilesWithFixedLength() throws Exception {
+        stubFor(post(urlEqualTo("/multipart/upload"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withBody("ok")));
+
+        File first = createFile("first.txt", 100 * 1024);
+        File second = createFile("second.bin", 10);
+        final List<String> parts = new ArrayList<>();
+        final long[] total = new long[2];
+
+        MultipartRequest request = new MultipartRequest(new URL("http://localhost:" + wireMockRule.port() + "/multipart/upload"));
+        request.addField("title", "my files");
+        request.addFile("first", first, "text/plain");
+        request.addFile("second", second, null);
+        request.setPartProgressListener(new MultipartBody.OnPartProgressListener() {
+            @Override
+            public void onPartProgress(int index, String name, long max, long progress) {
+                parts.add(index + ":" + name + ":" + progress + "/" + max);
+            }
+        });
+        request.setUploadProgressListener(new Request.OnProgressListener() {
+            @Override
+            public void onProgress(long max, long progress) {
+                total[0] = max;
+                total[1] = progress;
+            }
+
+            @Override
+            public void onIndeterminate() {
+
+            }
+        });
+        assertEquals("ok", request.read());
+
+        long length = request.getBody().contentLength();
+        assertEquals(length, total[0]);
+        assertEquals(length, total[1]);
+        assertEquals("0:title:8/8", parts.get(0));
+        assertEquals("1:first:65536/102400", parts.get(1));
+        assertEquals("1:first:102400/102400", parts.get(2));
+        assertEquals("2:second:10/10", parts.get(3));
+        verify(postRequestedFor(urlMatching("/multipart/upload"))
+                .withHeader("Content-Type", equalTo(request.getBody().getContentType()))
+                .withHeader("Content-Length", equalTo(String.valueOf(length)))
+                .withRequestBody(containing("name=\"second\"; filename=\"second.bin\"\r\nContent-Type: application/octet-stream")));
+    }
+
+    @Test
+    public void streamOfUnknownLengthChunked() throws Exception {
+        stubFor(post(urlEqualTo("/multipart/stream"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withBody("ok")));
+
+        MultipartRequest request = new MultipartRequest(new URL("http://localhost:" + wireMockRule.port() + "/multipart/stream"));
+        request.addField("title", "streamed");
+        request.addStream("data", "data.txt", "text/plain", new ByteArrayInputStream("streamed data".getBytes("UTF-8")), -1);
+        assertEquals(-1, request.getBody().contentLength());
+        assertEquals("ok", request.read());
+
+        verify(postRequestedFor(urlMatching("/multipart/stream"))
+                .withHeader("Transfer-Encoding", equalTo("chunked"))
+                .withRequestBody(containing("streamed data\r\n--" + request.getBody().getBoundary() + "--")));
+    }
+}
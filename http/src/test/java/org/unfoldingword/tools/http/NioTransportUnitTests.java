@@ -0,0 +1,313 @@
+package org.unfoldingword.tools.http;
+
+import com.github.tomakehurst.wiremock.junit.WireMockRule;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.*;
+import static com.github.tomakehurst.wiremock.core.WireMockConfiguration.wireMockConfig;
+import static org.junit.Assert.*;
+
+public class NioTransportUnitTests {
+    @Rule
+    public WireMockRule wireMockRule = new WireMockRule(wireMockConfig().dynamicPort().dynamicHttpsPort());
+    @Rule
+    public TemporaryFolder tempDir = new TemporaryFolder();
+
+    private NioTransport transport;
+
+    @Before
+    public void setUp() throws IOException {
+        transport = new NioTransport();
+    }
+
+    @After
+    public void tearDown() {
+        transport.shutdown();
+    }
+
+    private URL url(String path) throws IOException {
+        return new URL("http://localhost:" + wireMockRule.port() + path);
+    }
+
+    @Test
+    public void sequentialRequestsReuseSocket() throws Exception {
+        stubFor(get(urlEqualTo("/nio/read"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withHeader("X-Test", "yes")
+                        .withBody("my response")));
+
+        for(int i = 0; i < 10; i ++) {
+            GetRequest request = new GetRequest(url("/nio/read"));
+            request.setTransport(transport);
+            assertEquals("my response", request.read());
+            assertEquals(200, request.getResponseCode());
+            assertEquals("yes", request.getResponseHeader("X-Test"));
+        }
+        assertEquals(1, transport.getSocketCount());
+        assertEquals(1, transport.getIdleCount());
+    }
+
+    @Test
+    public void bodiesSent() throws Exception {
+        stubFor(post(urlEqualTo("/nio/post"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withBody("ok")));
+
+        PostRequest fixed = new PostRequest(url("/nio/post"), "some data");
+        fixed.setTransport(transport);
+        assertEquals("ok", fixed.read());
+
+        PostRequest chunked = new PostRequest(url("/nio/post"), RequestBody.create(new ByteArrayInputStream("streamed data".getBytes("UTF-8")), -1));
+        chunked.setTransport(transport);
+        assertEquals("ok", chunked.read());
+
+        verify(postRequestedFor(urlMatching("/nio/post"))
+                .withRequestBody(equalTo("some data"))
+                .withHeader("Content-Length", equalTo("9")));
+        verify(postRequestedFor(urlMatching("/nio/post"))
+                .withRequestBody(equalTo("streamed data"))
+                .withHeader("Transfer-Encoding", equalTo("chunked")));
+    }
+
+    @Test
+    public void largeChunkedBodySent() throws Exception {
+        stubFor(post(urlEqualTo("/nio/chunked"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withBody("ok")));
+
+        // vary the content so misplaced chunks would be noticed
+        StringBuilder sb = new StringBuilder();
+        for(int i = 0; i < 300 * 1024; i ++) {
+            sb.append((char)('a' + i % 26));
+        }
+        String data = sb.toString();
+        PostRequest request = new PostRequest(url("/nio/chunked"), RequestBody.create(new ByteArrayInputStream(data.getBytes("UTF-8")), -1));
+        request.setTransport(transport);
+        assertEquals("ok", request.read());
+
+        verify(postRequestedFor(urlMatching("/nio/chunked"))
+                .withRequestBody(equalTo(data))
+                .withHeader("Transfer-Encoding", equalTo("chunked")));
+    }
+
+    @Test
+    public void largeBodyWrittenAtOnce() throws Exception {
+        stubFor(post(urlEqualTo("/nio/upload"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withBody("ok")));
+
+        // a single write much larger than the outbound buffers
+        final byte[] data = new byte[16 * 1024 * 1024];
+        RequestBody body = new RequestBody() {
+            @Override
+            public long contentLength() {
+                return data.length;
+            }
+
+            @Override
+            public void writeTo(OutputStream out) throws IOException {
+                out.write(data);
+            }
+        };
+        PostRequest request = new PostRequest(url("/nio/upload"), body);
+        request.setTransport(transport);
+        request.setTimeout(10000);
+        assertEquals("ok", request.read());
+
+        verify(postRequestedFor(urlMatching("/nio/upload"))
+                .withHeader("Content-Length", equalTo(String.valueOf(data.length))));
+    }
+
+    @Test
+    public void errorResponse() throws Exception {
+        stubFor(get(urlEqualTo("/nio/missing"))
+                .willReturn(aResponse()
+                        .withStatus(404)
+                        .withBody("not here")));
+
+        GetRequest request = new GetRequest(url("/nio/missing"));
+        request.setTransport(transport);
+        try {
+            request.read();
+            fail();
+        } catch (IOException e) {
+            assertNotNull(e);
+        }
+        assertEquals(404, request.getResponseCode());
+        assertEquals(1, transport.getIdleCount());
+    }
+
+    @Test
+    public void redirectFollowed() throws Exception {
+        stubFor(get(urlEqualTo("/nio/old"))
+                .willReturn(aResponse()
+                        .withStatus(301)
+                        .withHeader("Location", "/nio/new")
+                        .withBody("moved")));
+        stubFor(get(urlEqualTo("/nio/new"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withBody("new location")));
+
+        GetRequest request = new GetRequest(url("/nio/old"));
+        request.setTransport(transport);
+        assertEquals("new location", request.read());
+        assertEquals(1, transport.getSocketCount());
+    }
+
+    @Test
+    public void redirectToOtherHostDropsCredentials() throws Exception {
+        stubFor(get(urlEqualTo("/nio/away"))
+                .willReturn(aResponse()
+                        .withStatus(302)
+                        .withHeader("Location", "http://127.0.0.1:" + wireMockRule.port() + "/nio/elsewhere")
+                        .withBody("moved")));
+        stubFor(get(urlEqualTo("/nio/elsewhere"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withBody("other host")));
+
+        GetRequest request = new GetRequest(url("/nio/away"));
+        request.setTransport(transport);
+        request.setAuth("secret");
+        request.setHeader("Cookie", "session=secret");
+        assertEquals("other host", request.read());
+
+        verify(getRequestedFor(urlEqualTo("/nio/away")).withHeader("Authorization", containing("secret")));
+        verify(getRequestedFor(urlEqualTo("/nio/elsewhere")).withoutHeader("Authorization").withoutHeader("Cookie"));
+    }
+
+    @Test
+    public void largeDownload() throws Exception {
+        byte[] data = new byte[1024 * 1024];
+        for(int i = 0; i < data.length; i ++) {
+            data[i] = (byte)i;
+        }
+        stubFor(get(urlEqualTo("/nio/large"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withBody(data)));
+
+        File file = new File(tempDir.getRoot(), "large.bin");
+        GetRequest request = new GetRequest(url("/nio/large"));
+        request.setTransport(transport);
+        request.download(file);
+        assertEquals(data.length, file.length());
+    }
+
+    @Test
+    public void concurrentRequestsShareSelector() throws Exception {
+        stubFor(get(urlEqualTo("/nio/slow"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withFixedDelay(500)
+                        .withBody("slow")));
+
+        RequestExecutor executor = new RequestExecutor(8, 8);
+        try {
+            long start = System.currentTimeMillis();
+            List<Future<String>> futures = new ArrayList<>();
+            for(int i = 0; i < 8; i ++) {
+                GetRequest request = new GetRequest(url("/nio/slow"));
+                request.setTransport(transport);
+                futures.add(executor.read(request, null));
+            }
+            for(Future<String> future : futures) {
+                assertEquals("slow", future.get());
+            }
+            // the requests overlap even though a single thread performs their I/O
+            assertTrue(System.currentTimeMillis() - start < 8 * 500 * 3 / 4);
+            assertTrue(transport.getSocketCount() > 1);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void readTimeout() throws Exception {
+        stubFor(get(urlEqualTo("/nio/timeout"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withFixedDelay(1000)
+                        .withBody("late")));
+
+        GetRequest request = new GetRequest(url("/nio/timeout"));
+        request.setTransport(transport);
+        request.setTimeout(200);
+        try {
+            request.read();
+            fail();
+        } catch (SocketTimeoutException e) {
+            assertNotNull(e);
+        }
+    }
+
+    @Test
+    public void failingChannelDoesNotStopSelector() throws Exception {
+        stubFor(get(urlEqualTo("/nio/failing"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withBody("my response")));
+
+        // breaks the first read on the selector thread
+        final AtomicBoolean broken = new AtomicBoolean(true);
+        BufferPool previous = BufferPool.getDefault();
+        BufferPool.setDefault(new BufferPool(512 * 1024, 8192) {
+            @Override
+            public byte[] acquire(int minSize) {
+                if(Thread.currentThread().getName().startsWith("nio-transport") && broken.getAndSet(false)) {
+                    throw new IllegalStateException("broken");
+                }
+                return super.acquire(minSize);
+            }
+        });
+        NioTransport failing;
+        try {
+            failing = new NioTransport();
+        } finally {
+            BufferPool.setDefault(previous);
+        }
+
+        try {
+            GetRequest request = new GetRequest(url("/nio/failing"));
+            request.setTransport(failing);
+            request.setTimeout(2000);
+            try {
+                request.read();
+                fail();
+            } catch (SocketTimeoutException e) {
+                fail();
+            } catch (IOException e) {
+                assertNotNull(e);
+            }
+
+            // the selector thread is still serving other channels
+            request = new GetRequest(url("/nio/failing"));
+            request.setTransport(failing);
+            request.setTimeout(2000);
+            assertEquals("my response", request.read());
+        } finally {
+            failing.shutdown();
+        }
+    }
+}
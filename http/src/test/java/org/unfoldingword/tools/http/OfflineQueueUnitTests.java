@@ -0,0 +1,186 @@
+package org.unfoldingword.tools.http;
+
+import com.github.tomakehurst.wiremock.junit.WireMockRule;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.*;
+import static com.github.tomakehurst.wiremock.core.WireMockConfiguration.wireMockConfig;
+import static org.junit.Assert.*;
+
+public class OfflineQueueUnitTests {
+    @Rule
+    public WireMockRule wireMockRule = new WireMockRule(wireMockConfig().dynamicPort().dynamicHttpsPort());
+    @Rule
+    public TemporaryFolder tempDir = new TemporaryFolder();
+
+    private URL url(String path) throws IOException {
+        return new URL("http://localhost:" + wireMockRule.port() + path);
+    }
+
+    private static String repeat(String value, int count) {
+        StringBuilder builder = new StringBuilder();
+        for(int i = 0; i < count; i ++) builder.append(value);
+        return builder.toString();
+    }
+
+    @Test
+    public void requestsSurviveRestart() throws Exception {
+        stubFor(any(urlMatching("/queue/.*"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withBody("ok")));
+
+        File dir = tempDir.newFolder();
+        String large = repeat("large body ", 1000);
+        Map<String, String> headers = new HashMap<>();
+        headers.put("Authorization", "Bearer token");
+        headers.put("Content-Type", "text/plain");
+
+        OfflineQueue queue = new OfflineQueue(dir);
+        queue.add("POST", url("/queue/post"), headers, RequestBody.create("small body"));
+        queue.add("PUT", url("/queue/put"), headers, RequestBody.create(large));
+        queue.add("DELETE", url("/queue/delete"), null, (RequestBody) null);
+        queue.close();
+
+        // a new process opens the queue
+        queue = new OfflineQueue(dir);
+        assertEquals(3, queue.size());
+        assertEquals(3, queue.replay(2));
+        assertEquals(0, queue.size());
+        queue.close();
+
+        verify(postRequestedFor(urlMatching("/queue/post"))
+                .withRequestBody(equalTo("small body"))
+                .withHeader("Authorization", equalTo("Bearer token")));
+        verify(putRequestedFor(urlMatching("/queue/put")).withRequestBody(equalTo(large)));
+        verify(deleteRequestedFor(urlMatching("/queue/delete")));
+        assertEquals(0, new File(dir, "bodies").list().length);
+        assertEquals(0, new OfflineQueue(dir).size());
+    }
+
+    @Test
+    public void unavailableServerKeepsRequests() throws Exception {
+        stubFor(post(urlEqualTo("/queue/unavailable"))
+                .willReturn(aResponse()
+                        .withStatus(503)));
+
+        OfflineQueue queue = new OfflineQueue(tempDir.newFolder());
+        queue.add("POST", url("/queue/unavailable"), null, RequestBody.create("first"));
+        queue.add("POST", url("/queue/unavailable"), null, RequestBody.create("second"));
+
+        assertEquals(0, queue.replay(1));
+        assertEquals(2, queue.size());
+        // replay stops at the first failure
+        verify(1, postRequestedFor(urlMatching("/queue/unavailable")));
+
+        stubFor(post(urlEqualTo("/queue/unavailable"))
+                .willReturn(aResponse()
+                        .withStatus(201)));
+        assertEquals(2, queue.replay(1));
+        assertEquals(0, queue.size());
+    }
+
+    @Test
+    public void rejectedRequestRemoved() throws Exception {
+        stubFor(post(urlEqualTo("/queue/rejected"))
+                .willReturn(aResponse()
+                        .withStatus(400)));
+        stubFor(put(urlEqualTo("/queue/accepted"))
+                .willReturn(aResponse()
+                        .withStatus(200)));
+
+        final List<String> events = Collections.synchronizedList(new ArrayList<String>());
+        OfflineQueue queue = new OfflineQueue(tempDir.newFolder());
+        queue.setReplayListener(new OfflineQueue.OnReplayListener() {
+            @Override
+            public void onSent(OfflineQueue.Entry entry, int responseCode) {
+                events.add("sent " + entry.getMethod() + " " + responseCode);
+            }
+
+            @Override
+            public void onFailed(OfflineQueue.Entry entry, int responseCode, IOException e) {
+                events.add("failed " + entry.getMethod() + " " + responseCode);
+            }
+        });
+        queue.add("POST", url("/queue/rejected"), null, RequestBody.create("bad"));
+        queue.add("PUT", url("/queue/accepted"), null, RequestBody.create("good"));
+
+        assertEquals(1, queue.replay(1));
+        assertEquals(0, queue.size());
+        assertEquals("failed POST 400", events.get(0));
+        assertEquals("sent PUT 200", events.get(1));
+    }
+
+    @Test
+    public void referencedBodyFileSent() throws Exception {
+        stubFor(put(urlEqualTo("/queue/file"))
+                .willReturn(aResponse()
+                        .withStatus(200)));
+
+        File body = tempDir.newFile("body.txt");
+        FileOutputStream out = new FileOutputStream(body);
+        out.write("my file body".getBytes("UTF-8"));
+        out.close();
+
+        OfflineQueue queue = new OfflineQueue(tempDir.newFolder());
+        queue.add("PUT", url("/queue/file"), null, body);
+        assertEquals(1, queue.replay(1));
+
+        verify(putRequestedFor(urlMatching("/queue/file")).withRequestBody(equalTo("my file body")));
+    }
+
+    @Test
+    public void tornRecordDiscarded() throws Exception {
+        File dir = tempDir.newFolder();
+        OfflineQueue queue = new OfflineQueue(dir);
+        queue.add("POST", url("/queue/torn"), null, RequestBody.create("complete"));
+        queue.close();
+
+        // the process died while writing the next record
+        FileOutputStream out = new FileOutputStream(new File(dir, "queue.log"), true);
+        out.write(new byte[]{0, 0, 0, 40, 1, 0, 0});
+        out.close();
+
+        queue = new OfflineQueue(dir);
+        assertEquals(1, queue.size());
+        long id = queue.add("POST", url("/queue/torn"), null, RequestBody.create("after restart"));
+        queue.close();
+
+        queue = new OfflineQueue(dir);
+        assertEquals(2, queue.size());
+        assertEquals(Long.valueOf(id), queue.getPendingIds().get(1));
+    }
+
+    @Test
+    public void logCompacted() throws Exception {
+        stubFor(post(urlEqualTo("/queue/compact"))
+                .willReturn(aResponse()
+                        .withStatus(200)));
+
+        File dir = tempDir.newFolder();
+        File log = new File(dir, "queue.log");
+        OfflineQueue queue = new OfflineQueue(dir);
+        for(int i = 0; i < 100; i ++) {
+            queue.add("POST", url("/queue/compact"), null, RequestBody.create("entry " + i));
+        }
+        long fullLength = log.length();
+
+        assertEquals(100, queue.replay(4));
+        assertTrue(log.length() < fullLength / 2);
+        queue.close();
+        assertEquals(0, new OfflineQueue(dir).size());
+    }
+}
@@ -0,0 +1,163 @@
+package org.unfoldingword.tools.http;
+
+import com.github.tomakehurst.wiremock.junit.WireMockRule;
+
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.net.URL;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.*;
+import static com.github.tomakehurst.wiremock.core.WireMockConfiguration.wireMockConfig;
+import static org.junit.Assert.*;
+
+public class ProgressDispatcherUnitTests {
+    @Rule
+    public WireMockRule wireMockRule = new WireMockRule(wireMockConfig().dynamicPort().dynamicHttpsPort());
+
+    /**
+     * Records the updates it receives
+     */
+    private static class RecordingListener implements Request.OnRateProgressListener {
+        private final long delayMillis;
+        volatile int updates = 0;
+        volatile long max = 0;
+        volatile long progress = 0;
+        volatile long bytesPerSecond = 0;
+        volatile long etaMillis = 0;
+
+        RecordingListener(long delayMillis) {
+            this.delayMillis = delayMillis;
+        }
+
+        @Override
+        public void onProgress(long max, long progress, long bytesPerSecond, long etaMillis) {
+            assertTrue(progress >= this.progress);
+            this.updates ++;
+            this.max = max;
+            this.progress = progress;
+            this.bytesPerSecond = bytesPerSecond;
+            this.etaMillis = etaMillis;
+            if(delayMillis > 0) {
+                try {
+                    Thread.sleep(delayMillis);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+
+        @Override
+        public void onProgress(long max, long progress) {
+            fail();
+        }
+
+        @Override
+        public void onIndeterminate() {
+
+        }
+    }
+
+    @Test
+    public void updatesThrottledByBytes() throws Exception {
+        RecordingListener listener = new RecordingListener(0);
+        ProgressDispatcher dispatcher = new ProgressDispatcher(listener);
+        dispatcher.setInterval(100, 0);
+        dispatcher.start(0);
+        for(long progress = 0; progress <= 1000; progress += 10) {
+            dispatcher.update(1000, progress);
+        }
+
+        assertEquals(10, listener.updates);
+        assertEquals(1000, listener.progress);
+    }
+
+    @Test
+    public void updatesThrottledByTime() throws Exception {
+        RecordingListener listener = new RecordingListener(0);
+        ProgressDispatcher dispatcher = new ProgressDispatcher(listener);
+        dispatcher.setInterval(0, 60000);
+        dispatcher.start(0);
+        for(long progress = 10; progress <= 1000; progress += 10) {
+            dispatcher.update(1000, progress);
+        }
+        // only the first update
+        assertEquals(1, listener.updates);
+        assertEquals(10, listener.progress);
+
+        dispatcher.publish(1000, 1000);
+        assertEquals(2, listener.updates);
+        assertEquals(1000, listener.progress);
+    }
+
+    @Test
+    public void rateAndTimeRemaining() throws Exception {
+        RecordingListener listener = new RecordingListener(0);
+        ProgressDispatcher dispatcher = new ProgressDispatcher(listener);
+        dispatcher.start(0);
+        Thread.sleep(200);
+        dispatcher.publish(2000, 1000);
+
+        // 1000 bytes in a little over 200ms
+        assertTrue(listener.bytesPerSecond > 2000);
+        assertTrue(listener.bytesPerSecond <= 5000);
+        assertTrue(listener.etaMillis >= 200);
+        assertTrue(listener.etaMillis < 500);
+
+        dispatcher.publish(-1, 1500);
+        assertEquals(-1, listener.max);
+        assertEquals(-1, listener.etaMillis);
+    }
+
+    @Test
+    public void slowListenerDoesNotBlockTransfer() throws Exception {
+        RecordingListener listener = new RecordingListener(100);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        ProgressDispatcher dispatcher = new ProgressDispatcher(listener);
+        dispatcher.setInterval(0, 0);
+        dispatcher.setExecutor(executor);
+        dispatcher.start(0);
+
+        long start = System.currentTimeMillis();
+        for(long progress = 1; progress <= 1000; progress ++) {
+            dispatcher.update(1000, progress);
+        }
+        dispatcher.publish(1000, 1000);
+        assertTrue(System.currentTimeMillis() - start < 1000);
+
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+        // updates queued behind the slow listener were coalesced
+        assertTrue(listener.updates < 10);
+        assertEquals(1000, listener.progress);
+    }
+
+    @Test
+    public void readPublishesRate() throws Exception {
+        byte[] data = new byte[512 * 1024];
+        stubFor(get(urlEqualTo("/progress/rate"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withHeader("Content-Length", String.valueOf(data.length))
+                        .withBody(data)));
+
+        RecordingListener listener = new RecordingListener(0);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        GetRequest request = new GetRequest(new URL("http://localhost:" + wireMockRule.port() + "/progress/rate"));
+        request.setProgressListener(listener);
+        request.setProgressInterval(64 * 1024, 0);
+        request.setProgressExecutor(executor);
+        request.read();
+
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+        assertTrue(listener.updates >= 1);
+        assertEquals(data.length, listener.max);
+        assertEquals(data.length, listener.progress);
+        assertTrue(listener.bytesPerSecond > 0);
+        assertEquals(0, listener.etaMillis);
+    }
+}
@@ -0,0 +1,135 @@
+package org.unfoldingword.tools.http;
+
+import com.github.tomakehurst.wiremock.junit.WireMockRule;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.List;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.*;
+import static com.github.tomakehurst.wiremock.core.WireMockConfiguration.wireMockConfig;
+import static org.junit.Assert.*;
+
+public class RequestBatchUnitTests {
+    @Rule
+    public WireMockRule wireMockRule = new WireMockRule(wireMockConfig().dynamicPort().dynamicHttpsPort());
+
+    private RequestExecutor executor;
+
+    @After
+    public void tearDown() {
+        if(executor != null) executor.shutdown();
+    }
+
+    private void stubResponse(String path, int status, int delay) {
+        stubFor(get(urlEqualTo(path))
+                .willReturn(aResponse()
+                        .withStatus(status)
+                        .withFixedDelay(delay)
+                        .withBody(path)));
+    }
+
+    private GetRequest createRequest(String path) throws IOException {
+        return new GetRequest(new URL("http://localhost:" + wireMockRule.port() + path));
+    }
+
+    @Test
+    public void requestsRunInParallel() throws Exception {
+        stubResponse("/batch/item", 200, 200);
+        executor = new RequestExecutor(5, 5);
+
+        RequestBatch<String> batch = RequestBatch.read(executor);
+        for(int i = 0; i < 10; i ++) {
+            batch.add(createRequest("/batch/item"));
+        }
+        List<RequestBatch.Result<String>> results = batch.awaitAll();
+
+        assertEquals(10, results.size());
+        assertEquals(10, batch.getSuccessCount());
+        assertEquals("/batch/item", results.get(0).getValue());
+        assertTrue(batch.getElapsedMillis() < 1500);
+        assertTrue(batch.getTotalRequestMillis() >= 2000);
+    }
+
+    @Test
+    public void resultsReturnedInCompletionOrder() throws Exception {
+        stubResponse("/batch/slow", 200, 600);
+        stubResponse("/batch/fast", 200, 0);
+        executor = new RequestExecutor(4, 4);
+
+        RequestBatch<String> batch = RequestBatch.read(executor);
+        batch.add(createRequest("/batch/slow"));
+        batch.add(createRequest("/batch/fast"));
+        batch.start();
+
+        RequestBatch.Result<String> first = batch.next();
+        assertEquals("/batch/fast", first.getValue());
+        assertTrue(batch.getElapsedMillis() < 600);
+        assertEquals("/batch/slow", batch.next().getValue());
+        assertNull(batch.next());
+    }
+
+    @Test
+    public void collectAllReturnsFailures() throws Exception {
+        stubResponse("/batch/ok", 200, 0);
+        stubResponse("/batch/missing", 404, 0);
+        executor = new RequestExecutor(2, 2);
+
+        RequestBatch<String> batch = RequestBatch.read(executor);
+        batch.add(createRequest("/batch/ok"));
+        batch.add(createRequest("/batch/missing"));
+        batch.add(createRequest("/batch/ok"));
+        List<RequestBatch.Result<String>> results = batch.awaitAll();
+
+        assertEquals(3, results.size());
+        assertEquals(2, batch.getSuccessCount());
+        assertEquals(1, batch.getFailureCount());
+        for(RequestBatch.Result<String> result : results) {
+            if(!result.isSuccess()) {
+                assertEquals(404, result.getRequest().getResponseCode());
+                assertNull(result.getValue());
+            }
+        }
+    }
+
+    @Test
+    public void failFastCancelsRemaining() throws Exception {
+        stubResponse("/batch/missing", 404, 0);
+        stubResponse("/batch/slow", 200, 1000);
+        executor = new RequestExecutor(2, 2);
+
+        RequestBatch<String> batch = RequestBatch.read(executor);
+        batch.setFailFast(true);
+        batch.setParallelism(2);
+        batch.add(createRequest("/batch/slow"));
+        batch.add(createRequest("/batch/missing"));
+        for(int i = 0; i < 5; i ++) {
+            batch.add(createRequest("/batch/slow"));
+        }
+
+        long start = System.currentTimeMillis();
+        RequestBatch.Result<String> result = batch.next();
+        assertFalse(result.isSuccess());
+        assertNull(batch.next());
+        assertTrue(System.currentTimeMillis() - start < 1000);
+        verify(1, getRequestedFor(urlMatching("/batch/slow")));
+    }
+
+    @Test
+    public void parallelismLimited() throws Exception {
+        stubResponse("/batch/limited", 200, 200);
+        executor = new RequestExecutor(8, 8);
+
+        RequestBatch<String> batch = RequestBatch.read(executor);
+        batch.setParallelism(2);
+        for(int i = 0; i < 4; i ++) {
+            batch.add(createRequest("/batch/limited"));
+        }
+        assertEquals(4, batch.awaitAll().size());
+        assertTrue(batch.getElapsedMillis() >= 400);
+    }
+}
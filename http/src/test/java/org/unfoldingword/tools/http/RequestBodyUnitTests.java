@@ -0,0 +1,115 @@
+package org.unfoldingword.tools.http;
+
+import com.github.tomakehurst.wiremock.junit.WireMockRule;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.net.URL;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.*;
+import static com.github.tomakehurst.wiremock.core.WireMockConfiguration.wireMockConfig;
+import static org.junit.Assert.*;
+
+public class RequestBodyUnitTests {
+    @Rule
+    public WireMockRule wireMockRule = new WireMockRule(wireMockConfig().dynamicPort().dynamicHttpsPort());
+    @Rule
+    public TemporaryFolder tempDir = new TemporaryFolder();
+
+    @Test
+    public void postUnicodeString() throws Exception {
+        stubFor(post(urlEqualTo("/body/unicode"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withBody("ok")));
+
+        String data = "caf\u00e9 \u1f10\u03bd \u1f00\u03c1\u03c7\u1fc7";
+        PostRequest request = new PostRequest(new URL("http://localhost:" + wireMockRule.port() + "/body/unicode"), data);
+        request.setContentType("text/plain; charset=utf-8");
+        request.read();
+
+        assertEquals(request.getResponseCode(), 200);
+        verify(postRequestedFor(urlMatching("/body/unicode"))
+                .withRequestBody(equalTo(data))
+                .withHeader("Content-Length", equalTo(String.valueOf(data.getBytes("UTF-8").length))));
+    }
+
+    @Test
+    public void putFile() throws Exception {
+        stubFor(put(urlEqualTo("/body/file"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withBody("ok")));
+
+        String data = "my file contents";
+        File file = tempDir.newFile("upload.txt");
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(data.getBytes("UTF-8"));
+        out.close();
+
+        PutRequest request = new PutRequest(new URL("http://localhost:" + wireMockRule.port() + "/body/file"), RequestBody.create(file));
+        request.read();
+
+        assertEquals(request.getResponseCode(), 200);
+        verify(putRequestedFor(urlMatching("/body/file"))
+                .withRequestBody(equalTo(data))
+                .withHeader("Content-Length", equalTo(String.valueOf(data.length()))));
+    }
+
+    @Test
+    public void postStreamOfUnknownLength() throws Exception {
+        stubFor(post(urlEqualTo("/body/stream"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withBody("ok")));
+
+        String data = "my streamed data";
+        RequestBody body = RequestBody.create(new ByteArrayInputStream(data.getBytes("UTF-8")), -1);
+        assertFalse(body.isRepeatable());
+
+        PostRequest request = new PostRequest(new URL("http://localhost:" + wireMockRule.port() + "/body/stream"), body);
+        request.read();
+
+        assertEquals(request.getResponseCode(), 200);
+        verify(postRequestedFor(urlMatching("/body/stream"))
+                .withRequestBody(equalTo(data))
+                .withHeader("Transfer-Encoding", equalTo("chunked")));
+    }
+
+    @Test
+    public void uploadProgress() throws Exception {
+        stubFor(post(urlEqualTo("/body/progress"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withBody("ok")));
+
+        final byte[] data = new byte[200 * 1024];
+        final long[] updates = new long[3];
+        PostRequest request = new PostRequest(new URL("http://localhost:" + wireMockRule.port() + "/body/progress"), RequestBody.create(data));
+        request.setUploadProgressInterval(16 * 1024, 60000);
+        request.setUploadProgressListener(new Request.OnProgressListener() {
+            @Override
+            public void onProgress(long max, long progress) {
+                assertTrue(progress >= updates[2]);
+                updates[0] ++;
+                updates[1] = max;
+                updates[2] = progress;
+            }
+
+            @Override
+            public void onIndeterminate() {
+
+            }
+        });
+        request.read();
+
+        assertTrue(updates[0] >= data.length / (16 * 1024));
+        assertEquals(data.length, updates[1]);
+        assertEquals(data.length, updates[2]);
+    }
+}
@@ -0,0 +1,274 @@
+package org.unfoldingword.tools.http;
+
+import com.github.tomakehurst.wiremock.junit.WireMockRule;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.*;
+import static com.github.tomakehurst.wiremock.core.WireMockConfiguration.wireMockConfig;
+import static org.junit.Assert.*;
+
+public class RequestCoalescerUnitTests {
+    @Rule
+    public WireMockRule wireMockRule = new WireMockRule(wireMockConfig().dynamicPort().dynamicHttpsPort());
+    @Rule
+    public TemporaryFolder tempDir = new TemporaryFolder();
+
+    private static String readFile(File f) throws IOException {
+        FileInputStream in = new FileInputStream(f);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            byte[] buffer = new byte[4096];
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                out.write(buffer, 0, n);
+            }
+        } finally {
+            in.close();
+        }
+        return out.toString("UTF-8");
+    }
+
+    private void stubSlow(String path, int status, String body) {
+        stubFor(get(urlEqualTo(path))
+                .willReturn(aResponse()
+                        .withStatus(status)
+                        .withHeader("ETag", "\"v1\"")
+                        .withFixedDelay(500)
+                        .withBody(body)));
+    }
+
+    private GetRequest createRequest(String path) throws IOException {
+        return new GetRequest(new URL("http://localhost:" + wireMockRule.port() + path));
+    }
+
+    @Test
+    public void concurrentReadsShareOneFetch() throws Exception {
+        stubSlow("/coalesce/read", 200, "my shared response");
+
+        final RequestCoalescer coalescer = new RequestCoalescer();
+        ExecutorService threads = Executors.newFixedThreadPool(5);
+        List<Future<GetRequest>> results = new ArrayList<>();
+        for(int i = 0; i < 5; i ++) {
+            results.add(threads.submit(new Callable<GetRequest>() {
+                @Override
+                public GetRequest call() throws Exception {
+                    GetRequest request = createRequest("/coalesce/read");
+                    assertEquals("my shared response", coalescer.read(request));
+                    return request;
+                }
+            }));
+        }
+        for(Future<GetRequest> result : results) {
+            GetRequest request = result.get();
+            assertEquals(200, request.getResponseCode());
+            assertEquals("\"v1\"", request.getResponseHeader("ETag"));
+        }
+        threads.shutdown();
+
+        verify(1, getRequestedFor(urlMatching("/coalesce/read")));
+        assertEquals(1, coalescer.getFetchCount());
+        assertEquals(4, coalescer.getCollapsedCount());
+    }
+
+    @Test
+    public void differentAuthNotShared() throws Exception {
+        stubSlow("/coalesce/auth", 200, "my private response");
+
+        final RequestCoalescer coalescer = new RequestCoalescer();
+        ExecutorService threads = Executors.newFixedThreadPool(2);
+        List<Future<String>> results = new ArrayList<>();
+        for(final String token : new String[]{"first", "second"}) {
+            results.add(threads.submit(new Callable<String>() {
+                @Override
+                public String call() throws Exception {
+                    GetRequest request = createRequest("/coalesce/auth");
+                    request.setAuth(token);
+                    return coalescer.read(request);
+                }
+            }));
+        }
+        for(Future<String> result : results) {
+            result.get();
+        }
+        threads.shutdown();
+
+        verify(2, getRequestedFor(urlMatching("/coalesce/auth")));
+        assertEquals(0, coalescer.getCollapsedCount());
+    }
+
+    @Test
+    public void downloadCopiedToEveryDestination() throws Exception {
+        stubSlow("/coalesce/download", 200, "my shared download");
+
+        final RequestCoalescer coalescer = new RequestCoalescer();
+        ExecutorService threads = Executors.newFixedThreadPool(3);
+        List<Future<File>> results = new ArrayList<>();
+        for(int i = 0; i < 3; i ++) {
+            final File dest = new File(tempDir.getRoot(), "download" + i + ".txt");
+            results.add(threads.submit(new Callable<File>() {
+                @Override
+                public File call() throws Exception {
+                    coalescer.download(createRequest("/coalesce/download"), dest);
+                    return dest;
+                }
+            }));
+        }
+        for(Future<File> result : results) {
+            assertEquals("my shared download", readFile(result.get()));
+        }
+        threads.shutdown();
+
+        verify(1, getRequestedFor(urlMatching("/coalesce/download")));
+    }
+
+    @Test
+    public void failureShared() throws Exception {
+        stubSlow("/coalesce/missing", 404, "not found");
+
+        final RequestCoalescer coalescer = new RequestCoalescer();
+        ExecutorService threads = Executors.newFixedThreadPool(3);
+        List<Future<GetRequest>> results = new ArrayList<>();
+        for(int i = 0; i < 3; i ++) {
+            results.add(threads.submit(new Callable<GetRequest>() {
+                @Override
+                public GetRequest call() throws Exception {
+                    GetRequest request = createRequest("/coalesce/missing");
+                    try {
+                        coalescer.read(request);
+                    } catch (IOException e) {
+                        return request;
+                    }
+                    fail();
+                    return null;
+                }
+            }));
+        }
+        for(Future<GetRequest> result : results) {
+            try {
+                assertEquals(404, result.get().getResponseCode());
+            } catch (ExecutionException e) {
+                fail(e.getMessage());
+            }
+        }
+        threads.shutdown();
+
+        verify(1, getRequestedFor(urlMatching("/coalesce/missing")));
+    }
+
+    @Test
+    public void unexpectedFailureShared() throws Exception {
+        stubSlow("/coalesce/broken", 200, "my response");
+
+        final RequestCoalescer coalescer = new RequestCoalescer();
+        ExecutorService threads = Executors.newFixedThreadPool(3);
+        List<Future<String>> results = new ArrayList<>();
+        for(int i = 0; i < 3; i ++) {
+            final boolean first = i == 0;
+            results.add(threads.submit(new Callable<String>() {
+                @Override
+                public String call() throws Exception {
+                    GetRequest request = new GetRequest(new URL("http://localhost:" + wireMockRule.port() + "/coalesce/broken")) {
+                        @Override
+                        protected void onConnected(HttpURLConnection conn) throws IOException {
+                            if(!first) return;
+                            try {
+                                Thread.sleep(500);
+                            } catch (InterruptedException e) {
+                                Thread.currentThread().interrupt();
+                            }
+                            throw new IllegalStateException("broken");
+                        }
+                    };
+                    return coalescer.read(request);
+                }
+            }));
+            if(first) Thread.sleep(100);
+        }
+        for(Future<String> result : results) {
+            try {
+                result.get();
+                fail();
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof IllegalStateException);
+            }
+        }
+        threads.shutdown();
+        assertEquals(1, coalescer.getFetchCount());
+    }
+
+    @Test
+    public void copiesMadeBeforeLeaderReturns() throws Exception {
+        stubSlow("/coalesce/moved", 200, "my shared download");
+
+        final RequestCoalescer coalescer = new RequestCoalescer();
+        ExecutorService threads = Executors.newFixedThreadPool(3);
+        List<Future<File>> results = new ArrayList<>();
+        for(int i = 0; i < 3; i ++) {
+            final boolean first = i == 0;
+            final File dest = new File(tempDir.getRoot(), "moved" + i + ".txt");
+            results.add(threads.submit(new Callable<File>() {
+                @Override
+                public File call() throws Exception {
+                    coalescer.download(createRequest("/coalesce/moved"), dest);
+                    // the caller that performed the download moves it away right away
+                    if(first) assertTrue(dest.delete());
+                    return dest;
+                }
+            }));
+            if(first) Thread.sleep(100);
+        }
+        results.get(0).get();
+        for(Future<File> result : results.subList(1, results.size())) {
+            assertEquals("my shared download", readFile(result.get()));
+        }
+        threads.shutdown();
+
+        verify(1, getRequestedFor(urlMatching("/coalesce/moved")));
+    }
+
+    @Test
+    public void incrementalNotSharedWithFullDownload() throws Exception {
+        stubSlow("/coalesce/incremental", 200, "my download");
+
+        final RequestCoalescer coalescer = new RequestCoalescer();
+        ExecutorService threads = Executors.newFixedThreadPool(2);
+        List<Future<File>> results = new ArrayList<>();
+        for(int i = 0; i < 2; i ++) {
+            final boolean incremental = i == 0;
+            final File dest = new File(tempDir.getRoot(), "incremental" + i + ".txt");
+            results.add(threads.submit(new Callable<File>() {
+                @Override
+                public File call() throws Exception {
+                    GetRequest request = createRequest("/coalesce/incremental");
+                    request.setIncremental(incremental);
+                    coalescer.download(request, dest);
+                    return dest;
+                }
+            }));
+        }
+        for(Future<File> result : results) {
+            assertEquals("my download", readFile(result.get()));
+        }
+        threads.shutdown();
+
+        assertEquals(2, coalescer.getFetchCount());
+        verify(2, getRequestedFor(urlMatching("/coalesce/incremental")));
+    }
+}
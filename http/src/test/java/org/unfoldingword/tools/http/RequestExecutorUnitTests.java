@@ -0,0 +1,152 @@
+package org.unfoldingword.tools.http;
+
+import com.github.tomakehurst.wiremock.junit.WireMockRule;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.*;
+import static com.github.tomakehurst.wiremock.core.WireMockConfiguration.wireMockConfig;
+import static org.junit.Assert.*;
+
+public class RequestExecutorUnitTests {
+    private static final int DELAY = 300;
+
+    @Rule
+    public WireMockRule wireMockRule = new WireMockRule(wireMockConfig().dynamicPort().dynamicHttpsPort());
+
+    private RequestExecutor executor;
+
+    @After
+    public void tearDown() {
+        if(executor != null) executor.shutdown();
+    }
+
+    private void stubSlowResponse(String path, int delay) {
+        stubFor(get(urlEqualTo(path))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withHeader("Content-Type", "text/plain")
+                        .withFixedDelay(delay)
+                        .withBody("my response")));
+    }
+
+    private long readAll(int count) throws Exception {
+        List<Future<String>> futures = new ArrayList<>();
+        long start = System.currentTimeMillis();
+        for(int i = 0; i < count; i ++) {
+            futures.add(executor.read(new GetRequest(new URL("http://localhost:" + wireMockRule.port() + "/executor/slow")), null));
+        }
+        for(Future<String> future : futures) {
+            assertEquals("my response", future.get());
+        }
+        return System.currentTimeMillis() - start;
+    }
+
+    @Test
+    public void readWithCallback() throws Exception {
+        stubSlowResponse("/executor/read", 0);
+        executor = new RequestExecutor(2, 2);
+
+        final CountDownLatch latch = new CountDownLatch(1);
+        final String[] result = new String[1];
+        executor.read(new GetRequest(new URL("http://localhost:" + wireMockRule.port() + "/executor/read")), new RequestExecutor.Callback<String>() {
+            @Override
+            public void onSuccess(Request request, String response) {
+                result[0] = response;
+                latch.countDown();
+            }
+
+            @Override
+            public void onFailure(Request request, Exception e) {
+                latch.countDown();
+            }
+        });
+
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        assertEquals("my response", result[0]);
+    }
+
+    @Test
+    public void requestsRunConcurrently() throws Exception {
+        stubSlowResponse("/executor/slow", DELAY);
+        executor = new RequestExecutor(4, 4);
+
+        assertTrue(readAll(4) < DELAY * 4);
+    }
+
+    @Test
+    public void hostLimitIsEnforced() throws Exception {
+        stubSlowResponse("/executor/slow", DELAY);
+        executor = new RequestExecutor(4, 1);
+
+        assertTrue(readAll(4) >= DELAY * 4);
+    }
+
+    @Test
+    public void waitingRequestsRunAfterShutdown() throws Exception {
+        stubSlowResponse("/executor/slow", DELAY);
+        executor = new RequestExecutor(4, 1);
+
+        List<Future<String>> futures = new ArrayList<>();
+        for(int i = 0; i < 3; i ++) {
+            futures.add(executor.read(new GetRequest(new URL("http://localhost:" + wireMockRule.port() + "/executor/slow")), null));
+        }
+        executor.shutdown();
+        for(Future<String> future : futures) {
+            assertEquals("my response", future.get(5, TimeUnit.SECONDS));
+        }
+
+        Future<String> rejected = executor.read(new GetRequest(new URL("http://localhost:" + wireMockRule.port() + "/executor/slow")), null);
+        try {
+            rejected.get(1, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof RejectedExecutionException);
+        }
+    }
+
+    @Test
+    public void cancelDisconnects() throws Exception {
+        stubSlowResponse("/executor/hung", 5000);
+        stubSlowResponse("/executor/next", 0);
+        executor = new RequestExecutor(1, 1);
+
+        final CountDownLatch failed = new CountDownLatch(1);
+        GetRequest hung = new GetRequest(new URL("http://localhost:" + wireMockRule.port() + "/executor/hung"));
+        hung.setTimeout(10000);
+        Future<String> future = executor.read(hung, new RequestExecutor.Callback<String>() {
+            @Override
+            public void onSuccess(Request request, String response) {
+
+            }
+
+            @Override
+            public void onFailure(Request request, Exception e) {
+                assertTrue(e instanceof CancellationException);
+                failed.countDown();
+            }
+        });
+        Thread.sleep(200);
+        assertTrue(future.cancel(true));
+        assertTrue(hung.isCancelled());
+        assertTrue(failed.await(1, TimeUnit.SECONDS));
+
+        // the only worker must be free again well before the hung response would have arrived
+        long start = System.currentTimeMillis();
+        Future<String> next = executor.read(new GetRequest(new URL("http://localhost:" + wireMockRule.port() + "/executor/next")), null);
+        assertEquals("my response", next.get(2, TimeUnit.SECONDS));
+        assertTrue(System.currentTimeMillis() - start < 2000);
+    }
+}
@@ -0,0 +1,193 @@
+package org.unfoldingword.tools.http;
+
+import com.github.tomakehurst.wiremock.junit.WireMockRule;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.*;
+import static com.github.tomakehurst.wiremock.core.WireMockConfiguration.wireMockConfig;
+import static org.junit.Assert.*;
+
+public class RequestMetricsUnitTests {
+    @Rule
+    public WireMockRule wireMockRule = new WireMockRule(wireMockConfig().dynamicPort().dynamicHttpsPort());
+    @Rule
+    public TemporaryFolder tempDir = new TemporaryFolder();
+
+    private static class Recorder implements RequestMetricsListener {
+        final List<RequestMetrics> metrics = new ArrayList<>();
+
+        @Override
+        public void onRequestComplete(RequestMetrics metrics) {
+            this.metrics.add(metrics);
+        }
+    }
+
+    @Test
+    public void readReportsPhases() throws Exception {
+        String body = "my response";
+        stubFor(get(urlEqualTo("/metrics/read"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withFixedDelay(100)
+                        .withBody(body)));
+
+        Recorder recorder = new Recorder();
+        GetRequest request = new GetRequest(new URL("http://localhost:" + wireMockRule.port() + "/metrics/read"));
+        request.setMetricsListener(recorder);
+        request.read();
+
+        assertEquals(1, recorder.metrics.size());
+        RequestMetrics metrics = recorder.metrics.get(0);
+        assertEquals("GET", metrics.getMethod());
+        assertEquals(200, metrics.getResponseCode());
+        assertEquals("localhost:" + wireMockRule.port(), metrics.getHost());
+        assertTrue(metrics.getConnectMillis() >= 0);
+        assertTrue(metrics.getTimeToFirstByteMillis() >= 100);
+        assertTrue(metrics.getTransferMillis() >= 0);
+        assertTrue(metrics.getTotalMillis() >= metrics.getTimeToFirstByteMillis());
+        assertEquals(0, metrics.getRequestBytes());
+        assertEquals(body.length(), metrics.getResponseBytes());
+        assertEquals(1, metrics.getAttempts());
+        assertEquals(RequestMetrics.CacheStatus.NONE, metrics.getCacheStatus());
+        assertNull(metrics.getError());
+    }
+
+    @Test
+    public void postReportsRequestBytes() throws Exception {
+        stubFor(post(urlEqualTo("/metrics/post"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withBody("ok")));
+
+        String data = "some posted data";
+        Recorder recorder = new Recorder();
+        PostRequest request = new PostRequest(new URL("http://localhost:" + wireMockRule.port() + "/metrics/post"), data);
+        request.setMetricsListener(recorder);
+        request.read();
+
+        RequestMetrics metrics = recorder.metrics.get(0);
+        assertEquals(data.length(), metrics.getRequestBytes());
+        assertTrue(metrics.getUploadMillis() >= 0);
+    }
+
+    @Test
+    public void failureReportsRetries() throws Exception {
+        stubFor(get(urlEqualTo("/metrics/failure"))
+                .willReturn(aResponse()
+                        .withStatus(503)
+                        .withBody("unavailable")));
+
+        Recorder recorder = new Recorder();
+        GetRequest request = new GetRequest(new URL("http://localhost:" + wireMockRule.port() + "/metrics/failure"));
+        RetryPolicy policy = new RetryPolicy(3);
+        policy.setBackoff(1, 10, 1);
+        request.setRetryPolicy(policy);
+        request.setMetricsListener(recorder);
+        try {
+            request.read();
+            fail();
+        } catch (IOException e) {
+            assertNotNull(e);
+        }
+
+        assertEquals(1, recorder.metrics.size());
+        RequestMetrics metrics = recorder.metrics.get(0);
+        assertEquals(503, metrics.getResponseCode());
+        assertEquals(3, metrics.getAttempts());
+        assertNotNull(metrics.getError());
+    }
+
+    @Test
+    public void cacheHitReported() throws Exception {
+        stubFor(get(urlEqualTo("/metrics/cache"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withHeader("ETag", "\"v1\"")
+                        .withBody("my cached response")));
+        stubFor(get(urlEqualTo("/metrics/cache"))
+                .withHeader("If-None-Match", equalTo("\"v1\""))
+                .willReturn(aResponse()
+                        .withStatus(304)));
+
+        Recorder recorder = new Recorder();
+        DiskResponseCache cache = new DiskResponseCache(tempDir.newFolder(), 1024 * 1024, 1024);
+        for(int i = 0; i < 2; i ++) {
+            GetRequest request = new GetRequest(new URL("http://localhost:" + wireMockRule.port() + "/metrics/cache"));
+            request.setResponseCache(cache);
+            request.setMetricsListener(recorder);
+            request.read();
+        }
+
+        assertEquals(RequestMetrics.CacheStatus.MISS, recorder.metrics.get(0).getCacheStatus());
+        assertEquals(RequestMetrics.CacheStatus.HIT, recorder.metrics.get(1).getCacheStatus());
+        assertEquals(0, recorder.metrics.get(1).getResponseBytes());
+    }
+
+    @Test
+    public void openResponseReportedOnClose() throws Exception {
+        stubFor(get(urlEqualTo("/metrics/stream"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withBody("my streamed response")));
+
+        Recorder recorder = new Recorder();
+        GetRequest request = new GetRequest(new URL("http://localhost:" + wireMockRule.port() + "/metrics/stream"));
+        request.setMetricsListener(recorder);
+        ResponseBody body = request.openResponse();
+        assertEquals(0, recorder.metrics.size());
+        body.visit(new ResponseBody.ChunkVisitor() {
+            @Override
+            public void onChunk(byte[] buffer, int offset, int length) {
+
+            }
+        });
+        body.close();
+
+        assertEquals(1, recorder.metrics.size());
+        assertEquals("my streamed response".length(), recorder.metrics.get(0).getResponseBytes());
+    }
+
+    @Test
+    public void aggregatorGroupsByHost() throws Exception {
+        stubFor(get(urlEqualTo("/metrics/aggregate"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withBody("ok")));
+
+        MetricsAggregator aggregator = new MetricsAggregator();
+        for(int i = 0; i < 5; i ++) {
+            GetRequest request = new GetRequest(new URL("http://localhost:" + wireMockRule.port() + "/metrics/aggregate"));
+            request.setMetricsListener(aggregator);
+            request.read();
+        }
+
+        assertEquals(1, aggregator.getHosts().size());
+        MetricsAggregator.HostMetrics host = aggregator.getHost("localhost:" + wireMockRule.port());
+        assertEquals(5, host.getRequestCount());
+        assertEquals(0, host.getFailureCount());
+        assertEquals(10, host.getBytesReceived());
+        assertEquals(5, host.getTotalTimes().getCount());
+        assertTrue(host.getTotalTimes().getPercentile(0.95) <= host.getTotalTimes().getMax());
+    }
+
+    @Test
+    public void histogramPercentiles() {
+        MetricsAggregator.Histogram histogram = new MetricsAggregator.Histogram();
+        for(int i = 0; i < 90; i ++) histogram.record(1);
+        for(int i = 0; i < 10; i ++) histogram.record(900);
+        histogram.record(-1);
+
+        assertEquals(100, histogram.getCount());
+        assertEquals(1, histogram.getPercentile(0.5));
+        assertEquals(900, histogram.getPercentile(0.95));
+        assertEquals(900, histogram.getMax());
+    }
+}
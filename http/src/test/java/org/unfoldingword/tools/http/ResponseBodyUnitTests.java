@@ -0,0 +1,91 @@
+package org.unfoldingword.tools.http;
+
+import com.github.tomakehurst.wiremock.junit.WireMockRule;
+
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.URL;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.*;
+import static com.github.tomakehurst.wiremock.core.WireMockConfiguration.wireMockConfig;
+import static org.junit.Assert.*;
+
+public class ResponseBodyUnitTests {
+    @Rule
+    public WireMockRule wireMockRule = new WireMockRule(wireMockConfig().dynamicPort().dynamicHttpsPort());
+
+    @Test
+    public void readerGET() throws Exception {
+        stubFor(get(urlEqualTo("/stream/reader"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withHeader("Content-Type", "text/plain; charset=utf-8")
+                        .withBody("first line\nsecond line")));
+
+        GetRequest request = new GetRequest(new URL("http://localhost:" + wireMockRule.port() + "/stream/reader"));
+        ResponseBody body = request.openResponse();
+        try {
+            BufferedReader reader = new BufferedReader(body.getReader());
+            assertEquals("first line", reader.readLine());
+            assertEquals("second line", reader.readLine());
+            assertNull(reader.readLine());
+        } finally {
+            body.close();
+        }
+
+        assertEquals(request.getResponseCode(), 200);
+        verify(getRequestedFor(urlMatching("/stream/reader")));
+    }
+
+    @Test
+    public void visitGET() throws Exception {
+        String data = "my streamed response";
+        stubFor(get(urlEqualTo("/stream/visit"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withHeader("Content-Type", "text/plain")
+                        .withBody(data)));
+
+        GetRequest request = new GetRequest(new URL("http://localhost:" + wireMockRule.port() + "/stream/visit"));
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ResponseBody body = request.openResponse();
+        long size;
+        try {
+            size = body.visit(new ResponseBody.ChunkVisitor() {
+                @Override
+                public void onChunk(byte[] buffer, int offset, int length) throws IOException {
+                    out.write(buffer, offset, length);
+                }
+            });
+        } finally {
+            body.close();
+        }
+
+        assertEquals(data.length(), size);
+        assertEquals(data, out.toString("UTF-8"));
+    }
+
+    @Test
+    public void failedGET() throws Exception {
+        stubFor(get(urlEqualTo("/stream/failed"))
+                .willReturn(aResponse()
+                        .withStatus(404)
+                        .withHeader("Content-Type", "text/plain")
+                        .withBody("not found")));
+
+        GetRequest request = new GetRequest(new URL("http://localhost:" + wireMockRule.port() + "/stream/failed"));
+        ResponseBody body = null;
+        try {
+            body = request.openResponse();
+        } catch (IOException e) {
+            assertNotNull(e);
+        }
+
+        assertNull(body);
+        assertEquals(request.getResponseCode(), 404);
+    }
+}
@@ -0,0 +1,183 @@
+package org.unfoldingword.tools.http;
+
+import com.github.tomakehurst.wiremock.junit.WireMockRule;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.*;
+import static com.github.tomakehurst.wiremock.core.WireMockConfiguration.wireMockConfig;
+import static org.junit.Assert.*;
+
+public class ResponseCacheUnitTests {
+    @Rule
+    public WireMockRule wireMockRule = new WireMockRule(wireMockConfig().dynamicPort().dynamicHttpsPort());
+    @Rule
+    public TemporaryFolder tempDir = new TemporaryFolder();
+
+    private static String readFile(File f) throws IOException {
+        FileInputStream in = new FileInputStream(f);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            byte[] buffer = new byte[4096];
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                out.write(buffer, 0, n);
+            }
+        } finally {
+            in.close();
+        }
+        return out.toString("UTF-8");
+    }
+
+    private void stubCacheable(String path, String etag, String body) {
+        stubFor(get(urlEqualTo(path))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withHeader("Content-Type", "text/plain")
+                        .withHeader("ETag", etag)
+                        .withBody(body)));
+        stubFor(get(urlEqualTo(path))
+                .withHeader("If-None-Match", equalTo(etag))
+                .willReturn(aResponse()
+                        .withStatus(304)
+                        .withHeader("ETag", etag)));
+    }
+
+    private GetRequest createRequest(String path, ResponseCache cache) throws IOException {
+        GetRequest request = new GetRequest(new URL("http://localhost:" + wireMockRule.port() + path));
+        request.setResponseCache(cache);
+        return request;
+    }
+
+    @Test
+    public void readRevalidatesCachedResponse() throws Exception {
+        String body = "my cached response";
+        stubCacheable("/cache/read", "\"v1\"", body);
+        DiskResponseCache cache = new DiskResponseCache(tempDir.newFolder(), 1024 * 1024, 1024 * 1024);
+
+        GetRequest first = createRequest("/cache/read", cache);
+        assertEquals(body, first.read());
+        assertFalse(first.isCachedResponse());
+
+        GetRequest second = createRequest("/cache/read", cache);
+        assertEquals(body, second.read());
+        assertTrue(second.isCachedResponse());
+        assertEquals(second.getResponseCode(), 200);
+        assertEquals(0, second.getBytesReceived());
+
+        assertEquals(1, cache.getMissCount());
+        assertEquals(1, cache.getRevalidationCount());
+        assertEquals(1, cache.getHitCount());
+        assertEquals(body.length(), cache.getBytesSaved());
+
+        verify(1, getRequestedFor(urlMatching("/cache/read")).withHeader("If-None-Match", equalTo("\"v1\"")));
+    }
+
+    @Test
+    public void downloadServedFromCache() throws Exception {
+        String body = "my cached download";
+        stubCacheable("/cache/download", "\"v1\"", body);
+        DiskResponseCache cache = new DiskResponseCache(tempDir.newFolder(), 1024 * 1024, 0);
+
+        createRequest("/cache/download", cache).read();
+
+        GetRequest request = createRequest("/cache/download", cache);
+        File dest = new File(tempDir.getRoot(), "cached.download.txt");
+        request.download(dest);
+
+        assertTrue(request.isCachedResponse());
+        assertEquals(body, readFile(dest));
+    }
+
+    @Test
+    public void cacheSurvivesRestart() throws Exception {
+        String body = "my persisted response";
+        stubCacheable("/cache/persisted", "\"v1\"", body);
+        File dir = tempDir.newFolder();
+
+        createRequest("/cache/persisted", new DiskResponseCache(dir, 1024 * 1024, 1024)).read();
+
+        DiskResponseCache reopened = new DiskResponseCache(dir, 1024 * 1024, 1024);
+        GetRequest request = createRequest("/cache/persisted", reopened);
+        assertEquals(body, request.read());
+        assertTrue(request.isCachedResponse());
+    }
+
+    @Test
+    public void leastRecentlyUsedEvicted() throws Exception {
+        stubCacheable("/cache/a", "\"a\"", "aaaaaaaaaa");
+        stubCacheable("/cache/b", "\"b\"", "bbbbbbbbbb");
+        stubCacheable("/cache/c", "\"c\"", "cccccccccc");
+        DiskResponseCache cache = new DiskResponseCache(tempDir.newFolder(), 25, 0);
+
+        createRequest("/cache/a", cache).read();
+        createRequest("/cache/b", cache).read();
+        createRequest("/cache/c", cache).read();
+        assertTrue(cache.getSize() <= 25);
+
+        // a was evicted so it must be downloaded again
+        GetRequest request = createRequest("/cache/a", cache);
+        request.read();
+        assertFalse(request.isCachedResponse());
+        verify(0, getRequestedFor(urlMatching("/cache/a")).withHeader("If-None-Match", equalTo("\"a\"")));
+
+        // c is still cached
+        request = createRequest("/cache/c", cache);
+        request.read();
+        assertTrue(request.isCachedResponse());
+    }
+
+    @Test
+    public void noStoreNotCached() throws Exception {
+        stubFor(get(urlEqualTo("/cache/nostore"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withHeader("ETag", "\"v1\"")
+                        .withHeader("Cache-Control", "no-store")
+                        .withBody("private")));
+        DiskResponseCache cache = new DiskResponseCache(tempDir.newFolder(), 1024 * 1024, 1024);
+
+        createRequest("/cache/nostore", cache).read();
+        createRequest("/cache/nostore", cache).read();
+
+        assertEquals(0, cache.getRevalidationCount());
+        assertEquals(0, cache.getSize());
+    }
+
+    @Test
+    public void evictedEntryRetriedWithCallHeaders() throws Exception {
+        String body = "my evicted download";
+        stubCacheable("/cache/evicted", "\"v1\"", body);
+        // loses the body of the entry as if it were evicted between the lookup and the 304
+        DiskResponseCache cache = new DiskResponseCache(tempDir.newFolder(), 1024 * 1024, 0) {
+            @Override
+            public synchronized InputStream openBody(String key) throws IOException {
+                return null;
+            }
+        };
+
+        createRequest("/cache/evicted", cache).read();
+
+        GetRequest request = createRequest("/cache/evicted", cache);
+        request.setResumable(true);
+        File dest = new File(tempDir.getRoot(), "evicted.download.txt");
+        request.download(dest);
+
+        assertFalse(request.isCachedResponse());
+        assertEquals(body, readFile(dest));
+        verify(1, getRequestedFor(urlMatching("/cache/evicted")).withHeader("If-None-Match", equalTo("\"v1\"")));
+        // the unconditional retry still asks for an unencoded body
+        verify(1, getRequestedFor(urlMatching("/cache/evicted"))
+                .withoutHeader("If-None-Match")
+                .withHeader("Accept-Encoding", equalTo("identity")));
+    }
+}
@@ -0,0 +1,193 @@
+package org.unfoldingword.tools.http;
+
+import com.github.tomakehurst.wiremock.junit.WireMockRule;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.*;
+import static com.github.tomakehurst.wiremock.core.WireMockConfiguration.wireMockConfig;
+import static org.junit.Assert.*;
+
+public class ResponseSizeUnitTests {
+    @Rule
+    public WireMockRule wireMockRule = new WireMockRule(wireMockConfig().dynamicPort().dynamicHttpsPort());
+    @Rule
+    public TemporaryFolder tempDir = new TemporaryFolder();
+
+    private static final int LIMIT = 10 * 1024;
+
+    private static byte[] createData(int size) {
+        byte[] data = new byte[size];
+        for(int i = 0; i < size; i ++) {
+            data[i] = (byte)('a' + i % 26);
+        }
+        return data;
+    }
+
+    /**
+     * Responds with a body that either announces its length or is sent in chunks
+     */
+    private byte[] stubData(String path, int size, boolean contentLength) {
+        byte[] data = createData(size);
+        if(contentLength) {
+            stubFor(get(urlEqualTo(path))
+                    .willReturn(aResponse()
+                            .withStatus(200)
+                            .withHeader("Content-Length", String.valueOf(size))
+                            .withBody(data)));
+        } else {
+            stubFor(get(urlEqualTo(path))
+                    .willReturn(aResponse()
+                            .withStatus(200)
+                            .withBody(data)));
+        }
+        return data;
+    }
+
+    private GetRequest createRequest(String path) throws IOException {
+        GetRequest request = new GetRequest(new URL("http://localhost:" + wireMockRule.port() + path));
+        request.setMaxBodySize(LIMIT);
+        return request;
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int n;
+        while((n = in.read(buffer)) != -1) {
+            out.write(buffer, 0, n);
+        }
+        return out.toByteArray();
+    }
+
+    @Test
+    public void readWithinLimit() throws Exception {
+        byte[] data = stubData("/size/small", LIMIT, false);
+        assertEquals(new String(data, "UTF-8"), createRequest("/size/small").read());
+    }
+
+    @Test
+    public void announcedLengthRejected() throws Exception {
+        stubData("/size/announced", LIMIT * 10, true);
+        try {
+            createRequest("/size/announced").read();
+            fail();
+        } catch (ResponseTooLargeException e) {
+            assertEquals(LIMIT, e.getLimit());
+            assertEquals(LIMIT * 10, e.getLength());
+        }
+    }
+
+    @Test
+    public void streamedLengthRejected() throws Exception {
+        stubData("/size/streamed", LIMIT * 10, false);
+        GetRequest request = createRequest("/size/streamed");
+        try {
+            request.read();
+            fail();
+        } catch (ResponseTooLargeException e) {
+            assertEquals(-1, e.getLength());
+        }
+        // the transfer stopped shortly after the limit was reached
+        assertTrue(request.getBytesReceived() < LIMIT * 10);
+    }
+
+    @Test
+    public void bodyKeptInMemory() throws Exception {
+        byte[] data = stubData("/size/memory", LIMIT / 2, false);
+        File spill = tempDir.newFolder("spill");
+
+        GetRequest request = createRequest("/size/memory");
+        request.setSpillDirectory(spill);
+        ResponseBody body = request.readBody();
+        assertEquals(0, spill.list().length);
+        assertEquals(data.length, body.getContentLength());
+        assertArrayEquals(data, readAll(body.getInputStream()));
+        body.close();
+    }
+
+    @Test
+    public void largeBodySpilled() throws Exception {
+        byte[] streamed = stubData("/size/spill", LIMIT * 10, false);
+        byte[] announced = stubData("/size/spill-announced", LIMIT * 10, true);
+        File spill = tempDir.newFolder("spill");
+
+        GetRequest request = createRequest("/size/spill");
+        request.setSpillDirectory(spill);
+        ResponseBody body = request.readBody();
+        assertEquals(1, spill.list().length);
+        assertEquals(streamed.length, body.getContentLength());
+        assertArrayEquals(streamed, readAll(body.getInputStream()));
+        body.close();
+        assertEquals(0, spill.list().length);
+
+        request = createRequest("/size/spill-announced");
+        request.setSpillDirectory(spill);
+        body = request.readBody();
+        assertArrayEquals(announced, readAll(body.getInputStream()));
+        body.close();
+        assertEquals(0, spill.list().length);
+    }
+
+    @Test
+    public void hugeAnnouncedLengthRejectedBeforeBuffering() throws Exception {
+        // a server announcing far more than it sends
+        final ServerSocket server = new ServerSocket(0);
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Socket client = server.accept();
+                    BufferedReader reader = new BufferedReader(new InputStreamReader(client.getInputStream(), "UTF-8"));
+                    String line;
+                    while((line = reader.readLine()) != null && !line.isEmpty()) {
+                        // skip the request headers
+                    }
+                    OutputStream out = client.getOutputStream();
+                    out.write("HTTP/1.1 200 OK\r\nContent-Length: 2000000000\r\n\r\nsome data".getBytes("UTF-8"));
+                    out.flush();
+                    client.close();
+                } catch (IOException e) {
+                    // the test fails on its own
+                }
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+
+        GetRequest request = new GetRequest(new URL("http://localhost:" + server.getLocalPort() + "/size/huge"));
+        request.setMaxBodySize(LIMIT);
+        try {
+            request.readBody();
+            fail();
+        } catch (ResponseTooLargeException e) {
+            assertEquals(2000000000L, e.getLength());
+        } finally {
+            server.close();
+        }
+    }
+
+    @Test
+    public void largeBodyRejectedWithoutSpillDirectory() throws Exception {
+        stubData("/size/no-spill", LIMIT * 10, false);
+        try {
+            createRequest("/size/no-spill").readBody();
+            fail();
+        } catch (ResponseTooLargeException e) {
+            assertEquals(LIMIT, e.getLimit());
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package org.unfoldingword.tools.http;
+
+import com.github.tomakehurst.wiremock.junit.WireMockRule;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.URL;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.*;
+import static com.github.tomakehurst.wiremock.core.WireMockConfiguration.wireMockConfig;
+import static org.junit.Assert.*;
+
+public class ResumableDownloadUnitTests {
+    private static final String BODY = "the quick brown fox jumps over the lazy dog";
+    private static final int OFFSET = 10;
+
+    @Rule
+    public WireMockRule wireMockRule = new WireMockRule(wireMockConfig().dynamicPort().dynamicHttpsPort());
+    @Rule
+    public TemporaryFolder tempDir = new TemporaryFolder();
+
+    private static String readFile(File f) throws IOException {
+        FileInputStream in = new FileInputStream(f);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            byte[] buffer = new byte[4096];
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                out.write(buffer, 0, n);
+            }
+        } finally {
+            in.close();
+        }
+        return out.toString("UTF-8");
+    }
+
+    private static void writeFile(File f, String contents) throws IOException {
+        FileOutputStream out = new FileOutputStream(f);
+        try {
+            out.write(contents.getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Leaves behind the files of a download that failed part way through
+     */
+    private static void createPartialDownload(File dest) throws IOException {
+        writeFile(new File(dest.getPath() + ".part"), BODY.substring(0, OFFSET));
+        writeFile(new File(dest.getPath() + ".part.meta"), "etag=\"v1\"\nlength=" + BODY.length() + "\n");
+    }
+
+    @Test
+    public void downloadResumesWithRange() throws Exception {
+        stubFor(get(urlEqualTo("/download/resume"))
+                .withHeader("Range", equalTo("bytes=" + OFFSET + "-"))
+                .willReturn(aResponse()
+                        .withStatus(206)
+                        .withHeader("Content-Type", "text/plain")
+                        .withHeader("ETag", "\"v1\"")
+                        .withHeader("Content-Range", "bytes " + OFFSET + "-" + (BODY.length() - 1) + "/" + BODY.length())
+                        .withBody(BODY.substring(OFFSET))));
+
+        File dest = new File(tempDir.getRoot(), "download.resume.txt");
+        createPartialDownload(dest);
+
+        GetRequest request = new GetRequest(new URL("http://localhost:" + wireMockRule.port() + "/download/resume"));
+        request.setResumable(true);
+        request.download(dest);
+
+        assertEquals(request.getResponseCode(), 206);
+        assertEquals(BODY, readFile(dest));
+        assertFalse(new File(dest.getPath() + ".part").exists());
+        assertFalse(new File(dest.getPath() + ".part.meta").exists());
+
+        verify(getRequestedFor(urlMatching("/download/resume")).withHeader("If-Range", equalTo("\"v1\"")));
+    }
+
+    @Test
+    public void downloadRestartsWhenResourceChanged() throws Exception {
+        String changed = "a completely different response";
+        stubFor(get(urlEqualTo("/download/changed"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withHeader("Content-Type", "text/plain")
+                        .withHeader("ETag", "\"v2\"")
+                        .withBody(changed)));
+
+        File dest = new File(tempDir.getRoot(), "download.changed.txt");
+        createPartialDownload(dest);
+
+        GetRequest request = new GetRequest(new URL("http://localhost:" + wireMockRule.port() + "/download/changed"));
+        request.setResumable(true);
+        request.download(dest);
+
+        assertEquals(request.getResponseCode(), 200);
+        assertEquals(changed, readFile(dest));
+        assertFalse(new File(dest.getPath() + ".part").exists());
+    }
+
+    @Test
+    public void failedDownloadKeepsPartialFile() throws Exception {
+        stubFor(get(urlEqualTo("/download/unavailable"))
+                .willReturn(aResponse()
+                        .withStatus(503)
+                        .withHeader("Content-Type", "text/plain")
+                        .withBody("try again later")));
+
+        File dest = new File(tempDir.getRoot(), "download.unavailable.txt");
+        createPartialDownload(dest);
+
+        GetRequest request = new GetRequest(new URL("http://localhost:" + wireMockRule.port() + "/download/unavailable"));
+        request.setResumable(true);
+        try {
+            request.download(dest);
+            fail();
+        } catch (IOException e) {
+            assertNotNull(e);
+        }
+
+        assertEquals(request.getResponseCode(), 503);
+        assertFalse(dest.exists());
+        assertEquals(BODY.substring(0, OFFSET), readFile(new File(dest.getPath() + ".part")));
+    }
+
+    @Test
+    public void downloadWithoutPartialFile() throws Exception {
+        stubFor(get(urlEqualTo("/download/fresh"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withHeader("Content-Type", "text/plain")
+                        .withHeader("Last-Modified", "Wed, 21 Oct 2015 07:28:00 GMT")
+                        .withBody(BODY)));
+
+        File dest = new File(tempDir.getRoot(), "download.fresh.txt");
+        GetRequest request = new GetRequest(new URL("http://localhost:" + wireMockRule.port() + "/download/fresh"));
+        request.setResumable(true);
+        request.download(dest);
+
+        assertEquals(BODY, readFile(dest));
+        verify(getRequestedFor(urlMatching("/download/fresh")).withoutHeader("Range"));
+    }
+}
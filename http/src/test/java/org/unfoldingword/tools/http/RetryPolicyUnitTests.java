@@ -0,0 +1,194 @@
+package org.unfoldingword.tools.http;
+
+import com.github.tomakehurst.wiremock.junit.WireMockRule;
+
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.*;
+import static com.github.tomakehurst.wiremock.core.WireMockConfiguration.wireMockConfig;
+import static com.github.tomakehurst.wiremock.stubbing.Scenario.STARTED;
+import static org.junit.Assert.*;
+
+public class RetryPolicyUnitTests {
+    @Rule
+    public WireMockRule wireMockRule = new WireMockRule(wireMockConfig().dynamicPort().dynamicHttpsPort());
+
+    /**
+     * Responds with the failure once and succeeds afterwards
+     */
+    private void stubFailOnce(String path, int status, String retryAfter) {
+        stubFor(any(urlEqualTo(path))
+                .inScenario(path)
+                .whenScenarioStateIs(STARTED)
+                .willReturn(aResponse()
+                        .withStatus(status)
+                        .withHeader("Retry-After", retryAfter)
+                        .withBody("failed"))
+                .willSetStateTo("recovered"));
+        stubFor(any(urlEqualTo(path))
+                .inScenario(path)
+                .whenScenarioStateIs("recovered")
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withBody("my response")));
+    }
+
+    /**
+     * Responds with "my response" or stalls after the first few bytes of it
+     */
+    private static void serveOnce(Socket client, boolean stall) {
+        try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(client.getInputStream(), "UTF-8"));
+            String line;
+            while((line = reader.readLine()) != null && !line.isEmpty()) {
+                // skip the request headers
+            }
+            OutputStream out = client.getOutputStream();
+            out.write("HTTP/1.1 200 OK\r\nContent-Length: 11\r\nConnection: close\r\n\r\n".getBytes("UTF-8"));
+            out.write((stall ? "my " : "my response").getBytes("UTF-8"));
+            out.flush();
+            if(stall) Thread.sleep(2000);
+            client.close();
+        } catch (Exception e) {
+            // the test fails on its own
+        }
+    }
+
+    private static RetryPolicy createPolicy(final List<String> attempts) {
+        RetryPolicy policy = new RetryPolicy(3);
+        policy.setBackoff(10, 2000, 2);
+        policy.setJitter(0);
+        policy.setAttemptListener(new RetryPolicy.OnAttemptListener() {
+            @Override
+            public void onAttempt(Request request, int attempt, long durationMillis, int responseCode, IOException error, long retryDelayMillis) {
+                attempts.add(attempt + ":" + responseCode + ":" + (error == null ? "ok" : "failed"));
+            }
+        });
+        return policy;
+    }
+
+    @Test
+    public void getRetriedAfterServiceUnavailable() throws Exception {
+        stubFailOnce("/retry/get", 503, "0");
+        List<String> attempts = new ArrayList<>();
+
+        GetRequest request = new GetRequest(new URL("http://localhost:" + wireMockRule.port() + "/retry/get"));
+        request.setRetryPolicy(createPolicy(attempts));
+
+        assertEquals("my response", request.read());
+        assertEquals(2, request.getAttemptCount());
+        assertEquals("1:503:failed", attempts.get(0));
+        assertEquals("2:200:ok", attempts.get(1));
+        verify(2, getRequestedFor(urlMatching("/retry/get")));
+    }
+
+    @Test
+    public void retryAfterHonored() throws Exception {
+        stubFailOnce("/retry/after", 429, "1");
+
+        GetRequest request = new GetRequest(new URL("http://localhost:" + wireMockRule.port() + "/retry/after"));
+        request.setRetryPolicy(createPolicy(new ArrayList<String>()));
+
+        long start = System.currentTimeMillis();
+        assertEquals("my response", request.read());
+        assertTrue(System.currentTimeMillis() - start >= 1000);
+    }
+
+    @Test
+    public void timeoutWhileReadingBodyRetried() throws Exception {
+        // the first response stalls part way through its body and the second one completes
+        final ServerSocket server = new ServerSocket(0);
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    for(int i = 0; i < 2; i ++) {
+                        final Socket client = server.accept();
+                        final boolean stall = i == 0;
+                        Thread handler = new Thread(new Runnable() {
+                            @Override
+                            public void run() {
+                                serveOnce(client, stall);
+                            }
+                        });
+                        handler.setDaemon(true);
+                        handler.start();
+                    }
+                } catch (IOException e) {
+                    // the test fails on its own
+                }
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+
+        List<String> attempts = new ArrayList<>();
+        GetRequest request = new GetRequest(new URL("http://localhost:" + server.getLocalPort() + "/retry/stalled"));
+        request.setTimeout(500);
+        request.setRetryPolicy(createPolicy(attempts));
+        try {
+            assertEquals("my response", request.read());
+        } finally {
+            server.close();
+        }
+        assertEquals(2, request.getAttemptCount());
+        assertEquals("1:200:failed", attempts.get(0));
+    }
+
+    @Test
+    public void postNotRetried() throws Exception {
+        stubFailOnce("/retry/post", 503, "0");
+
+        PostRequest request = new PostRequest(new URL("http://localhost:" + wireMockRule.port() + "/retry/post"), "some data");
+        request.setRetryPolicy(createPolicy(new ArrayList<String>()));
+        try {
+            request.read();
+            fail();
+        } catch (IOException e) {
+            assertNotNull(e);
+        }
+
+        assertEquals(request.getResponseCode(), 503);
+        assertEquals(1, request.getAttemptCount());
+        verify(1, postRequestedFor(urlMatching("/retry/post")));
+    }
+
+    @Test
+    public void putRetried() throws Exception {
+        stubFailOnce("/retry/put", 502, "0");
+
+        PutRequest request = new PutRequest(new URL("http://localhost:" + wireMockRule.port() + "/retry/put"), "some data");
+        request.setRetryPolicy(createPolicy(new ArrayList<String>()));
+
+        assertEquals("my response", request.read());
+        verify(2, putRequestedFor(urlMatching("/retry/put")).withRequestBody(equalTo("some data")));
+    }
+
+    @Test
+    public void clientErrorNotRetried() throws Exception {
+        stubFailOnce("/retry/missing", 404, "0");
+
+        DeleteRequest request = new DeleteRequest(new URL("http://localhost:" + wireMockRule.port() + "/retry/missing"));
+        request.setRetryPolicy(createPolicy(new ArrayList<String>()));
+        try {
+            request.read();
+            fail();
+        } catch (IOException e) {
+            assertNotNull(e);
+        }
+
+        assertEquals(request.getResponseCode(), 404);
+        verify(1, deleteRequestedFor(urlMatching("/retry/missing")));
+    }
+}
@@ -0,0 +1,182 @@
+package org.unfoldingword.tools.http;
+
+import com.github.tomakehurst.wiremock.junit.WireMockRule;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.net.URL;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.*;
+import static com.github.tomakehurst.wiremock.core.WireMockConfiguration.wireMockConfig;
+import static org.junit.Assert.*;
+
+public class SegmentedDownloadUnitTests {
+    private static final String BODY = "0123456789abcdefghij";
+
+    @Rule
+    public WireMockRule wireMockRule = new WireMockRule(wireMockConfig().dynamicPort().dynamicHttpsPort());
+    @Rule
+    public TemporaryFolder tempDir = new TemporaryFolder();
+
+    private static String readFile(File f) throws IOException {
+        FileInputStream in = new FileInputStream(f);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            byte[] buffer = new byte[4096];
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                out.write(buffer, 0, n);
+            }
+        } finally {
+            in.close();
+        }
+        return out.toString("UTF-8");
+    }
+
+    private static void stubRange(String path, int start, int end) {
+        stubFor(get(urlEqualTo(path))
+                .withHeader("Range", equalTo("bytes=" + start + "-" + end))
+                .willReturn(aResponse()
+                        .withStatus(206)
+                        .withHeader("Content-Type", "text/plain")
+                        .withHeader("ETag", "\"v1\"")
+                        .withHeader("Content-Range", "bytes " + start + "-" + end + "/" + BODY.length())
+                        .withBody(BODY.substring(start, end + 1))));
+    }
+
+    @Test
+    public void downloadSegments() throws Exception {
+        stubRange("/segmented", 0, 0);
+        stubRange("/segmented", 0, 9);
+        stubRange("/segmented", 10, 19);
+
+        final long[] lastProgress = new long[2];
+        File dest = new File(tempDir.getRoot(), "segmented.txt");
+        SegmentedDownload download = new SegmentedDownload(new URL("http://localhost:" + wireMockRule.port() + "/segmented"), dest);
+        download.setSegments(2);
+        download.setMinSegmentSize(10);
+        download.setProgressListener(new Request.OnProgressListener() {
+            @Override
+            public void onProgress(long max, long progress) {
+                lastProgress[0] = max;
+                lastProgress[1] = progress;
+            }
+
+            @Override
+            public void onIndeterminate() {
+
+            }
+        });
+        download.download();
+
+        assertEquals(BODY, readFile(dest));
+        assertEquals(BODY.length(), lastProgress[0]);
+        assertEquals(BODY.length(), lastProgress[1]);
+
+        verify(getRequestedFor(urlMatching("/segmented")).withHeader("Range", equalTo("bytes=0-9")));
+        verify(getRequestedFor(urlMatching("/segmented")).withHeader("Range", equalTo("bytes=10-19")));
+        verify(getRequestedFor(urlMatching("/segmented")).withHeader("If-Range", equalTo("\"v1\"")));
+    }
+
+    @Test
+    public void downloadWithoutRangeSupport() throws Exception {
+        stubFor(get(urlEqualTo("/unsegmented"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withHeader("Content-Type", "text/plain")
+                        .withBody(BODY)));
+
+        File dest = new File(tempDir.getRoot(), "unsegmented.txt");
+        SegmentedDownload download = new SegmentedDownload(new URL("http://localhost:" + wireMockRule.port() + "/unsegmented"), dest);
+        download.setSegments(2);
+        download.setMinSegmentSize(10);
+        download.download();
+
+        assertEquals(BODY, readFile(dest));
+        verify(1, getRequestedFor(urlMatching("/unsegmented")));
+    }
+
+    @Test
+    public void failedSegmentRemovesFile() throws Exception {
+        stubRange("/broken", 0, 0);
+        stubRange("/broken", 0, 9);
+        stubFor(get(urlEqualTo("/broken"))
+                .withHeader("Range", equalTo("bytes=10-19"))
+                .willReturn(aResponse()
+                        .withStatus(500)
+                        .withBody("error")));
+
+        File dest = new File(tempDir.getRoot(), "broken.txt");
+        SegmentedDownload download = new SegmentedDownload(new URL("http://localhost:" + wireMockRule.port() + "/broken"), dest);
+        download.setSegments(2);
+        download.setMinSegmentSize(10);
+        download.setMaxRetries(2);
+        try {
+            download.download();
+            fail();
+        } catch (IOException e) {
+            assertNotNull(e);
+        }
+
+        assertFalse(dest.exists());
+        // the failed segment is retried on its own
+        verify(3, getRequestedFor(urlMatching("/broken")).withHeader("Range", equalTo("bytes=10-19")));
+    }
+
+    @Test
+    public void failedSegmentStopsOtherSegments() throws Exception {
+        stubRange("/stalled", 0, 0);
+        stubFor(get(urlEqualTo("/stalled"))
+                .withHeader("Range", equalTo("bytes=0-9"))
+                .willReturn(aResponse()
+                        .withStatus(206)
+                        .withHeader("Content-Range", "bytes 0-9/" + BODY.length())
+                        .withBody(BODY.substring(0, 10))
+                        .withFixedDelay(4000)));
+        stubFor(get(urlEqualTo("/stalled"))
+                .withHeader("Range", equalTo("bytes=10-19"))
+                .willReturn(aResponse()
+                        .withStatus(500)
+                        .withBody("error")));
+
+        File dest = new File(tempDir.getRoot(), "stalled.txt");
+        SegmentedDownload download = new SegmentedDownload(new URL("http://localhost:" + wireMockRule.port() + "/stalled"), dest);
+        download.setSegments(2);
+        download.setMinSegmentSize(10);
+        download.setMaxRetries(0);
+        long start = System.currentTimeMillis();
+        try {
+            download.download();
+            fail();
+        } catch (IOException e) {
+            assertNotNull(e);
+        }
+
+        // the failure was not held up by the slow first segment
+        assertTrue(System.currentTimeMillis() - start < 2000);
+        assertFalse(dest.exists());
+    }
+
+    @Test
+    public void downloadEmptyFile() throws Exception {
+        stubFor(get(urlEqualTo("/empty"))
+                .withHeader("Range", equalTo("bytes=0-0"))
+                .willReturn(aResponse()
+                        .withStatus(416)
+                        .withHeader("Content-Range", "bytes */0")));
+
+        File dest = new File(tempDir.getRoot(), "empty.txt");
+        SegmentedDownload download = new SegmentedDownload(new URL("http://localhost:" + wireMockRule.port() + "/empty"), dest);
+        download.download();
+
+        assertTrue(dest.exists());
+        assertEquals(0, dest.length());
+        verify(1, getRequestedFor(urlMatching("/empty")));
+    }
+}
@@ -0,0 +1,151 @@
+package org.unfoldingword.tools.http;
+
+import com.github.tomakehurst.wiremock.junit.WireMockRule;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.*;
+import static com.github.tomakehurst.wiremock.core.WireMockConfiguration.wireMockConfig;
+import static org.junit.Assert.*;
+
+public class TransferSchedulerUnitTests {
+    private static final int SIZE = 256 * 1024;
+
+    @Rule
+    public WireMockRule wireMockRule = new WireMockRule(wireMockConfig().dynamicPort().dynamicHttpsPort());
+    @Rule
+    public TemporaryFolder tempDir = new TemporaryFolder();
+
+    private void stubLarge(String path) {
+        stubFor(get(urlEqualTo(path))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withHeader("Content-Length", String.valueOf(SIZE))
+                        .withBody(new byte[SIZE])));
+    }
+
+    private GetRequest createRequest(String path) throws IOException {
+        return new GetRequest(new URL("http://localhost:" + wireMockRule.port() + path));
+    }
+
+    @Test
+    public void limiterCapsThroughput() throws Exception {
+        stubLarge("/throttle/limited");
+
+        GetRequest request = createRequest("/throttle/limited");
+        request.setBandwidthLimiter(new BandwidthLimiter(SIZE));
+        long start = System.currentTimeMillis();
+        request.download(new File(tempDir.getRoot(), "limited.bin"));
+
+        // the first quarter second is allowed as a burst
+        assertTrue(System.currentTimeMillis() - start >= 600);
+    }
+
+    @Test
+    public void backgroundYieldsToForeground() throws Exception {
+        stubLarge("/throttle/background");
+        TransferScheduler scheduler = new TransferScheduler();
+        scheduler.setBackgroundRate(SIZE);
+
+        GetRequest request = createRequest("/throttle/background");
+        request.setPriority(Request.Priority.LOW);
+        request.setTransferScheduler(scheduler);
+        long start = System.currentTimeMillis();
+        request.download(new File(tempDir.getRoot(), "alone.bin"));
+        long alone = System.currentTimeMillis() - start;
+        assertEquals(0, scheduler.getForegroundCount());
+
+        // an interactive request is in progress
+        scheduler.begin(Request.Priority.HIGH);
+        assertEquals(1, scheduler.getForegroundCount());
+        start = System.currentTimeMillis();
+        request.download(new File(tempDir.getRoot(), "yielding.bin"));
+        long yielding = System.currentTimeMillis() - start;
+        scheduler.end(Request.Priority.HIGH);
+
+        assertTrue(yielding >= 600);
+        assertTrue(yielding > alone);
+    }
+
+    @Test
+    public void foregroundRequestsTracked() throws Exception {
+        stubFor(get(urlEqualTo("/throttle/foreground"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withFixedDelay(300)
+                        .withBody("ok")));
+        final TransferScheduler scheduler = new TransferScheduler();
+        final GetRequest request = createRequest("/throttle/foreground");
+        request.setTransferScheduler(scheduler);
+
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    request.read();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        });
+        thread.start();
+        Thread.sleep(150);
+        assertEquals(1, scheduler.getForegroundCount());
+        thread.join();
+        assertEquals(0, scheduler.getForegroundCount());
+    }
+
+    @Test
+    public void executorStartsHigherPriorityFirst() throws Exception {
+        stubFor(get(urlEqualTo("/throttle/blocking"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withFixedDelay(300)
+                        .withBody("blocking")));
+        stubFor(get(urlMatching("/throttle/priority/.*"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withBody("ok")));
+
+        RequestExecutor executor = new RequestExecutor(1, 1);
+        final List<Request.Priority> order = Collections.synchronizedList(new ArrayList<Request.Priority>());
+        final CountDownLatch latch = new CountDownLatch(4);
+        RequestExecutor.Callback<String> callback = new RequestExecutor.Callback<String>() {
+            @Override
+            public void onSuccess(Request request, String result) {
+                order.add(request.getPriority());
+                latch.countDown();
+            }
+
+            @Override
+            public void onFailure(Request request, Exception e) {
+                latch.countDown();
+            }
+        };
+
+        // occupies the only thread while the others queue up
+        executor.read(createRequest("/throttle/blocking"), callback);
+        for(Request.Priority priority : new Request.Priority[]{Request.Priority.LOW, Request.Priority.NORMAL, Request.Priority.HIGH}) {
+            GetRequest request = createRequest("/throttle/priority/" + priority);
+            request.setPriority(priority);
+            executor.read(request, callback);
+        }
+
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        executor.shutdown();
+        assertEquals(Request.Priority.HIGH, order.get(1));
+        assertEquals(Request.Priority.NORMAL, order.get(2));
+        assertEquals(Request.Priority.LOW, order.get(3));
+    }
+}